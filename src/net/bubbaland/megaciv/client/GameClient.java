@@ -3,11 +3,27 @@ package net.bubbaland.megaciv.client;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import javax.swing.SwingWorker;
 import javax.websocket.ClientEndpoint;
@@ -21,22 +37,21 @@ import javax.websocket.Session;
 
 import org.glassfish.tyrus.client.ClientManager;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
-
 import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.game.GameEvent;
 import net.bubbaland.megaciv.game.Stopwatch;
 import net.bubbaland.megaciv.game.User;
 import net.bubbaland.megaciv.messages.ClientMessage;
 import net.bubbaland.megaciv.messages.GameDataMessage;
+import net.bubbaland.megaciv.messages.GameDeltaMessage;
+import net.bubbaland.megaciv.messages.GameFile;
+import net.bubbaland.megaciv.messages.GameLogPageMessage;
+import net.bubbaland.megaciv.messages.GameLogRequestMessage;
+import net.bubbaland.megaciv.messages.GameResyncMessage;
+import net.bubbaland.megaciv.messages.GameUploadMessage;
 import net.bubbaland.megaciv.messages.KeepAliveMessage;
-import net.bubbaland.megaciv.messages.LoadGameMessage;
+import net.bubbaland.megaciv.messages.PresenceDeltaMessage;
+import net.bubbaland.megaciv.messages.MessageCodec;
 import net.bubbaland.megaciv.messages.ServerMessage;
 import net.bubbaland.megaciv.messages.SetUserMessage;
 import net.bubbaland.megaciv.messages.StopwatchMessage;
@@ -60,6 +75,12 @@ public class GameClient implements Runnable, SntpListener {
 	// Default trade timer length (in secs)
 	private final static Duration		STARTING_TIMER_LENGTH	= Duration.ofMinutes(5);
 
+	// How long to wait for the server to send a page of the game log
+	private final static Duration		LOG_REQUEST_TIMEOUT		= Duration.ofSeconds(30);
+
+	// Added to the name of a save file while it is written, so a failed save leaves the old file intact
+	private final static String			SAVE_TEMP_EXTENSION		= ".tmp";
+
 	// Format for log timestamps
 	private SimpleDateFormat			timestampFormat;
 
@@ -75,6 +96,13 @@ public class GameClient implements Runnable, SntpListener {
 	// Users connected to server; updated by server when necessary
 	private volatile ArrayList<User>	userList;
 
+	// Users connected to server keyed by session, and the presence version they represent
+	private final HashMap<String, User>	users;
+	private long						presenceVersion;
+
+	// Whether missed updates have been requested and not yet received
+	private volatile boolean			resyncPending;
+
 	// User data for this client
 	private User						user;
 
@@ -84,6 +112,10 @@ public class GameClient implements Runnable, SntpListener {
 	// URI for server address
 	private final URI					uri;
 
+	// Requests for pages of the game log waiting for a reply, keyed by request ID
+	private final ConcurrentHashMap<Long, CompletableFuture<GameLogPageMessage>>	logRequests;
+	private final AtomicLong														nextLogRequestId;
+
 	/**
 	 * Create a new client that connects to the specified server
 	 *
@@ -95,11 +127,17 @@ public class GameClient implements Runnable, SntpListener {
 		this.game = null;
 		this.user = new User();
 		this.userList = new ArrayList<User>();
+		this.users = new HashMap<String, User>();
+		this.presenceVersion = -1;
+		this.resyncPending = false;
 		this.timestampFormat = new SimpleDateFormat("[yyyy MMM dd HH:mm:ss]");
 		this.stopwatch = new Stopwatch(GameClient.STARTING_TIMER_LENGTH);
 		this.uri = URI.create(serverUrl);
 		this.sntpClient = new SntpClient(this.uri.getHost(), 123, SNTP_POLL_INTERVAL);
 		this.sntpClient.addSntpListener(this);
+		this.logRequests = new ConcurrentHashMap<Long, CompletableFuture<GameLogPageMessage>>();
+		this.nextLogRequestId = new AtomicLong(0);
+		MessageCodec.warmUp();
 	}
 
 	/**
@@ -178,22 +216,51 @@ public class GameClient implements Runnable, SntpListener {
 	}
 
 	/**
-	 * Load game save data from file and send to server.
+	 * Load game save data from file and send to server. The file is sent compressed, in chunks, so large games don't
+	 * need to fit in a single message; the server reads the game and checks it is intact before replacing the current
+	 * game.
 	 *
 	 * @param file
 	 *            File containing save data.
 	 */
 	public void loadGame(final File file) {
-		final ObjectMapper mapper = new ObjectMapper();
-		mapper.findAndRegisterModules();
-		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		mapper.configure(DeserializationFeature.READ_ENUMS_USING_TO_STRING, true);
-		try {
-			final Game game = mapper.readValue(file, Game.class);
-			this.sendMessage(new LoadGameMessage(game));
-		} catch (final IOException exception) {
-			exception.printStackTrace();
+		( new SwingWorker<Void, Void>() {
+			@Override
+			public Void doInBackground() {
+				try {
+					GameClient.this.uploadGame(file);
+				} catch (final IOException | InterruptedException | ExecutionException exception) {
+					GameClient.this.log("Couldn't send " + file + " to server:");
+					exception.printStackTrace();
+				}
+				return null;
+			}
+		} ).execute();
+	}
+
+	/**
+	 * Send a save file to the server in chunks, waiting for each chunk to be sent before sending the next.
+	 *
+	 * @param file
+	 *            File containing save data.
+	 */
+	private void uploadGame(final File file) throws IOException, InterruptedException, ExecutionException {
+		final byte[] contents = GameFile.readCompressed(file);
+		final CRC32 checksum = new CRC32();
+		checksum.update(contents, 0, contents.length);
+		final String uploadId = UUID.randomUUID().toString();
+		final int chunkSize = GameUploadMessage.CHUNK_SIZE;
+		final int chunkCount = Math.max(1, ( contents.length + chunkSize - 1 ) / chunkSize);
+		if (!this.isConnected()) {
+			this.run();
+		}
+		for (int i = 0; i < chunkCount; i++) {
+			final byte[] data =
+					Arrays.copyOfRange(contents, i * chunkSize, Math.min(contents.length, ( i + 1 ) * chunkSize));
+			this.session.getAsyncRemote()
+					.sendObject(new GameUploadMessage(uploadId, i, chunkCount, checksum.getValue(), data)).get();
 		}
+		this.log("Sent " + file + " to server (" + contents.length + " bytes in " + chunkCount + " chunks)");
 	}
 
 	/**
@@ -234,19 +301,102 @@ public class GameClient implements Runnable, SntpListener {
 		switch (messageType) {
 			case "GameDataMessage": // Received updated game data
 				this.game = ( (GameDataMessage) message ).getGame();
+				this.resyncPending = false;
 				// this.log(this.game.toString());
 				break;
+			case "GameDeltaMessage": // Received changes to the game data
+				final Game game = this.game;
+				if (game == null || !game.applyDelta((GameDeltaMessage) message)) {
+					// Missed an update, so ask for a full copy of the game
+					this.requestResync("Missed game update, requesting missing updates");
+				} else {
+					this.resyncPending = false;
+				}
+				break;
 			case "UserListMessage": // Received an updated user list
-				this.userList = ( (UserListMessage) message ).getUserList();
+				this.resyncPending = false;
+				this.users.clear();
+				this.users.putAll(( (UserListMessage) message ).getUsers());
+				this.presenceVersion = ( (UserListMessage) message ).getVersion();
+				this.userList = new ArrayList<User>(this.users.values());
+				break;
+			case "PresenceDeltaMessage": // Received changes to the user list
+				if (!this.applyPresence((PresenceDeltaMessage) message)) {
+					// Missed an update, so ask for a full copy of the game and user list
+					this.requestResync("Missed user list update, requesting full list");
+				} else {
+					this.resyncPending = false;
+				}
 				break;
 			case "StopwatchMessage": // Received a timer synchronization message
 				this.stopwatch.remoteEvent((StopwatchMessage) message);
 				break;
+			case "KeepAliveMessage": // Server answered a keep-alive
+				break;
+			case "GameLogPageMessage": // Received a page of the game log
+				final GameLogPageMessage page = (GameLogPageMessage) message;
+				final CompletableFuture<GameLogPageMessage> request = this.logRequests.remove(page.getRequestId());
+				if (request != null) {
+					request.complete(page);
+				}
+				break;
 			default:
 				this.log("ERROR: Unknown message type received: " + message.getClass().getSimpleName());
 		}
 	}
 
+	/**
+	 * Ask the server for the updates this client missed, unless they have already been asked for. One resync answers
+	 * for every update missed before it, so the rest of a burst of updates that can't be applied needn't ask again.
+	 *
+	 * @param reason
+	 *            Why updates are needed, for the log.
+	 */
+	private void requestResync(final String reason) {
+		if (this.resyncPending) {
+			return;
+		}
+		this.resyncPending = true;
+		this.log(reason);
+		this.sendMessage(new GameResyncMessage(this.getVersion()));
+	}
+
+	/**
+	 * Apply changes to the user list.
+	 *
+	 * @param delta
+	 *            The changes from the server.
+	 * @return false if the changes are based on a version of the list this client doesn't have.
+	 */
+	private boolean applyPresence(final PresenceDeltaMessage delta) {
+		if (delta.changesMembership()) {
+			if (delta.getVersion() <= this.presenceVersion) {
+				// Already included in the list we have
+				return true;
+			}
+			if (delta.getBaseVersion() != this.presenceVersion) {
+				return false;
+			}
+			this.users.putAll(delta.getJoined());
+			delta.getRenamed().forEach((key, name) -> {
+				final User user = this.users.get(key);
+				if (user != null) {
+					user.setUserName(name);
+				}
+			});
+			delta.getLeft().forEach(this.users::remove);
+			this.presenceVersion = delta.getVersion();
+		}
+		delta.getActivity().forEach((key, lastActive) -> {
+			final User user = this.users.get(key);
+			if (user != null) {
+				user.setLastActive(lastActive);
+			}
+		});
+		this.userList = new ArrayList<User>(this.users.values());
+		return true;
+	}
+
 	/**
 	 * Handle when a connection to the server is first established.
 	 *
@@ -258,6 +408,8 @@ public class GameClient implements Runnable, SntpListener {
 	@OnOpen
 	public void onOpen(final Session session, final EndpointConfig config) {
 		this.session = session;
+		// Anything requested over an earlier connection won't be answered
+		this.resyncPending = false;
 		this.log("Now connected to " + session.getRequestURI());
 		if (this.user.getUserName().equals("")) {
 			this.user.setUserName(session.getId().substring(0, 7));
@@ -275,7 +427,7 @@ public class GameClient implements Runnable, SntpListener {
 	public void run() {
 		final ClientManager clientManager = ClientManager.createClient();
 		try {
-			clientManager.connectToServer(this, this.uri);
+			clientManager.connectToServer(this, this.getConnectUri());
 		} catch (DeploymentException | IOException exception) {
 			this.log("Couldn't connect to " + this.uri);
 			this.connectionClosed();
@@ -283,23 +435,177 @@ public class GameClient implements Runnable, SntpListener {
 	}
 
 	/**
-	 * Save current game data to a file.
+	 * Get the version of the game data this client has.
+	 *
+	 * @return The game version, or {@link GameResyncMessage#NO_VERSION} if the client has no game data.
+	 */
+	private long getVersion() {
+		final Game game = this.game;
+		return game != null ? game.getVersion() : GameResyncMessage.NO_VERSION;
+	}
+
+	/**
+	 * Get the URI to connect to. A client reconnecting with game data tells the server which version it has, so the
+	 * server only needs to send the updates it missed.
+	 *
+	 * @return The server URI.
+	 */
+	private URI getConnectUri() {
+		final long version = this.getVersion();
+		if (version == GameResyncMessage.NO_VERSION) {
+			return this.uri;
+		}
+		final String query = this.uri.getRawQuery();
+		final String resume = GameResyncMessage.RESUME_PARAMETER + "=" + version;
+		return URI.create(this.uri.toString() + ( query == null ? "?" : "&" ) + resume);
+	}
+
+	/**
+	 * Save current game data to a file. The game is copied before this returns, so updates arriving while the file is
+	 * written don't end up in it. The file is written under a temporary name and then moved into place, so an existing
+	 * file is only replaced by a complete save. If the log can't be read from the server, the game is saved without it.
 	 *
 	 * @param file
 	 *            A file to save game data in.
 	 */
 	public void saveGame(final File file) {
-		final ObjectMapper mapper = new ObjectMapper();
-		mapper.findAndRegisterModules();
-		mapper.configure(SerializationFeature.WRITE_ENUMS_USING_TO_STRING, true);
-		mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-		mapper.setVisibility(mapper.getVisibilityChecker().with(JsonAutoDetect.Visibility.NONE));
-		mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
-		final ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
+		final Game current = this.game;
+		if (current == null) {
+			this.log("No game to save yet");
+			return;
+		}
+		final String snapshot;
 		try {
-			writer.writeValue(file, this.game);
+			// Deltas are applied with the game locked, so this sees all or none of each one
+			synchronized (current) {
+				snapshot = MessageCodec.encode(new GameDataMessage(current));
+			}
 		} catch (final IOException exception) {
+			this.log("Couldn't save game to " + file + ":");
 			exception.printStackTrace();
+			return;
+		}
+		( new SwingWorker<Void, Void>() {
+			@Override
+			public Void doInBackground() {
+				final Path target = file.toPath();
+				final Path temp = target.resolveSibling(target.getFileName() + SAVE_TEMP_EXTENSION);
+				try {
+					final Game game = ( (GameDataMessage) MessageCodec.decodeServerMessage(snapshot) ).getGame();
+					final boolean compressed = file.getName().endsWith(GameFile.COMPRESSED_EXTENSION);
+					try {
+						if (!GameClient.this.isConnected()) {
+							throw new LogUnavailableException("Not connected to server", null);
+						}
+						// The log isn't sent with the game, so it is fetched a page at a time as the file is written
+						GameFile.write(temp.toFile(), game, compressed, new LogPages(game.getLogLength()));
+					} catch (final LogUnavailableException exception) {
+						GameClient.this.log("Couldn't read game log from server, saving game without its "
+								+ game.getLogLength() + " log events: " + exception.getMessage());
+						GameFile.write(temp.toFile(), game, compressed, Collections.<GameEvent> emptyIterator());
+					}
+					Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (final IOException exception) {
+					GameClient.this.log("Couldn't save game to " + file + ":");
+					exception.printStackTrace();
+					try {
+						Files.deleteIfExists(temp);
+					} catch (final IOException deleteException) {
+						deleteException.printStackTrace();
+					}
+				}
+				return null;
+			}
+		} ).execute();
+	}
+
+	/**
+	 * Ask the server for a page of the game log.
+	 *
+	 * @param start
+	 *            Index of the first event wanted. Ignored if since is given.
+	 * @param since
+	 *            Time of the first event wanted, or null to start at an index.
+	 * @param until
+	 *            Time after which no events are wanted, or null for no limit.
+	 * @param maxEvents
+	 *            Most events wanted; the server sends no more than {@link GameLogRequestMessage#MAX_EVENTS}.
+	 * @return The page, once the server has sent it. Cancel it to stop waiting for the page.
+	 */
+	public CompletableFuture<GameLogPageMessage> requestLog(final int start, final Instant since, final Instant until,
+			final int maxEvents) {
+		final long requestId = this.nextLogRequestId.incrementAndGet();
+		final CompletableFuture<GameLogPageMessage> request = new CompletableFuture<GameLogPageMessage>();
+		this.logRequests.put(requestId, request);
+		request.whenComplete((page, exception) -> this.logRequests.remove(requestId));
+		this.sendMessage(new GameLogRequestMessage(requestId, start, since, until, maxEvents));
+		return request;
+	}
+
+	/**
+	 * Thrown when the log can't be read from the server while a game is being saved.
+	 */
+	private static class LogUnavailableException extends RuntimeException {
+		private static final long serialVersionUID = 5081376102937510614L;
+
+		private LogUnavailableException(final String message, final Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * The game log as read from the server, fetching each page as the previous one is used up.
+	 */
+	private class LogPages implements Iterator<GameEvent> {
+		private final int			length;
+		private int					next;
+		private Iterator<GameEvent>	page;
+
+		/**
+		 * @param length
+		 *            Number of events to read.
+		 */
+		private LogPages(final int length) {
+			this.length = length;
+			this.next = 0;
+			this.page = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.page != null && this.page.hasNext()) {
+				return true;
+			}
+			if (this.next >= this.length) {
+				return false;
+			}
+			final CompletableFuture<GameLogPageMessage> request =
+					GameClient.this.requestLog(this.next, null, null, GameLogRequestMessage.MAX_EVENTS);
+			final GameLogPageMessage reply;
+			try {
+				reply = request.get(LOG_REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException | ExecutionException | TimeoutException exception) {
+				request.cancel(false);
+				throw new LogUnavailableException("Couldn't read game log from server", exception);
+			}
+			if (reply.getStart() > this.next) {
+				GameClient.this.log("Server only has log events from " + reply.getStart() + " on");
+			}
+			if (reply.getEvents().isEmpty()) {
+				this.next = this.length;
+				return false;
+			}
+			this.next = reply.getStart() + reply.getEvents().size();
+			this.page = reply.getEvents().iterator();
+			return true;
+		}
+
+		@Override
+		public GameEvent next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return this.page.next();
 		}
 	}
 
@@ -677,7 +677,7 @@ public class AstTablePanel extends BubbaPanel {
 						text = WordUtils.capitalizeFully(this.name.toString()) + " (" + civ.getPlayer() + ")";
 						break;
 					case TECHS:
-						text = String.format("%1$2d", civ.getTechs().size());
+						text = String.format("%1$2d", civ.getTechCount());
 						component.setToolTipText(civ.getTechBreakdownString());
 						break;
 					case VP:
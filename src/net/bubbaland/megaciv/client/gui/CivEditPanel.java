@@ -472,11 +472,9 @@ public class CivEditPanel extends BubbaPanel implements ActionListener, ChangeLi
 
 			final float fontSize = Float.parseFloat(prop.getProperty("CivEditPanel.Tech.FontSize"));
 
-			final ArrayList<Technology> ownedTechs = CivEditPanel.this.civ.getTechs();
-
 			for (final Technology tech : EnumSet.allOf(Technology.class)) {
 				final JCheckBox checkbox = this.techCheckboxes.get(tech);
-				final Color color = ownedTechs.contains(tech) ? this.ownedColor : this.unownedColor;
+				final Color color = CivEditPanel.this.civ.hasTech(tech) ? this.ownedColor : this.unownedColor;
 				BubbaPanel.setButtonProperties(checkbox, width, height, color, background, fontSize);
 			}
 
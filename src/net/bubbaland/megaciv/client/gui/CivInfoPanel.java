@@ -4,7 +4,6 @@ import java.awt.Color;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.math.BigInteger;
-import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Properties;
@@ -256,7 +255,7 @@ public class CivInfoPanel extends BubbaMainPanel {
 
 			this.populationLabel.setText(String.format("%02d", civ.getPopulation()));
 			this.cityLabel.setText(civ.getCityCount() + "");
-			this.techLabel.setText(String.format("%02d", civ.getTechs().size()));
+			this.techLabel.setText(String.format("%02d", civ.getTechCount()));
 
 			final String text = String.format("%03d", civ.getVP());
 			this.vpLabel.setText(text);
@@ -409,10 +408,8 @@ public class CivInfoPanel extends BubbaMainPanel {
 			}
 			final Civilization civ = game.getCivilization(CivInfoPanel.this.name);
 
-			final ArrayList<Technology> ownedTechs = civ.getTechs();
-
 			for (final Technology tech : EnumSet.allOf(Technology.class)) {
-				final Color color = ownedTechs.contains(tech) ? this.ownedColor : this.unownedColor;
+				final Color color = civ.hasTech(tech) ? this.ownedColor : this.unownedColor;
 				this.techLabels.get(tech).setForeground(color);
 			}
 
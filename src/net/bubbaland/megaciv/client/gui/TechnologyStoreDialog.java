@@ -30,6 +30,7 @@ import net.bubbaland.gui.BubbaPanel;
 import net.bubbaland.megaciv.client.GameClient;
 import net.bubbaland.megaciv.game.Civilization;
 import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.game.PurchaseFrontier;
 import net.bubbaland.megaciv.game.Technology;
 import net.bubbaland.megaciv.game.Technology.Type;
 import net.bubbaland.megaciv.messages.AdditionalCreditMessage;
@@ -53,12 +54,20 @@ public class TechnologyStoreDialog extends BubbaPanel implements ActionListener,
 	private final JLabel							writtenRecordLabel, monumentLabel;
 	private final Civilization.Name					civName;
 
+	// Whether the selection follows the budget, once the best purchase has been asked for
+	private boolean									suggesting;
+
+	// Whether the optimizer is running in the background
+	private boolean									optimizing;
+
 	public TechnologyStoreDialog(final GameClient client, final BubbaGuiController controller,
 			final Civilization.Name civName) {
 		super(controller, new GridBagLayout());
 		this.frame = new JFrame();
 		this.client = client;
 		this.civName = civName;
+		this.suggesting = false;
+		this.optimizing = false;
 
 		final Game game = this.client.getGame();
 		final ArrayList<Civilization.Name> civNames = Civilization.sortByToName(game.getCivilizations(),
@@ -290,38 +299,41 @@ public class TechnologyStoreDialog extends BubbaPanel implements ActionListener,
 
 	}
 
+	/**
+	 * Run the optimizer in the background, then select the best purchase for the budget. The purchase is chosen once
+	 * the optimizer finishes, so it follows any change to the budget made in the meantime.
+	 */
 	private void selectOptimal() {
+		if (this.optimizing) {
+			return;
+		}
+		this.optimizing = true;
 
 		final Civilization civ = this.client.getGame().getCivilization(this.civName);
-		final int budget = (int) this.spinner.getValue();
+		final String buttonText = this.suggestButton.getText();
+		this.frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		this.suggestButton.setEnabled(false);
+		this.suggestButton.setText("Optimizing...");
 
 		new SwingWorker<Void, Void>() {
 
-			List<Technology>	optimalTech;
-			String				buttonText;
+			PurchaseFrontier	frontier;
 
 			@Override
 			public Void doInBackground() {
-				TechnologyStoreDialog.this.frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-				TechnologyStoreDialog.this.suggestButton.setEnabled(false);
-				this.buttonText = TechnologyStoreDialog.this.suggestButton.getText();
-				TechnologyStoreDialog.this.suggestButton.setText("Optimizing...");
-				this.optimalTech = civ.getOptimalTechs(budget);
+				this.frontier = civ.getPurchaseFrontier();
 				return null;
 			}
 
 			@Override
 			public void done() {
-				if (this.optimalTech != null) {
-					TechnologyStoreDialog.this.resetCheckboxes();
-					for (final TechnologyCheckBox checkbox : TechnologyStoreDialog.this.techCheckboxes) {
-						if (this.optimalTech.contains(checkbox.getTechnology())) {
-							checkbox.setSelected(true);
-						}
-					}
-					TechnologyStoreDialog.this.setCheckboxTechs();
+				TechnologyStoreDialog.this.optimizing = false;
+				if (this.frontier != null) {
+					final int budget = (int) TechnologyStoreDialog.this.spinner.getValue();
+					TechnologyStoreDialog.this.showPurchase(this.frontier.getOptimalTechs(budget));
+					TechnologyStoreDialog.this.suggesting = true;
 				}
-				TechnologyStoreDialog.this.suggestButton.setText(this.buttonText);
+				TechnologyStoreDialog.this.suggestButton.setText(buttonText);
 				TechnologyStoreDialog.this.suggestButton
 						.setEnabled((int) TechnologyStoreDialog.this.spinner.getValue() > 0);
 				TechnologyStoreDialog.this.frame.setCursor(Cursor.getDefaultCursor());
@@ -330,9 +342,25 @@ public class TechnologyStoreDialog extends BubbaPanel implements ActionListener,
 		}.execute();
 	}
 
+	/**
+	 * Select exactly the given advances, besides those already owned.
+	 *
+	 * @param techs
+	 *            The advances to select.
+	 */
+	private void showPurchase(final List<Technology> techs) {
+		this.resetCheckboxes();
+		for (final TechnologyCheckBox checkbox : this.techCheckboxes) {
+			if (techs.contains(checkbox.getTechnology())) {
+				checkbox.setSelected(true);
+			}
+		}
+		this.setCheckboxTechs();
+	}
+
 	private void setCheckboxTechs() {
 		final Civilization civ = this.client.getGame().getCivilization(this.civName);
-		final ArrayList<Technology> ownedTechs = civ.getTechs();
+		final int[] costs = civ.getCosts();
 		final ArrayList<Technology> checkedTechs = new ArrayList<Technology>();
 		final ArrayList<Technology> allTechs = new ArrayList<Technology>(EnumSet.allOf(Technology.class));
 
@@ -360,17 +388,18 @@ public class TechnologyStoreDialog extends BubbaPanel implements ActionListener,
 			final Technology tech = allTechs.get(i);
 			checkbox.setTechnology(tech);
 
-			final boolean isOwned = ownedTechs.contains(tech);
+			final boolean isOwned = civ.hasTech(tech);
 			checkbox.setSelected(isOwned || checkedTechs.contains(tech));
-			final boolean overBudget = this.disableUnbuyable.isSelected() && budget != 0 && civ.getCost(tech) > budget;
+			final boolean overBudget =
+					this.disableUnbuyable.isSelected() && budget != 0 && costs[tech.ordinal()] > budget;
 			final boolean enabled = !( isOwned || overBudget );
 			checkbox.setEnabled(enabled);
 			String techString = "<html>" + tech.getName();
 			if (!isOwned) {
 				if (tech == Technology.LIBRARY || tech == Technology.ANATOMY) {
-					techString = techString + " (" + civ.getCost(tech) + "*/" + tech.getBaseCost() + ") ";
+					techString = techString + " (" + costs[tech.ordinal()] + "*/" + tech.getBaseCost() + ") ";
 				} else {
-					techString = techString + " (" + civ.getCost(tech) + "/" + tech.getBaseCost() + ") ";
+					techString = techString + " (" + costs[tech.ordinal()] + "/" + tech.getBaseCost() + ") ";
 				}
 				for (final Type type : tech.getTypes()) {
 					techString = techString + " <img height=\"16\" width=\"16\" align=\"bottom\" src=\""
@@ -385,18 +414,18 @@ public class TechnologyStoreDialog extends BubbaPanel implements ActionListener,
 
 	private void resetCheckboxes() {
 		final Civilization civ = this.client.getGame().getCivilization(this.civName);
-		final ArrayList<Technology> ownedTechs = civ.getTechs();
+		final int[] costs = civ.getCosts();
 		for (final TechnologyCheckBox checkbox : this.techCheckboxes) {
 			final Technology tech = checkbox.getTechnology();
-			final boolean isOwned = ownedTechs.contains(tech);
+			final boolean isOwned = civ.hasTech(tech);
 			checkbox.setSelected(isOwned);
 			checkbox.setEnabled(!isOwned);
 			String techString = "<html>" + tech.getName();
 			if (!isOwned) {
 				if (tech == Technology.LIBRARY || tech == Technology.ANATOMY) {
-					techString = techString + " (" + civ.getCost(tech) + "*/" + tech.getBaseCost() + ") ";
+					techString = techString + " (" + costs[tech.ordinal()] + "*/" + tech.getBaseCost() + ") ";
 				} else {
-					techString = techString + " (" + civ.getCost(tech) + "/" + tech.getBaseCost() + ") ";
+					techString = techString + " (" + costs[tech.ordinal()] + "/" + tech.getBaseCost() + ") ";
 				}
 				for (final Type type : tech.getTypes()) {
 					techString = techString + "<img height=\"20\" width=\"20\" style=\"vertical-align:middle\" src=\""
@@ -455,7 +484,18 @@ public class TechnologyStoreDialog extends BubbaPanel implements ActionListener,
 	@Override
 	public void stateChanged(final ChangeEvent e) {
 		if (e.getSource().equals(this.spinner)) {
-			this.setCheckboxTechs();
+			if (this.suggesting) {
+				// The optimizer only runs here if the advances or credits have changed since it last ran
+				final Civilization civ = this.client.getGame().getCivilization(this.civName);
+				final PurchaseFrontier frontier = civ.getCachedPurchaseFrontier();
+				if (frontier != null) {
+					this.showPurchase(frontier.getOptimalTechs((int) this.spinner.getValue()));
+				} else {
+					this.selectOptimal();
+				}
+			} else {
+				this.setCheckboxTechs();
+			}
 			this.disableUnbuyable.setEnabled((int) this.spinner.getValue() > 0);
 			this.suggestButton.setEnabled((int) this.spinner.getValue() > 0);
 		} else {
@@ -503,6 +543,7 @@ public class TechnologyStoreDialog extends BubbaPanel implements ActionListener,
 				}
 				this.frame.dispose();
 			case "Reset":
+				this.suggesting = false;
 				this.resetCheckboxes();
 				this.spinner.setValue(0);
 				break;
@@ -9,6 +9,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -16,6 +17,7 @@ import java.util.stream.Stream;
 import org.apache.commons.lang3.text.WordUtils;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import net.bubbaland.megaciv.client.gui.GuiClient;
@@ -31,6 +33,9 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 
 	private static final long serialVersionUID = -9210563148479097901L;
 
+	// Every advance type, so pricing doesn't copy values()
+	private static final Technology.Type[] TYPES = Technology.Type.values();
+
 	/**
 	 * The names of the 18 allowed civilizations.
 	 */
@@ -153,10 +158,16 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	@JsonProperty("nCities")
 	private int														nCities;
 	/**
-	 * A list of the advances the civilization has purchased.
+	 * The advances the civilization has purchased, as a bit for each advance by ordinal (there are fewer than 64).
+	 * Written as the map from advance to round that {@link #getTechRounds()} gives.
 	 */
-	@JsonProperty("techs")
-	private final HashMap<Technology, Integer>						techs;
+	@JsonIgnore
+	private long													techMask;
+	/**
+	 * The round each owned advance was purchased in, by ordinal.
+	 */
+	@JsonIgnore
+	private final short[]											techRounds;
 
 	@JsonProperty("lateIronBonus")
 	private boolean													lateIronBonus;
@@ -193,6 +204,32 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	@JsonProperty("hasPurchased")
 	private boolean													hasPurchased;
 
+	/*
+	 * Totals derived from the fields above, kept up to date as they change so they can be read without looking through
+	 * every advance. Rebuilt by the constructor, which Jackson also uses.
+	 */
+	/**
+	 * The number of advances owned worth each number of victory points (index 1, 3 or 6).
+	 */
+	@JsonIgnore
+	private final int[]												techCountByVP;
+	/**
+	 * The number of victory points of owned advances.
+	 */
+	@JsonIgnore
+	private int														vpFromTech;
+	/**
+	 * The credits towards each advance Type, by ordinal, from owned advances and the additional credits chosen for
+	 * them. Game-start credits are not included.
+	 */
+	@JsonIgnore
+	private final int[]												typeCreditTotals;
+	/**
+	 * The credits towards each advance, by ordinal, given by owned advances.
+	 */
+	@JsonIgnore
+	private final int[]												techCreditTotals;
+
 	/**
 	 * The primary constructor for creating a civilization. Values are initialized to their start-of-game values.
 	 *
@@ -272,13 +309,23 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		this.player = player;
 		this.population = population;
 		this.nCities = nCities;
-		this.techs = techs;
+		this.techMask = 0;
+		this.techRounds = new short[Technology.COUNT];
 		this.astPosition = astPosition;
 		this.typeCredits = typeCredits;
 		this.smallGameCredits = scenarioCredits;
 		this.hasPurchased = hasPurchased;
 		this.difficulty = difficulty;
 		this.lateIronBonus = lateIronBonus;
+		this.techCountByVP = new int[7];
+		this.vpFromTech = 0;
+		this.typeCreditTotals = new int[Technology.TYPE_COUNT];
+		this.techCreditTotals = new int[Technology.COUNT];
+		if (techs != null) {
+			for (final Technology tech : techs.keySet()) {
+				this.addTech(tech, techs.get(tech));
+			}
+		}
 	}
 
 	/**
@@ -368,7 +415,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return The number of advances the civilization owns worth the specified VP.
 	 */
 	private int getTechCountByVP(final int vp) {
-		return (int) this.techs.keySet().parallelStream().filter(t -> t.getVP() == vp).count();
+		return this.techCountByVP[vp];
 	}
 
 	/**
@@ -382,8 +429,8 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	public boolean passAstRequirements(final Age age) {
 		final AstRequirements reqs = Game.AGE_REQUIREMENTS.get(this.difficulty).get(age);
 		final int cityCount =
-				this.techs.containsKey(Technology.WONDER_OF_THE_WORLD) ? this.getCityCount() + 1 : this.getCityCount();
-		return cityCount >= reqs.getMinCities() && this.techs.size() >= reqs.getMinAdvances()
+				this.hasTech(Technology.WONDER_OF_THE_WORLD) ? this.getCityCount() + 1 : this.getCityCount();
+		return cityCount >= reqs.getMinCities() && this.getTechCount() >= reqs.getMinAdvances()
 				&& this.getTechCountByVP(1) >= reqs.getMinLevelOneTechs()
 				&& this.getTechCountByVP(3) + this.getTechCountByVP(6) >= reqs.getMinLevelTwoPlusTechs()
 				&& this.getTechCountByVP(6) >= reqs.getMinLevelThreeTechs()
@@ -412,7 +459,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 			return s;
 		}
 		if (reqs.getMinCities() > 0) {
-			final int cityCount = this.techs.containsKey(Technology.WONDER_OF_THE_WORLD) ? this.getCityCount()
+			final int cityCount = this.hasTech(Technology.WONDER_OF_THE_WORLD) ? this.getCityCount()
 					+ 1 : this.getCityCount();
 			final String colorName = cityCount >= reqs.getMinCities() ? "green" : "red";
 			final String iconName = cityCount >= reqs.getMinCities() ? "check" : "x";
@@ -421,8 +468,8 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 					+ "'>&nbsp;" + reqs.getMinCities() + " Cities</span><BR/>";
 		}
 		if (reqs.getMinAdvances() > 0) {
-			final String colorName = this.techs.size() >= reqs.getMinAdvances() ? "green" : "red";
-			final String iconName = this.techs.size() >= reqs.getMinAdvances() ? "check" : "x";
+			final String colorName = this.getTechCount() >= reqs.getMinAdvances() ? "green" : "red";
+			final String iconName = this.getTechCount() >= reqs.getMinAdvances() ? "check" : "x";
 			s = s + "<img height=\"10\" width=\"10\" align=\"bottom\" src=\""
 					+ GuiClient.class.getResource("images/" + iconName + ".png") + "\"> <span color='" + colorName
 					+ "'>&nbsp;" + reqs.getMinAdvances() + " Advances</span><BR/>";
@@ -535,7 +582,49 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 *            TODO
 	 */
 	public void addTech(final Technology newTech, final int round) {
-		this.techs.put(newTech, round);
+		this.techRounds[newTech.ordinal()] = (short) round;
+		if (!this.hasTech(newTech)) {
+			this.techMask |= 1L << newTech.ordinal();
+			this.countTech(newTech, 1);
+		}
+	}
+
+	/**
+	 * Add or remove an advance's contribution to the derived totals.
+	 *
+	 * @param tech
+	 *            The advance.
+	 * @param sign
+	 *            1 if the advance was gained, -1 if it was lost.
+	 */
+	private void countTech(final Technology tech, final int sign) {
+		this.techCountByVP[tech.getVP()] += sign;
+		this.vpFromTech += sign * tech.getVP();
+		final int typeRow = tech.ordinal() * Technology.TYPE_COUNT;
+		for (int type = 0; type < Technology.TYPE_COUNT; type++) {
+			this.typeCreditTotals[type] += sign * Technology.TYPE_CREDIT_TABLE[typeRow + type];
+		}
+		this.countChosenCredits(this.typeCredits.get(tech), sign);
+		final int techRow = tech.ordinal() * Technology.COUNT;
+		for (int target = 0; target < Technology.COUNT; target++) {
+			this.techCreditTotals[target] += sign * Technology.TECH_CREDIT_TABLE[techRow + target];
+		}
+	}
+
+	/**
+	 * Add or remove additional credits chosen for an owned advance from the Type credit totals.
+	 *
+	 * @param credits
+	 *            The chosen credits, or null if none.
+	 * @param sign
+	 *            1 to add them, -1 to remove them.
+	 */
+	private void countChosenCredits(final List<Technology.Type> credits, final int sign) {
+		if (credits != null) {
+			for (final Technology.Type type : credits) {
+				this.typeCreditTotals[type.ordinal()] += sign * Game.VP_PER_AST_STEP;
+			}
+		}
 	}
 
 	/**
@@ -547,14 +636,14 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 */
 	public ArrayList<Technology> undoTechPurchase(final int currentRound) {
 		final ArrayList<Technology> undoneTechs = new ArrayList<Technology>();
-		for (final Technology tech : Civilization.this.techs.keySet()) {
-			final Integer round = Civilization.this.techs.get(tech);
-			if (round == currentRound) {
-				undoneTechs.add(tech);
+		for (long mask = this.techMask; mask != 0; mask &= mask - 1) {
+			final int ordinal = Long.numberOfTrailingZeros(mask);
+			if (this.techRounds[ordinal] == currentRound) {
+				undoneTechs.add(Technology.fromOrdinal(ordinal));
 			}
 		}
 		for (final Technology tech : undoneTechs) {
-			this.techs.remove(tech);
+			this.removeTech(tech);
 		}
 		return undoneTechs;
 	}
@@ -586,15 +675,6 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 */
 	@Override
 	public Civilization clone() {
-		final HashMap<Technology, Integer> techs = new HashMap<Technology, Integer>() {
-			private static final long serialVersionUID = 577732084086917712L;
-
-			{
-				for (final Technology tech : Civilization.this.techs.keySet()) {
-					this.put(tech, Civilization.this.techs.get(tech));
-				}
-			}
-		};
 		final HashMap<Technology, ArrayList<Technology.Type>> extraTypeCredits =
 				new HashMap<Technology, ArrayList<Technology.Type>>() {
 					private static final long serialVersionUID = 1L;
@@ -604,7 +684,8 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 						}
 					}
 				};
-		return new Civilization(this.name, this.player, this.population, this.nCities, techs, this.smallGameCredits,
+		return new Civilization(this.name, this.player, this.population, this.nCities, this.getTechRounds(),
+				this.smallGameCredits,
 				extraTypeCredits, this.astPosition, this.difficulty, this.hasPurchased, this.lateIronBonus);
 	}
 
@@ -614,7 +695,45 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return A list of advances owned by this civilization.
 	 */
 	public ArrayList<Technology> getTechs() {
-		return new ArrayList<Technology>(this.techs.keySet());
+		final ArrayList<Technology> techs = new ArrayList<Technology>(this.getTechCount());
+		for (long mask = this.techMask; mask != 0; mask &= mask - 1) {
+			techs.add(Technology.fromOrdinal(Long.numberOfTrailingZeros(mask)));
+		}
+		return techs;
+	}
+
+	/**
+	 * Get the advances owned by this civilization as a bit mask, with bit n set if the advance with ordinal n is owned.
+	 * Owned advances can be visited without allocating by taking the lowest set bit until none are left.
+	 *
+	 * @return The bit mask of owned advances.
+	 */
+	public long getTechMask() {
+		return this.techMask;
+	}
+
+	/**
+	 * Get the number of advances owned by this civilization.
+	 *
+	 * @return The number of advances owned.
+	 */
+	public int getTechCount() {
+		return Long.bitCount(this.techMask);
+	}
+
+	/**
+	 * Get the round each owned advance was purchased in. This is the form advances are saved and sent in.
+	 *
+	 * @return A map from each owned advance to the round it was purchased in.
+	 */
+	@JsonProperty("techs")
+	private HashMap<Technology, Integer> getTechRounds() {
+		final HashMap<Technology, Integer> techs = new HashMap<Technology, Integer>();
+		for (long mask = this.techMask; mask != 0; mask &= mask - 1) {
+			final int ordinal = Long.numberOfTrailingZeros(mask);
+			techs.put(Technology.fromOrdinal(ordinal), (int) this.techRounds[ordinal]);
+		}
+		return techs;
 	}
 
 	/**
@@ -625,7 +744,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return Whether this civilization owns the given advance.
 	 */
 	public boolean hasTech(final Technology tech) {
-		return this.techs.containsKey(tech);
+		return ( this.techMask & 1L << tech.ordinal() ) != 0;
 	}
 
 	/**
@@ -656,13 +775,49 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return The cost for this civilization to purchase the given advance.
 	 */
 	public int getCost(final Technology tech) {
-		int cost = tech.getBaseCost();
+		final int[] typeCredits = new int[Technology.TYPE_COUNT];
+		for (final Technology.Type type : tech.getTypes()) {
+			typeCredits[type.ordinal()] = this.getTypeCredit(type);
+		}
+		return this.getCost(tech.ordinal(), typeCredits);
+	}
+
+	/**
+	 * Get the current cost for this civilization to purchase each advance, computed together. This is much cheaper
+	 * than calling {@link #getCost(Technology)} for every advance.
+	 *
+	 * @return The cost of each advance, indexed by ordinal. Owned advances are included.
+	 */
+	public int[] getCosts() {
+		final int[] typeCredits = new int[Technology.TYPE_COUNT];
+		for (final Technology.Type type : TYPES) {
+			typeCredits[type.ordinal()] = this.getTypeCredit(type);
+		}
+		final int[] costs = new int[Technology.COUNT];
+		for (int tech = 0; tech < Technology.COUNT; tech++) {
+			costs[tech] = this.getCost(tech, typeCredits);
+		}
+		return costs;
+	}
 
+	/**
+	 * Get the cost of an advance given the credits towards each type.
+	 *
+	 * @param tech
+	 *            The advance's ordinal.
+	 * @param typeCredits
+	 *            The credits towards each type, by ordinal; only the advance's own types are used.
+	 * @return The cost of the advance.
+	 */
+	private int getCost(final int tech, final int[] typeCredits) {
 		// Reduce the cost by the maximum type discount.
-		cost = cost - tech.getTypes().stream().mapToInt(t -> this.getTypeCredit(t)).max().orElse(0);
+		int typeCredit = 0;
+		for (int types = Technology.TYPE_MASKS[tech]; types != 0; types &= types - 1) {
+			typeCredit = Math.max(typeCredit, typeCredits[Integer.numberOfTrailingZeros(types)]);
+		}
 
 		// Apply any additional credit based on the specific advance.
-		cost = cost - this.getTechs().parallelStream().mapToInt(t -> t.getTechCredit(tech)).sum();
+		final int cost = Technology.fromOrdinal(tech).getBaseCost() - typeCredit - this.techCreditTotals[tech];
 
 		// If the cost is negative, return 0 instead.
 		return Math.max(cost, 0);
@@ -678,17 +833,8 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return The number of credits for the specified type.
 	 */
 	public int getTypeCredit(final Technology.Type type) {
-		// Start with game-start credits
-		int credit = this.smallGameCredits.get(type);
-
-		// Add credits from each advance
-		credit = credit + this.techs.keySet().parallelStream().mapToInt(t -> t.getTypeCredit(type)).sum();
-
-		// Add additional credits chosen for Monument and Written Record
-		credit = credit + this.typeCredits.keySet().stream().filter(t -> this.hasTech(t))
-				.mapToInt(t -> Collections.frequency(this.typeCredits.get(t), type)).sum() * Game.VP_PER_AST_STEP;
-
-		return credit;
+		// Game-start credits, plus credits from each advance and those chosen for Monument and Written Record
+		return this.smallGameCredits.get(type) + this.typeCreditTotals[type.ordinal()];
 	}
 
 	/**
@@ -713,7 +859,11 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 *            A list of the type credits chosen (worth 5 each).
 	 */
 	public void addTypeCredits(final Technology tech, final ArrayList<Technology.Type> newCredits) {
-		this.typeCredits.put(tech, newCredits);
+		final ArrayList<Technology.Type> oldCredits = this.typeCredits.put(tech, newCredits);
+		if (this.hasTech(tech)) {
+			this.countChosenCredits(oldCredits, -1);
+			this.countChosenCredits(newCredits, 1);
+		}
 	}
 
 	/**
@@ -911,7 +1061,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return The number of victory points.
 	 */
 	public int getVPfromTech() {
-		return this.techs.keySet().stream().mapToInt(t -> t.getVP()).sum();
+		return this.vpFromTech;
 	}
 
 	/**
@@ -968,7 +1118,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		s = s + "Current AST Step: " + this.astPosition + "(" + this.getCurrentAge() + ")\n";
 		s = s + "Next Step Age: " + this.getNextStepAge() + "\n";
 		s = s + "Cities: " + this.nCities + " Population: " + this.population + "\n";
-		s = s + "Advances:" + this.techs + "</html>";
+		s = s + "Advances:" + this.getTechRounds() + "</html>";
 		return s;
 	}
 
@@ -1198,37 +1348,45 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		}
 	}
 
+	/**
+	 * Compares advances by base cost, or by a civilization's cost as it was when the comparator was created.
+	 */
 	public final static class techCostComparator implements Comparator<Technology> {
-		private final Civilization civ;
+		private final int[] costs;
 
 		public techCostComparator(final Civilization civ) {
-			this.civ = civ;
+			this.costs = civ != null ? civ.getCosts() : null;
 		}
 
 		@Override
 		public int compare(final Technology list1, final Technology list2) {
-			if (this.civ == null) {
+			if (this.costs == null) {
 				return Integer.compare(list1.getBaseCost(), list2.getBaseCost());
 			} else {
-				return Integer.compare(this.civ.getCost(list1), this.civ.getCost(list2));
+				return Integer.compare(this.costs[list1.ordinal()], this.costs[list2.ordinal()]);
 			}
 		}
 	}
 
+	/**
+	 * Compares lists of advances by total base cost, or by a civilization's total cost as it was when the comparator
+	 * was created.
+	 */
 	public final static class totalTechCostComparator implements Comparator<List<Technology>> {
-		private final Civilization civ;
+		private final int[] costs;
 
 		public totalTechCostComparator(final Civilization civ) {
-			this.civ = civ;
+			this.costs = civ != null ? civ.getCosts() : null;
 		}
 
 		@Override
 		public int compare(final List<Technology> list1, final List<Technology> list2) {
-			if (this.civ == null) {
+			if (this.costs == null) {
 				return Integer.compare(list1.stream().mapToInt(t -> t.getBaseCost()).sum(),
 						list2.stream().mapToInt(t -> t.getBaseCost()).sum());
 			} else {
-				return Integer.compare(this.civ.getTotalCost(list1), this.civ.getTotalCost(list2));
+				return Integer.compare(Civilization.getTotalCost(list1, this.costs),
+						Civilization.getTotalCost(list2, this.costs));
 			}
 		}
 	}
@@ -1246,7 +1404,11 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @param tech
 	 */
 	public void removeTech(final Technology tech) {
-		this.techs.remove(tech);
+		if (this.hasTech(tech)) {
+			this.techMask &= ~( 1L << tech.ordinal() );
+			this.techRounds[tech.ordinal()] = 0;
+			this.countTech(tech, -1);
+		}
 	}
 
 	/**
@@ -1257,16 +1419,29 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return Total cost to purchase all technologies in list, applying all appropriate discounts
 	 */
 	public int getTotalCost(final List<Technology> techList) {
+		return Civilization.getTotalCost(techList, this.getCosts());
+	}
+
+	/**
+	 * Determines the cost to purchase all technologies in a given list
+	 *
+	 * @param techList
+	 *            List of technologies to purchase
+	 * @param costs
+	 *            Cost of each technology by ordinal, from {@link #getCosts()}
+	 * @return Total cost to purchase all technologies in list, applying all appropriate discounts
+	 */
+	private static int getTotalCost(final List<Technology> techList, final int[] costs) {
 
 		final ArrayList<Technology> techCopy = new ArrayList<Technology>(techList);
 
 		/*
-		 * If Anatomy is in the list, remove the most expensive tier 1 technology from the list so its cost is not
-		 * included in the title (it is free).
+		 * If Anatomy is in the list, remove the most expensive tier 1 science technology from the list so its cost is
+		 * not included in the title (it is free).
 		 */
 		if (techList.contains(Technology.ANATOMY)) {
-			final Technology freeTech = techList.parallelStream().filter(t -> t.getBaseCost() < 100)
-					.collect(Collectors.maxBy(new techCostComparator(this))).orElse(null);
+			final Technology freeTech = techList.stream().filter(Civilization::isAnatomyChoice)
+					.max(Comparator.comparingInt(t -> costs[t.ordinal()])).orElse(null);
 			if (freeTech != null) {
 				techCopy.remove(freeTech);
 			}
@@ -1279,7 +1454,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		int discount = 0;
 		if (techList.contains(Technology.LIBRARY)) {
 			techCopy.remove(Technology.LIBRARY);
-			discount = Math.min(40, techCopy.stream().mapToInt(t -> this.getCost(t)).max().orElse(0));
+			discount = Math.min(LIBRARY_DISCOUNT, techCopy.stream().mapToInt(t -> costs[t.ordinal()]).max().orElse(0));
 			techCopy.add(Technology.LIBRARY);
 		}
 
@@ -1287,7 +1462,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		 * Add up the cost of all technologies (except the free one for Anatomy, if applicable) and then reduce the cost
 		 * by the Library discount (if applicable)
 		 */
-		final int cost = techCopy.stream().mapToInt(t -> this.getCost(t)).sum() - discount;
+		final int cost = techCopy.stream().mapToInt(t -> costs[t.ordinal()]).sum() - discount;
 
 		return cost;
 	}
@@ -1304,7 +1479,60 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		return getOptimalTechsPerm(budget);
 		*/
 
+		/* Legacy call to knapsack solution, re-run for each discount
 		return getOptimalCheckDiscounted(budget);
+		*/
+
+		return getOptimalTechsExact(budget);
+	}
+
+	// Credit Library gives towards one other advance bought with it
+	static final int	LIBRARY_DISCOUNT	= 40;
+
+	/**
+	 * Returns the optimal tech purchase, in terms of maximizing VP, for a given budget. Ties are broken by lowest cost.
+	 *
+	 * Every way of using Library's discount and Anatomy's free advance is considered, so the result is exact, unlike
+	 * {@link #getOptimalCheckDiscounted(int)}, which fixes Anatomy's choice in advance.
+	 *
+	 * @param budget
+	 *            Amount of money available to spend
+	 * @return List of technologies worth the most VP at the lowest cost
+	 */
+	public List<Technology> getOptimalTechsExact(final int budget) {
+		return this.getPurchaseFrontier().getOptimalTechs(budget);
+	}
+
+	/**
+	 * Get the optimal tech purchase for every budget at once. The result is cached until this civilization's advances
+	 * or credits change, so asking again, or for another budget, costs nothing.
+	 *
+	 * @return The best purchases for each budget.
+	 */
+	public PurchaseFrontier getPurchaseFrontier() {
+		return PurchaseFrontier.of(this);
+	}
+
+	/**
+	 * Get the optimal tech purchase for every budget only if it has already been computed for this civilization's
+	 * current advances and credits.
+	 *
+	 * @return The best purchases for each budget, or null if they would have to be computed.
+	 */
+	public PurchaseFrontier getCachedPurchaseFrontier() {
+		return PurchaseFrontier.cached(this);
+	}
+
+	/**
+	 * Determine whether an advance can be taken free with {@link Technology#ANATOMY Anatomy}: a science advance with
+	 * a base cost under 100.
+	 *
+	 * @param tech
+	 *            The advance.
+	 * @return Whether Anatomy can make the advance free.
+	 */
+	static boolean isAnatomyChoice(final Technology tech) {
+		return tech.getVP() == 1 && tech.getTypes().contains(Technology.Type.SCIENCE);
 	}
 
 	/**
@@ -1384,8 +1612,8 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 
 		List<Technology> optimalTechs = new ArrayList<Technology>();
 
-		final int maxCost =
-				availableTechs.parallelStream().mapToInt(t -> this.getCost(t)).max().orElse(Integer.MAX_VALUE);
+		final int[] costs = this.getCosts();
+		final int maxCost = availableTechs.stream().mapToInt(t -> costs[t.ordinal()]).max().orElse(Integer.MAX_VALUE);
 		final long startTime = System.nanoTime();
 		for (int vp = ( budget / maxCost ) * 6 + 1; vp <= availableTechs.size(); vp++) {
 			final long loopStartTime = System.nanoTime();
@@ -1420,6 +1648,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 	 * @return List of technologies worth the most VP at the lowest cost
 	 */
 	public List<Technology> getOptimalCheckDiscounted(int budget) {
+		final int[] techCosts = this.getCosts();
 		ArrayList<Technology> availableTechs = new ArrayList<Technology>(EnumSet.allOf(Technology.class));
 		availableTechs.removeAll(this.getTechs());
 		
@@ -1429,18 +1658,18 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		
 		System.out.println("Simple approach");
 		List<Technology> bestOption = getOptimalTechsKS(budget, availableTechs, 
-				availableTechs.stream().mapToInt(t -> this.getCost(t)).boxed().collect(Collectors.toList()));
+				availableTechs.stream().mapToInt(t -> techCosts[t.ordinal()]).boxed().collect(Collectors.toList()));
 		int bestVP = bestOption.stream().mapToInt(t -> t.getVP()).sum();
-		int bestCost = this.getTotalCost(bestOption);
+		int bestCost = Civilization.getTotalCost(bestOption, techCosts);
 		System.out.println("VP: " + bestVP + " Cost: " + bestCost);
 
-		int libraryCost = this.getCost(Technology.LIBRARY);
-		int anatomyCost = this.getCost(Technology.ANATOMY);
+		int libraryCost = techCosts[Technology.LIBRARY.ordinal()];
+		int anatomyCost = techCosts[Technology.ANATOMY.ordinal()];
 		
 		// Try with Library
 		if (!this.hasTech(Technology.LIBRARY) && libraryCost <= budget) {
 			System.out.println("Library discount");
-			List<Integer> costs = availableTechs.stream().mapToInt(t -> this.getCost(t)).boxed().collect(Collectors.toList());
+			List<Integer> costs = availableTechs.stream().mapToInt(t -> techCosts[t.ordinal()]).boxed().collect(Collectors.toList());
 			
 			// Find best tech to discount by trying them all
 			for (int i = 0; i < availableTechs.size(); i++) {
@@ -1451,7 +1680,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 				List<Technology> testOption = getOptimalTechsKS(budget - libraryCost, availableTechs, costs);
 				testOption.add(Technology.LIBRARY);
 				int testVP = testOption.stream().mapToInt(t -> t.getVP()).sum();
-				int testCost = this.getTotalCost(testOption);
+				int testCost = Civilization.getTotalCost(testOption, techCosts);
 				System.out.println("VP: " + testVP + " Cost: " + testCost);
 				if (testVP > bestVP || (testVP == bestVP && testCost < bestCost)) {
 					bestOption = testOption;
@@ -1461,15 +1690,15 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 				}
 				
 				// reset weight
-				costs.set(i, this.getCost(availableTechs.get(i)));
+				costs.set(i, techCosts[availableTechs.get(i).ordinal()]);
 			}
 		}
 		
 		// Try with Anatomy
 		if (!this.hasTech(Technology.ANATOMY) && anatomyCost <= budget) {
 			System.out.println("Anatomy discount");
-			availableTechs.sort((Technology t1, Technology t2)->this.getCost(t2)-this.getCost(t1)); // sort most expensive to least expensive
-			List<Integer> costs = availableTechs.stream().mapToInt(t -> this.getCost(t)).boxed().collect(Collectors.toList());
+			availableTechs.sort((Technology t1, Technology t2)->techCosts[t2.ordinal()]-techCosts[t1.ordinal()]); // sort most expensive to least expensive
+			List<Integer> costs = availableTechs.stream().mapToInt(t -> techCosts[t.ordinal()]).boxed().collect(Collectors.toList());
 			
 			// Find a tech to discount, if possible (will choose first, so most expensive)
 			for (int i = 0; i < availableTechs.size(); i++) {
@@ -1483,7 +1712,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 			List<Technology> testOption = getOptimalTechsKS(budget - anatomyCost, availableTechs, costs);
 			testOption.add(Technology.ANATOMY);
 			int testVP = testOption.stream().mapToInt(t -> t.getVP()).sum();
-			int testCost = this.getTotalCost(testOption);
+			int testCost = Civilization.getTotalCost(testOption, techCosts);
 			System.out.println("VP: " + testVP + " Cost: " + testCost);
 			if (testVP > bestVP || (testVP == bestVP && testCost < bestCost)) {
 				bestOption = testOption;
@@ -1496,8 +1725,8 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 		// Try with both
 		if (!this.hasTech(Technology.LIBRARY) && !this.hasTech(Technology.ANATOMY) && libraryCost + anatomyCost <= budget) {
 			System.out.println("Library+Anatomy discount");
-			availableTechs.sort((Technology t1, Technology t2)->this.getCost(t2)-this.getCost(t1)); // sort most expensive to least expensive
-			List<Integer> costs = availableTechs.stream().mapToInt(t -> this.getCost(t)).boxed().collect(Collectors.toList());
+			availableTechs.sort((Technology t1, Technology t2)->techCosts[t2.ordinal()]-techCosts[t1.ordinal()]); // sort most expensive to least expensive
+			List<Integer> costs = availableTechs.stream().mapToInt(t -> techCosts[t.ordinal()]).boxed().collect(Collectors.toList());
 			
 			int discountedIdx = -1;
 			
@@ -1523,7 +1752,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 					testOption.add(Technology.LIBRARY);
 					testOption.add(Technology.ANATOMY);
 					int testVP = testOption.stream().mapToInt(t -> t.getVP()).sum();
-					int testCost = this.getTotalCost(testOption);
+					int testCost = Civilization.getTotalCost(testOption, techCosts);
 					System.out.println("VP: " + testVP + " Cost: " + testCost);
 					if (testVP > bestVP || (testVP == bestVP && testCost < bestCost)) {
 						bestOption = testOption;
@@ -1533,7 +1762,7 @@ public class Civilization implements Serializable, Comparable<Civilization> {
 					}
 					
 					// Reset weight
-					costs.set(i, this.getCost(availableTechs.get(i)));
+					costs.set(i, techCosts[availableTechs.get(i).ordinal()]);
 				}
 			}
 		}
@@ -30,6 +30,7 @@ import net.bubbaland.megaciv.game.Civilization.AstTableData;
 import net.bubbaland.megaciv.game.Civilization.Name;
 import net.bubbaland.megaciv.game.Civilization.Region;
 import net.bubbaland.megaciv.game.Civilization.SortDirection;
+import net.bubbaland.megaciv.messages.GameDeltaMessage;
 
 /**
  * Primary class for game data. All data necessary to represent the game state is held within an instance of this class.
@@ -108,32 +109,127 @@ public class Game implements Serializable {
 	@JsonProperty("region")
 	private Region							region;
 
-	@JsonProperty("gameLog")
-	private final ArrayList<GameEvent>		gameLog;
+	// Number of events logged in this game. The events themselves are kept by the server and fetched by clients a page
+	// at a time, so they aren't sent with the game.
+	@JsonProperty("logLength")
+	private int								logLength;
+
+	// Events read from or to be written to a save file
+	@JsonIgnore
+	private final ArrayList<GameEvent>		savedLog;
+
+	/**
+	 * Version of the game state, incremented by the server each time a change is published. Clients use this to
+	 * determine whether a {@link GameDeltaMessage} can be applied to their copy of the game.
+	 */
+	@JsonProperty("version")
+	private long							version;
 
 	public Game() {
-		this(null, new ArrayList<Civilization>(), null, 1, Integer.MAX_VALUE, new ArrayList<GameEvent>());
+		this(null, new ArrayList<Civilization>(), null, 1, Integer.MAX_VALUE, new ArrayList<GameEvent>(), 0, 0);
 	}
 
+	/**
+	 * Create a game. Games sent before the log was kept separately include the events themselves; they are kept as the
+	 * saved log.
+	 */
 	@JsonCreator
 	public Game(@JsonProperty("region") final Region region, @JsonProperty("civs") final ArrayList<Civilization> civs,
 			@JsonProperty("difficulty") final Difficulty difficulty,
 			@JsonProperty("currentRound") final int currentRound, @JsonProperty("lastRound") final int lastRound,
-			@JsonProperty("gameLog") final ArrayList<GameEvent> gameLog) {
+			@JsonProperty("gameLog") final ArrayList<GameEvent> gameLog, @JsonProperty("version") final long version,
+			@JsonProperty("logLength") final int logLength) {
 		this.region = region;
 		this.civs = civs;
 		this.currentRound = currentRound;
 		this.lastRound = lastRound;
 		this.difficulty = difficulty;
-		this.gameLog = gameLog;
+		this.savedLog = gameLog != null ? gameLog : new ArrayList<GameEvent>();
+		this.logLength = Math.max(logLength, this.savedLog.size());
+		this.version = version;
 	}
 
+	/**
+	 * Get the version of this game state.
+	 *
+	 * @return The version number.
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Set the version of this game state. Used by the server when a new game replaces an old one so versions stay
+	 * monotonic.
+	 *
+	 * @param version
+	 *            The new version number.
+	 */
+	public void setVersion(final long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Increment the version of this game state.
+	 *
+	 * @return The new version number.
+	 */
+	public synchronized long nextVersion() {
+		return ++this.version;
+	}
+
+	/**
+	 * Apply a set of changes published by the server to this game.
+	 *
+	 * @param delta
+	 *            The changes to apply.
+	 * @return false if the delta is not based on this version of the game (i.e. an update was missed and a full copy
+	 *         of the game is needed), true otherwise.
+	 */
+	public synchronized boolean applyDelta(final GameDeltaMessage delta) {
+		if (delta.getVersion() <= this.version) {
+			// Already have this update
+			return true;
+		}
+		if (delta.getBaseVersion() != this.version) {
+			return false;
+		}
+		for (final Civilization.Name name : delta.getRetiredCivs()) {
+			this.retireCivilization(name);
+		}
+		for (final Civilization civ : delta.getCivs()) {
+			this.setCivilization(civ);
+		}
+		this.currentRound = delta.getCurrentRound();
+		this.lastRound = delta.getLastRound();
+		this.region = delta.getRegion();
+		this.difficulty = delta.getDifficulty();
+		this.logLength = delta.getLogLength();
+		this.version = delta.getVersion();
+		return true;
+	}
+
+	/**
+	 * Get the events read from or to be written to a save file. This is empty for a game received from the server;
+	 * the server's log is read with {@link net.bubbaland.megaciv.messages.GameLogRequestMessage}.
+	 *
+	 * @return The saved events, oldest first.
+	 */
 	public ArrayList<GameEvent> getLog() {
-		return this.gameLog;
+		return this.savedLog;
+	}
+
+	/**
+	 * Get the number of events logged in this game.
+	 *
+	 * @return The length of the log.
+	 */
+	public int getLogLength() {
+		return this.logLength;
 	}
 
-	public void logEvent(final GameEvent event) {
-		this.gameLog.add(event);
+	public void setLogLength(final int logLength) {
+		this.logLength = logLength;
 	}
 
 	public void setRegion(final Region region) {
@@ -178,6 +274,19 @@ public class Game implements Serializable {
 		return Math.min(this.currentRound, this.lastRound);
 	}
 
+	/**
+	 * Get the round counter without clamping to the last round.
+	 *
+	 * @return The raw round counter.
+	 */
+	public int getRoundCounter() {
+		return this.currentRound;
+	}
+
+	public int getLastRound() {
+		return this.lastRound;
+	}
+
 	public void addCivilization(final Civilization.Name name) {
 		final Civilization civ = new Civilization(name, this.difficulty);
 		this.civs.add(civ);
@@ -11,7 +11,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 public class GameEvent {
 
 	public enum EventType {
-		USER_CONNECT, GAME_START, CENSUS, CITY_COUNT, STOPWATCH, AST, TECH_PURCHASE, CIV_EDIT, KEEPALIVE
+		USER_CONNECT, GAME_START, CENSUS, CITY_COUNT, STOPWATCH, AST, TECH_PURCHASE, CIV_EDIT, KEEPALIVE, RESYNC,
+		LOG_REQUEST
 	};
 
 	@JsonProperty("type")
@@ -32,7 +33,7 @@ public class GameEvent {
 	}
 
 	@JsonCreator
-	private GameEvent(@JsonProperty("timestamp") final Instant timestamp, @JsonProperty("type") final EventType type,
+	public GameEvent(@JsonProperty("timestamp") final Instant timestamp, @JsonProperty("type") final EventType type,
 			@JsonProperty("user") final User user, @JsonProperty("message") final String message) {
 		this.timestamp = timestamp;
 		this.type = type;
@@ -0,0 +1,328 @@
+package net.bubbaland.megaciv.game;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The best purchase of advances for every budget, given the advances a civilization holds and what each would cost it.
+ *
+ * The purchases form a Pareto frontier: a list of points in order of cost, each being the cheapest purchase worth more
+ * VP than any cheaper one. The best purchase for a budget is the last point that fits in it, so once the frontier has
+ * been computed, any budget is answered without running the optimizer again.
+ *
+ * Frontiers are cached by the owned advances and their costs, which together determine the result, so a frontier is
+ * only recomputed when a civilization's holdings or credits change.
+ */
+public final class PurchaseFrontier {
+
+	// Number of frontiers kept, most recently used first
+	private static final int										CACHE_SIZE			= 32;
+
+	private static final LinkedHashMap<Key, PurchaseFrontier>		CACHE				=
+			new LinkedHashMap<Key, PurchaseFrontier>(CACHE_SIZE, 0.75f, true) {
+				private static final long serialVersionUID = -2520318385946358722L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<Key, PurchaseFrontier> eldest) {
+					return this.size() > CACHE_SIZE;
+				}
+			};
+
+	/*
+	 * States of the optimizer, as bits: whether Library has been bought and its discount given to an advance, and
+	 * whether Anatomy has been bought and an advance taken free with it. A discount may be given before the advance
+	 * granting it is reached, so only final states where each discount's advance was also bought are valid.
+	 */
+	private static final int										LIBRARY_BOUGHT		= 1;
+	private static final int										LIBRARY_DISCOUNTED	= 2;
+	private static final int										ANATOMY_BOUGHT		= 4;
+	private static final int										ANATOMY_FREE		= 8;
+	private static final int										STATES				= 16;
+
+	// How the optimizer takes each advance, in two bits per state and cost
+	private static final int										SKIPPED				= 0;
+	private static final int										FULL_PRICE			= 1;
+	private static final int										DISCOUNTED			= 2;
+	private static final int										FREE				= 3;
+
+	// The points of the frontier, in order of cost
+	private final int[]												costs;
+	private final int[]												vps;
+	private final List<List<Technology>>							purchases;
+
+	/**
+	 * Get the frontier for a civilization's current holdings, computing it if it isn't cached.
+	 *
+	 * @param civ
+	 *            The civilization.
+	 * @return The frontier.
+	 */
+	static PurchaseFrontier of(final Civilization civ) {
+		final Key key = new Key(civ.getTechMask(), civ.getCosts());
+		synchronized (CACHE) {
+			final PurchaseFrontier frontier = CACHE.get(key);
+			if (frontier != null) {
+				return frontier;
+			}
+		}
+		final PurchaseFrontier frontier = new PurchaseFrontier(key.techMask, key.costs);
+		synchronized (CACHE) {
+			CACHE.put(key, frontier);
+		}
+		return frontier;
+	}
+
+	/**
+	 * Get the frontier for a civilization's current holdings only if it is already cached, so it can be asked for
+	 * where the optimizer mustn't run, such as on the event dispatch thread.
+	 *
+	 * @param civ
+	 *            The civilization.
+	 * @return The frontier, or null if it hasn't been computed.
+	 */
+	static PurchaseFrontier cached(final Civilization civ) {
+		final Key key = new Key(civ.getTechMask(), civ.getCosts());
+		synchronized (CACHE) {
+			return CACHE.get(key);
+		}
+	}
+
+	/**
+	 * Compute the frontier.
+	 *
+	 * A single 0-1 knapsack over all available advances, whose state also records the use of Library's discount and
+	 * Anatomy's free advance, so every way of using them is considered at once. The table is kept for one advance at a
+	 * time, with each cell's choice recorded in two bits for tracing back the purchases. It covers every cost up to
+	 * that of buying everything, so the frontier answers any budget.
+	 *
+	 * @param techMask
+	 *            The advances already owned, as from {@link Civilization#getTechMask()}.
+	 * @param techCosts
+	 *            The cost of each advance, as from {@link Civilization#getCosts()}.
+	 */
+	private PurchaseFrontier(final long techMask, final int[] techCosts) {
+		final Technology[] available = new Technology[Technology.COUNT - Long.bitCount(techMask)];
+		// Costs are counted in the largest unit that divides them all, which keeps the table small
+		int unit = Civilization.LIBRARY_DISCOUNT;
+		int n = 0;
+		int totalCost = 0;
+		for (int tech = 0; tech < Technology.COUNT; tech++) {
+			if (( techMask & 1L << tech ) == 0) {
+				available[n++] = Technology.fromOrdinal(tech);
+				unit = PurchaseFrontier.gcd(unit, techCosts[tech]);
+				totalCost += techCosts[tech];
+			}
+		}
+		final int width = totalCost / unit + 1;
+
+		// Most VP for each state and exact cost among the advances so far, or -1 if impossible
+		int[] vp = new int[STATES * width];
+		int[] nextVp = new int[STATES * width];
+		Arrays.fill(vp, -1);
+		vp[0] = 0;
+		final long[][] choices = new long[n][( STATES * width * 2 + 63 ) / 64];
+
+		for (int i = 0; i < n; i++) {
+			final Technology tech = available[i];
+			final int techVp = tech.getVP();
+			final int fullCost = techCosts[tech.ordinal()] / unit;
+			final int discountedCost = PurchaseFrontier.discountedCost(techCosts[tech.ordinal()]) / unit;
+			final int bought = PurchaseFrontier.boughtState(tech);
+			final boolean canDiscount = tech != Technology.LIBRARY;
+			final boolean canBeFree = Civilization.isAnatomyChoice(tech);
+			final long[] choice = choices[i];
+
+			System.arraycopy(vp, 0, nextVp, 0, vp.length);
+			for (int state = 0; state < STATES; state++) {
+				for (int cost = 0; cost < width; cost++) {
+					final int value = vp[state * width + cost];
+					if (value < 0) {
+						continue;
+					}
+					PurchaseFrontier.relax(nextVp, choice, width, state | bought, cost + fullCost, value + techVp,
+							FULL_PRICE);
+					if (canDiscount && ( state & LIBRARY_DISCOUNTED ) == 0) {
+						PurchaseFrontier.relax(nextVp, choice, width, state | bought | LIBRARY_DISCOUNTED,
+								cost + discountedCost, value + techVp, DISCOUNTED);
+					}
+					if (canBeFree && ( state & ANATOMY_FREE ) == 0) {
+						PurchaseFrontier.relax(nextVp, choice, width, state | ANATOMY_FREE, cost, value + techVp,
+								FREE);
+					}
+				}
+			}
+			final int[] swap = vp;
+			vp = nextVp;
+			nextVp = swap;
+		}
+
+		// Sweep costs upwards, adding a point whenever some valid state is worth more than every cheaper purchase
+		final ArrayList<Integer> pointCosts = new ArrayList<Integer>();
+		final ArrayList<Integer> pointVps = new ArrayList<Integer>();
+		this.purchases = new ArrayList<List<Technology>>();
+		int bestVp = -1;
+		for (int cost = 0; cost < width; cost++) {
+			int bestState = -1;
+			for (int state = 0; state < STATES; state++) {
+				if (PurchaseFrontier.isValid(state) && vp[state * width + cost] > bestVp) {
+					bestVp = vp[state * width + cost];
+					bestState = state;
+				}
+			}
+			if (bestState >= 0) {
+				pointCosts.add(cost * unit);
+				pointVps.add(bestVp);
+				this.purchases.add(PurchaseFrontier.trace(available, choices, techCosts, unit, width, bestState, cost));
+			}
+		}
+		this.costs = pointCosts.stream().mapToInt(Integer::intValue).toArray();
+		this.vps = pointVps.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Get the purchase worth the most VP for a budget, at the lowest cost.
+	 *
+	 * @param budget
+	 *            Amount of money available to spend
+	 * @return List of technologies worth the most VP at the lowest cost
+	 */
+	public List<Technology> getOptimalTechs(final int budget) {
+		// Index of the last point that fits in the budget
+		int point = Arrays.binarySearch(this.costs, budget);
+		if (point < 0) {
+			point = -point - 2;
+		}
+		return point >= 0 ? new ArrayList<Technology>(this.purchases.get(point)) : new ArrayList<Technology>();
+	}
+
+	/**
+	 * Get the number of points on the frontier.
+	 *
+	 * @return The number of points.
+	 */
+	public int size() {
+		return this.costs.length;
+	}
+
+	/**
+	 * Get the cost of a point on the frontier.
+	 *
+	 * @param point
+	 *            The point's index, in order of cost.
+	 * @return The cost of the point's purchase.
+	 */
+	public int getCost(final int point) {
+		return this.costs[point];
+	}
+
+	/**
+	 * Get the VP of a point on the frontier.
+	 *
+	 * @param point
+	 *            The point's index, in order of cost.
+	 * @return The VP of the point's purchase.
+	 */
+	public int getVP(final int point) {
+		return this.vps[point];
+	}
+
+	/**
+	 * Follow the recorded choices back from the last advance to find the purchase that reached a state and cost.
+	 */
+	private static List<Technology> trace(final Technology[] available, final long[][] choices, final int[] techCosts,
+			final int unit, final int width, final int finalState, final int finalCost) {
+		final List<Technology> purchase = new ArrayList<Technology>();
+		int state = finalState;
+		int cost = finalCost;
+		for (int i = available.length - 1; i >= 0; i--) {
+			final Technology tech = available[i];
+			final int cell = state * width + cost;
+			switch ((int) ( choices[i][cell * 2 / 64] >>> cell * 2 % 64 ) & 3) {
+				case FULL_PRICE:
+					state &= ~PurchaseFrontier.boughtState(tech);
+					cost -= techCosts[tech.ordinal()] / unit;
+					break;
+				case DISCOUNTED:
+					state &= ~( PurchaseFrontier.boughtState(tech) | LIBRARY_DISCOUNTED );
+					cost -= PurchaseFrontier.discountedCost(techCosts[tech.ordinal()]) / unit;
+					break;
+				case FREE:
+					state &= ~ANATOMY_FREE;
+					break;
+				case SKIPPED:
+					continue;
+			}
+			purchase.add(tech);
+		}
+		return purchase;
+	}
+
+	/**
+	 * Record a way of reaching a state and cost, if it gives more VP than any found so far.
+	 */
+	private static void relax(final int[] vp, final long[] choice, final int width, final int state, final int cost,
+			final int value, final int how) {
+		if (cost >= width) {
+			return;
+		}
+		final int cell = state * width + cost;
+		if (value > vp[cell]) {
+			vp[cell] = value;
+			final int shift = cell * 2 % 64;
+			choice[cell * 2 / 64] = choice[cell * 2 / 64] & ~( 3L << shift ) | (long) how << shift;
+		}
+	}
+
+	/**
+	 * Determine whether a final state is valid: each discount used was granted by an advance that was bought.
+	 */
+	private static boolean isValid(final int state) {
+		return ( ( state & LIBRARY_DISCOUNTED ) == 0 || ( state & LIBRARY_BOUGHT ) != 0 )
+				&& ( ( state & ANATOMY_FREE ) == 0 || ( state & ANATOMY_BOUGHT ) != 0 );
+	}
+
+	/**
+	 * Get the state bit set by buying an advance.
+	 */
+	private static int boughtState(final Technology tech) {
+		return tech == Technology.LIBRARY ? LIBRARY_BOUGHT : tech == Technology.ANATOMY ? ANATOMY_BOUGHT : 0;
+	}
+
+	private static int discountedCost(final int cost) {
+		return Math.max(cost - Civilization.LIBRARY_DISCOUNT, 0);
+	}
+
+	private static int gcd(final int a, final int b) {
+		return b == 0 ? a : PurchaseFrontier.gcd(b, a % b);
+	}
+
+	/**
+	 * What a frontier depends on: the advances owned, and the cost of each.
+	 */
+	private static final class Key {
+		private final long	techMask;
+		private final int[]	costs;
+
+		private Key(final long techMask, final int[] costs) {
+			this.techMask = techMask;
+			this.costs = costs;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!( other instanceof Key )) {
+				return false;
+			}
+			return this.techMask == ( (Key) other ).techMask && Arrays.equals(this.costs, ( (Key) other ).costs);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(this.techMask) * 31 + Arrays.hashCode(this.costs);
+		}
+	}
+
+}
@@ -873,27 +873,45 @@ public enum Technology {
 
 	};
 
+	/**
+	 * Compares advances by base cost, or by a civilization's cost as it was when the comparator was created. A null
+	 * civilization also compares by base cost.
+	 */
 	public final static class techCostComparator implements Comparator<Technology> {
-		private final Civilization civ;
+		private final int[] costs;
 
 		public techCostComparator() {
-			this.civ = null;
+			this.costs = null;
 		}
 
 		public techCostComparator(final Civilization civ) {
-			this.civ = civ;
+			this.costs = civ != null ? civ.getCosts() : null;
 		}
 
 		@Override
 		public int compare(final Technology tech1, final Technology tech2) {
-			if (this.civ == null) {
+			if (this.costs == null) {
 				return Integer.compare(tech1.baseCost, tech2.baseCost);
 			} else {
-				return Integer.compare(this.civ.getCost(tech1), this.civ.getCost(tech2));
+				return Integer.compare(this.costs[tech1.ordinal()], this.costs[tech2.ordinal()]);
 			}
 		}
 	}
 
+	// Every advance by ordinal, so looking one up doesn't copy values()
+	private final static Technology[] VALUES = Technology.values();
+
+	/**
+	 * Get the advance with the given ordinal.
+	 *
+	 * @param ordinal
+	 *            The ordinal.
+	 * @return The advance.
+	 */
+	public static Technology fromOrdinal(final int ordinal) {
+		return VALUES[ordinal];
+	}
+
 	private final static HashMap<Technology, HashMap<Technology, Integer>> TECH_CREDITS;
 	static {
 		TECH_CREDITS = new HashMap<Technology, HashMap<Technology, Integer>>() {
@@ -1181,6 +1199,36 @@ public enum Technology {
 		};
 	}
 
+	// Number of advances, and of advance types
+	static final int		COUNT		= VALUES.length;
+	static final int		TYPE_COUNT	= Type.values().length;
+
+	/*
+	 * The credits above compiled into flat arrays, so advances can be priced without looking anything up in maps. The
+	 * credit advance i gives towards advance j is at TECH_CREDIT_TABLE[i * COUNT + j], and towards type t at
+	 * TYPE_CREDIT_TABLE[i * TYPE_COUNT + t]. TYPE_MASKS[i] has bit t set if advance i is of type t.
+	 */
+	static final int[]		TECH_CREDIT_TABLE;
+	static final int[]		TYPE_CREDIT_TABLE;
+	static final int[]		TYPE_MASKS;
+	static {
+		TECH_CREDIT_TABLE = new int[COUNT * COUNT];
+		TYPE_CREDIT_TABLE = new int[COUNT * TYPE_COUNT];
+		TYPE_MASKS = new int[COUNT];
+		for (final Technology tech : VALUES) {
+			final HashMap<Technology, Integer> techCredits = TECH_CREDITS.get(tech);
+			for (final Technology target : techCredits.keySet()) {
+				TECH_CREDIT_TABLE[tech.ordinal() * COUNT + target.ordinal()] = techCredits.get(target);
+			}
+			for (final Type type : tech.typeCredits.keySet()) {
+				TYPE_CREDIT_TABLE[tech.ordinal() * TYPE_COUNT + type.ordinal()] = tech.typeCredits.get(type);
+			}
+			for (final Type type : tech.types) {
+				TYPE_MASKS[tech.ordinal()] |= 1 << type.ordinal();
+			}
+		}
+	}
+
 	private final int								MAX_HTML_WIDTH	= 50;
 
 	@JsonProperty("name")
@@ -1222,11 +1270,11 @@ public enum Technology {
 	}
 
 	public int getTechCredit(final Technology tech) {
-		return TECH_CREDITS.get(this).containsKey(tech) ? TECH_CREDITS.get(this).get(tech) : 0;
+		return TECH_CREDIT_TABLE[this.ordinal() * COUNT + tech.ordinal()];
 	}
 
 	public int getTypeCredit(final Type type) {
-		return this.typeCredits.containsKey(type) ? this.typeCredits.get(type) : 0;
+		return TYPE_CREDIT_TABLE[this.ordinal() * TYPE_COUNT + type.ordinal()];
 	}
 
 	public int getVP() {
@@ -47,6 +47,10 @@ public class User implements Serializable {
 		this.lastActive = LocalDateTime.now(ZoneOffset.UTC);
 	}
 
+	public void setLastActive(final LocalDateTime lastActive) {
+		this.lastActive = lastActive;
+	}
+
 
 	/**
 	 * @return the user
@@ -0,0 +1,123 @@
+package net.bubbaland.megaciv.messages;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.bubbaland.megaciv.game.Civilization;
+import net.bubbaland.megaciv.game.Game;
+
+/**
+ * Message describing the changes made to the game since a given version. Only the civilizations that changed, the
+ * round counters, and the new length of the log are included.
+ */
+public class GameDeltaMessage implements ServerMessage {
+
+	@JsonProperty("baseVersion")
+	private final long							baseVersion;
+	@JsonProperty("version")
+	private final long							version;
+	@JsonProperty("civs")
+	private final ArrayList<Civilization>		civs;
+	@JsonProperty("retiredCivs")
+	private final ArrayList<Civilization.Name>	retiredCivs;
+	@JsonProperty("currentRound")
+	private final int							currentRound;
+	@JsonProperty("lastRound")
+	private final int							lastRound;
+	@JsonProperty("difficulty")
+	private final Game.Difficulty				difficulty;
+	@JsonProperty("region")
+	private final Civilization.Region			region;
+	@JsonProperty("logLength")
+	private final int							logLength;
+
+	@JsonCreator
+	public GameDeltaMessage(@JsonProperty("baseVersion") final long baseVersion,
+			@JsonProperty("version") final long version, @JsonProperty("civs") final ArrayList<Civilization> civs,
+			@JsonProperty("retiredCivs") final ArrayList<Civilization.Name> retiredCivs,
+			@JsonProperty("currentRound") final int currentRound, @JsonProperty("lastRound") final int lastRound,
+			@JsonProperty("difficulty") final Game.Difficulty difficulty,
+			@JsonProperty("region") final Civilization.Region region,
+			@JsonProperty("logLength") final int logLength) {
+		this.baseVersion = baseVersion;
+		this.version = version;
+		this.civs = civs;
+		this.retiredCivs = retiredCivs;
+		this.currentRound = currentRound;
+		this.lastRound = lastRound;
+		this.difficulty = difficulty;
+		this.region = region;
+		this.logLength = logLength;
+	}
+
+	/**
+	 * Create a delta from the current state of the game.
+	 *
+	 * @param baseVersion
+	 *            Version of the game before the changes were made.
+	 * @param game
+	 *            The game after the changes were made.
+	 * @param changedCivs
+	 *            Civilizations that were modified.
+	 * @param retiredCivs
+	 *            Civilizations that were removed from the game.
+	 */
+	public GameDeltaMessage(final long baseVersion, final Game game, final Collection<Civilization.Name> changedCivs,
+			final Collection<Civilization.Name> retiredCivs) {
+		this.baseVersion = baseVersion;
+		this.version = game.getVersion();
+		this.civs = new ArrayList<Civilization>();
+		for (final Civilization.Name name : changedCivs) {
+			final Civilization civ = game.getCivilization(name);
+			if (civ != null) {
+				this.civs.add(civ);
+			}
+		}
+		this.retiredCivs = new ArrayList<Civilization.Name>(retiredCivs);
+		this.currentRound = game.getRoundCounter();
+		this.lastRound = game.getLastRound();
+		this.difficulty = game.getDifficulty();
+		this.region = game.getRegion();
+		this.logLength = game.getLogLength();
+	}
+
+	public long getBaseVersion() {
+		return this.baseVersion;
+	}
+
+	public long getVersion() {
+		return this.version;
+	}
+
+	public ArrayList<Civilization> getCivs() {
+		return this.civs;
+	}
+
+	public ArrayList<Civilization.Name> getRetiredCivs() {
+		return this.retiredCivs;
+	}
+
+	public int getCurrentRound() {
+		return this.currentRound;
+	}
+
+	public int getLastRound() {
+		return this.lastRound;
+	}
+
+	public Game.Difficulty getDifficulty() {
+		return this.difficulty;
+	}
+
+	public Civilization.Region getRegion() {
+		return this.region;
+	}
+
+	public int getLogLength() {
+		return this.logLength;
+	}
+
+}
@@ -0,0 +1,410 @@
+package net.bubbaland.megaciv.messages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import net.bubbaland.megaciv.game.Civilization;
+import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.game.GameEvent;
+
+/**
+ * Streaming reader and writer for save files. A save file is the JSON form of a {@link Game}, written one field,
+ * civilization and log event at a time so a game with a long log is never held as a tree in memory. The log is written
+ * last, so a reader can load the rest of the game, then skip the log or page it in as needed. Save files may be
+ * gzip-compressed; readers detect this from the file contents. The log length is saved too, so a file saved without
+ * all of its log still says how long the log was.
+ *
+ * Files saved before this format was introduced have the log before the version; they can still be read, but the log
+ * is read in full before the rest of the game is available.
+ */
+public final class GameFile {
+
+	// Conventional extension for compressed save files
+	public static final String						COMPRESSED_EXTENSION	= ".gz";
+
+	// Number of log events read at a time when loading a whole game
+	private static final int						LOG_PAGE_SIZE			= 1024;
+
+	private static final ObjectWriter				VALUE_WRITER;
+	private static final ObjectReader				VALUE_READER;
+	private static final ObjectReader				CIV_READER;
+	private static final ObjectReader				EVENT_READER;
+
+	static {
+		// Flushing after each value would mean a write to disk for each log event
+		VALUE_WRITER = MessageCodec.MAPPER.writer().with(SerializationFeature.WRITE_ENUMS_USING_TO_STRING)
+				.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		VALUE_READER = MessageCodec.MAPPER.reader().with(DeserializationFeature.READ_ENUMS_USING_TO_STRING);
+		CIV_READER = VALUE_READER.forType(Civilization.class);
+		EVENT_READER = VALUE_READER.forType(GameEvent.class);
+	}
+
+	private GameFile() {}
+
+	/**
+	 * Write a save file.
+	 *
+	 * @param file
+	 *            The file to write.
+	 * @param game
+	 *            The game to save.
+	 * @param compressed
+	 *            Whether to gzip the file.
+	 * @throws IOException
+	 */
+	public static void write(final File file, final Game game, final boolean compressed) throws IOException {
+		write(file, game, compressed, game.getLog().iterator());
+	}
+
+	/**
+	 * Write a save file, with a log kept elsewhere.
+	 *
+	 * @param file
+	 *            The file to write.
+	 * @param game
+	 *            The game to save.
+	 * @param compressed
+	 *            Whether to gzip the file.
+	 * @param log
+	 *            The game's log events, oldest first.
+	 * @throws IOException
+	 */
+	public static void write(final File file, final Game game, final boolean compressed,
+			final Iterator<GameEvent> log) throws IOException {
+		try (OutputStream out = compressed ? new GZIPOutputStream(new FileOutputStream(file), 64 * 1024)
+				: new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+			write(out, game, log);
+		}
+	}
+
+	/**
+	 * Write a game and its saved log in the save file format. The stream is flushed but not closed.
+	 *
+	 * @param out
+	 *            The stream to write to.
+	 * @param game
+	 *            The game to save.
+	 * @throws IOException
+	 */
+	public static void write(final OutputStream out, final Game game) throws IOException {
+		write(out, game, game.getLog().iterator());
+	}
+
+	/**
+	 * Write a game in the save file format, with a log kept elsewhere. The stream is flushed but not closed.
+	 *
+	 * @param out
+	 *            The stream to write to.
+	 * @param game
+	 *            The game to save.
+	 * @param log
+	 *            The game's log events, oldest first. They are read as they are written, so the log never has to be
+	 *            in memory all at once.
+	 * @throws IOException
+	 */
+	public static void write(final OutputStream out, final Game game, final Iterator<GameEvent> log)
+			throws IOException {
+		try (JsonGenerator generator = MessageCodec.MAPPER.getFactory().createGenerator(out)) {
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			generator.setPrettyPrinter(new DefaultPrettyPrinter());
+			generator.writeStartObject();
+			writeField(generator, "region", game.getRegion());
+			writeField(generator, "difficulty", game.getDifficulty());
+			generator.writeNumberField("currentRound", game.getRoundCounter());
+			generator.writeNumberField("lastRound", game.getLastRound());
+			generator.writeNumberField("version", game.getVersion());
+			generator.writeNumberField("logLength", game.getLogLength());
+			generator.writeArrayFieldStart("civs");
+			for (final Civilization civ : game.getCivilizations()) {
+				VALUE_WRITER.writeValue(generator, civ);
+			}
+			generator.writeEndArray();
+			generator.writeArrayFieldStart("gameLog");
+			while (log.hasNext()) {
+				VALUE_WRITER.writeValue(generator, log.next());
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+		}
+	}
+
+	private static void writeField(final JsonGenerator generator, final String name, final Object value)
+			throws IOException {
+		generator.writeFieldName(name);
+		VALUE_WRITER.writeValue(generator, value);
+	}
+
+	/**
+	 * Read a save file.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @param includeLog
+	 *            Whether to read the game log. If not, the game is returned with an empty log.
+	 * @return The saved game.
+	 * @throws IOException
+	 */
+	public static Game read(final File file, final boolean includeLog) throws IOException {
+		return read(new FileInputStream(file), includeLog);
+	}
+
+	/**
+	 * Read a game in the save file format. The stream is closed once the game is read.
+	 *
+	 * @param in
+	 *            The stream to read.
+	 * @param includeLog
+	 *            Whether to read the game log. If not, the game is returned with an empty log.
+	 * @return The saved game.
+	 * @throws IOException
+	 */
+	public static Game read(final InputStream in, final boolean includeLog) throws IOException {
+		try (Reader reader = open(in, includeLog)) {
+			final Game game = reader.getGame();
+			if (includeLog) {
+				for (List<GameEvent> page = reader.readLog(LOG_PAGE_SIZE); !page.isEmpty(); page =
+						reader.readLog(LOG_PAGE_SIZE)) {
+					game.getLog().addAll(page);
+				}
+				game.setLogLength(Math.max(game.getLogLength(), game.getLog().size()));
+			}
+			return game;
+		}
+	}
+
+	/**
+	 * Open a save file to read the game, then page in its log.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @param includeLog
+	 *            Whether the log will be read. If not, a log in an older file is skipped rather than kept in memory.
+	 * @return A reader positioned at the start of the log.
+	 * @throws IOException
+	 */
+	public static Reader open(final File file, final boolean includeLog) throws IOException {
+		return open(new FileInputStream(file), includeLog);
+	}
+
+	/**
+	 * Open a stream in the save file format to read the game, then page in its log.
+	 *
+	 * @param stream
+	 *            The stream to read; closed when the reader is closed.
+	 * @param includeLog
+	 *            Whether the log will be read. If not, a log in an older file is skipped rather than kept in memory.
+	 * @return A reader positioned at the start of the log.
+	 * @throws IOException
+	 */
+	public static Reader open(final InputStream stream, final boolean includeLog) throws IOException {
+		InputStream in = new BufferedInputStream(stream, 64 * 1024);
+		try {
+			if (isCompressed(in)) {
+				in = new GZIPInputStream(in, 64 * 1024);
+			}
+			return new Reader(in, includeLog);
+		} catch (final IOException | RuntimeException exception) {
+			in.close();
+			throw exception;
+		}
+	}
+
+	/**
+	 * Get the contents of a save file in compressed form, compressing them if the file isn't already compressed.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @return The gzip-compressed contents.
+	 * @throws IOException
+	 */
+	public static byte[] readCompressed(final File file) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+			final boolean compressed = isCompressed(in);
+			final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+			try (OutputStream out = compressed ? contents : new GZIPOutputStream(contents, 64 * 1024)) {
+				final byte[] buffer = new byte[64 * 1024];
+				for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+					out.write(buffer, 0, count);
+				}
+			}
+			return contents.toByteArray();
+		}
+	}
+
+	/**
+	 * Check for the gzip header without consuming it.
+	 */
+	private static boolean isCompressed(final InputStream in) throws IOException {
+		in.mark(2);
+		final boolean compressed = in.read() == ( GZIPInputStream.GZIP_MAGIC & 0xff )
+				&& in.read() == ( GZIPInputStream.GZIP_MAGIC >>> 8 );
+		in.reset();
+		return compressed;
+	}
+
+	/**
+	 * An open save file. The game, without its log, is read when the file is opened; log events are then read on
+	 * request, oldest first.
+	 */
+	public static final class Reader implements Closeable {
+
+		private final JsonParser				parser;
+		private final Game						game;
+
+		// Log events read before the rest of the game, from a file in the older field order
+		private final ArrayDeque<GameEvent>		earlyLog;
+
+		// Whether the parser is within the log array
+		private boolean							inLog;
+
+		private Reader(final InputStream in, final boolean includeLog) throws IOException {
+			this.parser = MessageCodec.MAPPER.getFactory().createParser(in);
+			this.earlyLog = new ArrayDeque<GameEvent>();
+			this.inLog = false;
+
+			Civilization.Region region = null;
+			Game.Difficulty difficulty = null;
+			int currentRound = 1;
+			int lastRound = Integer.MAX_VALUE;
+			long version = 0;
+			int logLength = 0;
+			ArrayList<Civilization> civs = null;
+			boolean versionRead = false;
+
+			if (this.parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Not a save file");
+			}
+			while (this.parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = this.parser.getCurrentName();
+				this.parser.nextToken();
+				switch (field) {
+					case "region":
+						region = VALUE_READER.forType(Civilization.Region.class).readValue(this.parser);
+						break;
+					case "difficulty":
+						difficulty = VALUE_READER.forType(Game.Difficulty.class).readValue(this.parser);
+						break;
+					case "currentRound":
+						currentRound = this.parser.getIntValue();
+						break;
+					case "lastRound":
+						lastRound = this.parser.getIntValue();
+						break;
+					case "version":
+						version = this.parser.getLongValue();
+						versionRead = true;
+						break;
+					case "logLength":
+						logLength = this.parser.getIntValue();
+						break;
+					case "civs":
+						civs = new ArrayList<Civilization>();
+						while (this.parser.nextToken() != JsonToken.END_ARRAY) {
+							civs.add(CIV_READER.readValue(this.parser));
+						}
+						break;
+					case "gameLog":
+						if (civs != null && versionRead) {
+							// Everything else has been read; leave the log to be paged in
+							this.inLog = this.parser.currentToken() == JsonToken.START_ARRAY;
+						} else if (includeLog) {
+							while (this.parser.nextToken() != JsonToken.END_ARRAY) {
+								this.earlyLog.add(EVENT_READER.readValue(this.parser));
+							}
+						} else {
+							this.parser.skipChildren();
+						}
+						break;
+					default:
+						this.parser.skipChildren();
+						break;
+				}
+				if (this.inLog) {
+					break;
+				}
+			}
+			if (civs == null) {
+				throw new IOException("Save file has no civilizations");
+			}
+			this.game = new Game(region, civs, difficulty, currentRound, lastRound, new ArrayList<GameEvent>(),
+					version, logLength);
+		}
+
+		/**
+		 * Get the saved game. Its log is empty; use {@link #readLog(int)} to read the saved log.
+		 *
+		 * @return The game.
+		 */
+		public Game getGame() {
+			return this.game;
+		}
+
+		/**
+		 * Read the next page of log events.
+		 *
+		 * @param maxEvents
+		 *            The maximum number of events to read.
+		 * @return The events, oldest first. Empty once the whole log has been read.
+		 * @throws IOException
+		 */
+		public List<GameEvent> readLog(final int maxEvents) throws IOException {
+			final ArrayList<GameEvent> page = new ArrayList<GameEvent>(Math.min(maxEvents, LOG_PAGE_SIZE));
+			while (page.size() < maxEvents && !this.earlyLog.isEmpty()) {
+				page.add(this.earlyLog.poll());
+			}
+			while (page.size() < maxEvents && this.inLog) {
+				if (this.parser.nextToken() == JsonToken.START_OBJECT) {
+					page.add(EVENT_READER.readValue(this.parser));
+				} else {
+					this.inLog = false;
+				}
+			}
+			return page;
+		}
+
+		/**
+		 * Skip the rest of the log.
+		 *
+		 * @throws IOException
+		 */
+		public void skipLog() throws IOException {
+			this.earlyLog.clear();
+			while (this.inLog) {
+				if (this.parser.nextToken() == JsonToken.START_OBJECT) {
+					this.parser.skipChildren();
+				} else {
+					this.inLog = false;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.parser.close();
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package net.bubbaland.megaciv.messages;
+
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.bubbaland.megaciv.game.GameEvent;
+
+/**
+ * A page of the game log, sent in reply to a {@link GameLogRequestMessage}.
+ */
+public class GameLogPageMessage implements ServerMessage {
+
+	@JsonProperty("requestId")
+	private final long					requestId;
+	@JsonProperty("start")
+	private final int					start;
+	@JsonProperty("events")
+	private final ArrayList<GameEvent>	events;
+	@JsonProperty("logLength")
+	private final int					logLength;
+	@JsonProperty("firstAvailable")
+	private final int					firstAvailable;
+
+	/**
+	 * Create a page of the log.
+	 *
+	 * @param requestId
+	 *            Identifier of the request being answered.
+	 * @param start
+	 *            Index of the first event in the page.
+	 * @param events
+	 *            The events, oldest first.
+	 * @param logLength
+	 *            Number of events in the whole log.
+	 * @param firstAvailable
+	 *            Index of the oldest event the server still has.
+	 */
+	@JsonCreator
+	public GameLogPageMessage(@JsonProperty("requestId") final long requestId, @JsonProperty("start") final int start,
+			@JsonProperty("events") final ArrayList<GameEvent> events,
+			@JsonProperty("logLength") final int logLength,
+			@JsonProperty("firstAvailable") final int firstAvailable) {
+		this.requestId = requestId;
+		this.start = start;
+		this.events = events;
+		this.logLength = logLength;
+		this.firstAvailable = firstAvailable;
+	}
+
+	public long getRequestId() {
+		return this.requestId;
+	}
+
+	public int getStart() {
+		return this.start;
+	}
+
+	public ArrayList<GameEvent> getEvents() {
+		return this.events;
+	}
+
+	public int getLogLength() {
+		return this.logLength;
+	}
+
+	public int getFirstAvailable() {
+		return this.firstAvailable;
+	}
+
+	/**
+	 * @return Whether the page reaches the end of the log.
+	 */
+	public boolean isLastPage() {
+		return this.start + this.events.size() >= this.logLength;
+	}
+
+}
@@ -0,0 +1,89 @@
+package net.bubbaland.megaciv.messages;
+
+import java.time.Instant;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.game.GameEvent.EventType;
+
+/**
+ * Request from a client for a page of the game log. The page starts either at an index in the log or at the first
+ * event at or after a given time, and may be cut short at a later time. The server answers with a
+ * {@link GameLogPageMessage} carrying the same request ID.
+ */
+public class GameLogRequestMessage implements ClientMessage {
+
+	// Largest page the server sends
+	public static final int	MAX_EVENTS	= 500;
+
+	@JsonProperty("requestId")
+	private final long		requestId;
+	@JsonProperty("start")
+	private final int		start;
+	@JsonProperty("since")
+	private final Instant	since;
+	@JsonProperty("until")
+	private final Instant	until;
+	@JsonProperty("maxEvents")
+	private final int		maxEvents;
+
+	/**
+	 * Create a log request.
+	 *
+	 * @param requestId
+	 *            Identifier echoed in the reply.
+	 * @param start
+	 *            Index of the first event wanted. Ignored if since is given.
+	 * @param since
+	 *            Time of the first event wanted, or null to start at an index.
+	 * @param until
+	 *            Time after which no events are wanted, or null for no limit.
+	 * @param maxEvents
+	 *            Most events wanted; the server may send fewer.
+	 */
+	@JsonCreator
+	public GameLogRequestMessage(@JsonProperty("requestId") final long requestId,
+			@JsonProperty("start") final int start, @JsonProperty("since") final Instant since,
+			@JsonProperty("until") final Instant until, @JsonProperty("maxEvents") final int maxEvents) {
+		this.requestId = requestId;
+		this.start = start;
+		this.since = since;
+		this.until = until;
+		this.maxEvents = maxEvents;
+	}
+
+	public long getRequestId() {
+		return this.requestId;
+	}
+
+	public int getStart() {
+		return this.start;
+	}
+
+	public Instant getSince() {
+		return this.since;
+	}
+
+	public Instant getUntil() {
+		return this.until;
+	}
+
+	public int getMaxEvents() {
+		return this.maxEvents;
+	}
+
+	@Override
+	public EventType getEventType() {
+		return GameEvent.EventType.LOG_REQUEST;
+	}
+
+	@Override
+	public String toString() {
+		return "Game log request " + this.requestId + " for " + this.maxEvents + " events from "
+				+ ( this.since != null ? this.since.toString() : "index " + this.start )
+				+ ( this.until != null ? " until " + this.until : "" );
+	}
+
+}
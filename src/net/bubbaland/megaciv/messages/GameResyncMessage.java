@@ -0,0 +1,43 @@
+package net.bubbaland.megaciv.messages;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.game.GameEvent.EventType;
+
+/**
+ * Request from a client for the updates it has missed, sent when the client detects a gap. The server replays the
+ * updates since the client's last version if it still has them, and otherwise sends a full copy of the game.
+ */
+public class GameResyncMessage implements ClientMessage {
+
+	// Sent by a client that has no game data
+	public static final long	NO_VERSION			= -1;
+
+	// Query parameter in the connection URI giving the game version a reconnecting client already has
+	public static final String	RESUME_PARAMETER	= "resume";
+
+	@JsonProperty("lastVersion")
+	private final long			lastVersion;
+
+	@JsonCreator
+	public GameResyncMessage(@JsonProperty("lastVersion") final long lastVersion) {
+		this.lastVersion = lastVersion;
+	}
+
+	public long getLastVersion() {
+		return this.lastVersion;
+	}
+
+	@Override
+	public EventType getEventType() {
+		return GameEvent.EventType.RESYNC;
+	}
+
+	@Override
+	public String toString() {
+		return "Game Resync Request since version " + this.lastVersion;
+	}
+
+}
@@ -0,0 +1,89 @@
+package net.bubbaland.megaciv.messages;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.game.GameEvent.EventType;
+
+/**
+ * One chunk of a save file being uploaded to replace the game. A save is sent as a numbered sequence of chunks so no
+ * single frame has to hold a whole game; the last chunk carries a CRC32 of the whole file so the server can reject a
+ * damaged upload before replacing the game.
+ */
+public class GameUploadMessage implements ClientMessage {
+
+	// Largest amount of file data in one chunk
+	public static final int		CHUNK_SIZE	= 32 * 1024;
+
+	@JsonProperty("uploadId")
+	private final String		uploadId;
+	@JsonProperty("chunkIndex")
+	private final int			chunkIndex;
+	@JsonProperty("chunkCount")
+	private final int			chunkCount;
+	@JsonProperty("checksum")
+	private final long			checksum;
+	@JsonProperty("data")
+	private final byte[]		data;
+
+	/**
+	 * Create a chunk of an upload.
+	 *
+	 * @param uploadId
+	 *            Identifier shared by every chunk of the upload.
+	 * @param chunkIndex
+	 *            Position of this chunk, starting at 0.
+	 * @param chunkCount
+	 *            Number of chunks in the upload.
+	 * @param checksum
+	 *            CRC32 of the whole file; only checked on the last chunk.
+	 * @param data
+	 *            The file data in this chunk.
+	 */
+	@JsonCreator
+	public GameUploadMessage(@JsonProperty("uploadId") final String uploadId,
+			@JsonProperty("chunkIndex") final int chunkIndex, @JsonProperty("chunkCount") final int chunkCount,
+			@JsonProperty("checksum") final long checksum, @JsonProperty("data") final byte[] data) {
+		this.uploadId = uploadId;
+		this.chunkIndex = chunkIndex;
+		this.chunkCount = chunkCount;
+		this.checksum = checksum;
+		this.data = data;
+	}
+
+	public String getUploadId() {
+		return this.uploadId;
+	}
+
+	public int getChunkIndex() {
+		return this.chunkIndex;
+	}
+
+	public int getChunkCount() {
+		return this.chunkCount;
+	}
+
+	public long getChecksum() {
+		return this.checksum;
+	}
+
+	public byte[] getData() {
+		return this.data;
+	}
+
+	public boolean isLastChunk() {
+		return this.chunkIndex == this.chunkCount - 1;
+	}
+
+	@Override
+	public EventType getEventType() {
+		return GameEvent.EventType.GAME_START;
+	}
+
+	@Override
+	public String toString() {
+		return "Game upload " + this.uploadId + " chunk " + ( this.chunkIndex + 1 ) + " of " + this.chunkCount;
+	}
+
+}
@@ -3,7 +3,10 @@ package net.bubbaland.megaciv.messages;
 import net.bubbaland.megaciv.game.GameEvent;
 import net.bubbaland.megaciv.game.GameEvent.EventType;
 
-public class KeepAliveMessage implements ClientMessage {
+/**
+ * Message sent by a client to keep its connection open. The server answers by sending it back to the same client.
+ */
+public class KeepAliveMessage implements ClientMessage, ServerMessage {
 
 	@Override
 	public EventType getEventType() {
@@ -0,0 +1,282 @@
+package net.bubbaland.megaciv.messages;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import net.bubbaland.megaciv.game.Civilization;
+import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.game.Stopwatch;
+import net.bubbaland.megaciv.game.User;
+
+/**
+ * Shared JSON codec for all messages and save files. The underlying ObjectMapper is configured once; the readers and
+ * writers created from it are immutable and safe to use from any thread.
+ */
+public final class MessageCodec {
+
+	// Shared with GameFile, which streams save files with the same configuration
+	static final ObjectMapper									MAPPER;
+
+	private static final ObjectReader							CLIENT_MESSAGE_READER;
+	private static final ObjectWriter							CLIENT_MESSAGE_WRITER;
+	private static final ObjectReader							SERVER_MESSAGE_READER;
+	private static final ObjectWriter							SERVER_MESSAGE_WRITER;
+
+	// Encode/decode timing for each message type
+	private static final ConcurrentHashMap<Class<?>, Timing>	TIMINGS;
+
+	static {
+		MAPPER = new ObjectMapper();
+		// Module discovery scans the classpath, so only do it once
+		MAPPER.findAndRegisterModules();
+		MAPPER.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+		MAPPER.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		MAPPER.setVisibility(MAPPER.getVisibilityChecker().with(JsonAutoDetect.Visibility.NONE));
+		MAPPER.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+
+		CLIENT_MESSAGE_READER = MAPPER.readerFor(ClientMessage.class);
+		CLIENT_MESSAGE_WRITER = MAPPER.writerFor(ClientMessage.class);
+		SERVER_MESSAGE_READER = MAPPER.readerFor(ServerMessage.class);
+		SERVER_MESSAGE_WRITER = MAPPER.writerFor(ServerMessage.class);
+
+		TIMINGS = new ConcurrentHashMap<Class<?>, Timing>();
+	}
+
+	private MessageCodec() {}
+
+	/**
+	 * Encode a message sent from a client.
+	 *
+	 * @param message
+	 *            The message to encode.
+	 * @return JSON representation of the message.
+	 * @throws IOException
+	 */
+	public static String encode(final ClientMessage message) throws IOException {
+		final long startTime = System.nanoTime();
+		final String json = CLIENT_MESSAGE_WRITER.writeValueAsString(message);
+		getTiming(message.getClass()).recordEncode(System.nanoTime() - startTime);
+		return json;
+	}
+
+	/**
+	 * Encode a message sent from the server.
+	 *
+	 * @param message
+	 *            The message to encode.
+	 * @return JSON representation of the message.
+	 * @throws IOException
+	 */
+	public static String encode(final ServerMessage message) throws IOException {
+		final long startTime = System.nanoTime();
+		final String json = SERVER_MESSAGE_WRITER.writeValueAsString(message);
+		getTiming(message.getClass()).recordEncode(System.nanoTime() - startTime);
+		return json;
+	}
+
+	/**
+	 * Decode a message sent from a client.
+	 *
+	 * @param json
+	 *            JSON representation of the message.
+	 * @return The decoded message.
+	 * @throws IOException
+	 */
+	public static ClientMessage decodeClientMessage(final String json) throws IOException {
+		final long startTime = System.nanoTime();
+		final ClientMessage message = CLIENT_MESSAGE_READER.readValue(json);
+		getTiming(message.getClass()).recordDecode(System.nanoTime() - startTime);
+		return message;
+	}
+
+	/**
+	 * Decode a message sent from the server.
+	 *
+	 * @param json
+	 *            JSON representation of the message.
+	 * @return The decoded message.
+	 * @throws IOException
+	 */
+	public static ServerMessage decodeServerMessage(final String json) throws IOException {
+		final long startTime = System.nanoTime();
+		final ServerMessage message = SERVER_MESSAGE_READER.readValue(json);
+		getTiming(message.getClass()).recordDecode(System.nanoTime() - startTime);
+		return message;
+	}
+
+	/**
+	 * Encode any other value using the shared configuration.
+	 *
+	 * @param value
+	 *            The value to encode.
+	 * @return JSON representation of the value.
+	 * @throws IOException
+	 */
+	public static String encodeValue(final Object value) throws IOException {
+		return MAPPER.writeValueAsString(value);
+	}
+
+	/**
+	 * Decode a value encoded with {@link #encodeValue(Object)}.
+	 *
+	 * @param json
+	 *            JSON representation of the value.
+	 * @param type
+	 *            The type of the value.
+	 * @return The decoded value.
+	 * @throws IOException
+	 */
+	public static <T> T decodeValue(final String json, final Class<T> type) throws IOException {
+		return MAPPER.readValue(json, type);
+	}
+
+	/**
+	 * Write game data to a save file. The file is gzip-compressed if its name ends with
+	 * {@value GameFile#COMPRESSED_EXTENSION}.
+	 *
+	 * @param file
+	 *            The file to write.
+	 * @param game
+	 *            The game to save.
+	 * @throws IOException
+	 * @see GameFile
+	 */
+	public static void writeGame(final File file, final Game game) throws IOException {
+		GameFile.write(file, game, file.getName().endsWith(GameFile.COMPRESSED_EXTENSION));
+	}
+
+	/**
+	 * Read game data, including the whole log, from a save file. The file may be gzip-compressed.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @return The saved game.
+	 * @throws IOException
+	 * @see GameFile
+	 */
+	public static Game readGame(final File file) throws IOException {
+		return GameFile.read(file, true);
+	}
+
+	/**
+	 * Run each message type through the codec once so serializers are built before the first real message arrives.
+	 */
+	public static void warmUp() {
+		final Game game = new Game();
+		game.setDifficulty(Game.Difficulty.BASIC);
+		game.setRegion(Civilization.Region.BOTH);
+		game.addCivilization(new ArrayList<Civilization.Name>(Arrays.asList(Civilization.Name.values())));
+		final HashMap<Civilization.Name, Integer> counts = new HashMap<Civilization.Name, Integer>();
+		for (final Civilization.Name name : Civilization.Name.values()) {
+			counts.put(name, 0);
+		}
+
+		final HashMap<String, User> users = new HashMap<String, User>();
+		users.put("0", new User());
+
+		final ServerMessage[] serverMessages = { new GameDataMessage(game),
+				new GameDeltaMessage(game.getVersion(), game, game.getCivilizationNames(),
+						new ArrayList<Civilization.Name>()),
+				new UserListMessage(1, users), new PresenceDeltaMessage(1, 2, users, new HashMap<String, String>(),
+						new ArrayList<String>(), new HashMap<String, LocalDateTime>()),
+				new StopwatchMessage(Stopwatch.StopwatchEvent.STOP, Duration.ZERO, Instant.now(), Duration.ZERO),
+				new GameLogPageMessage(1, 0, new ArrayList<GameEvent>(Arrays.asList(
+						new GameEvent(GameEvent.EventType.LOG_REQUEST, new User(), ""))), 1, 0) };
+		final ClientMessage[] clientMessages = { new KeepAliveMessage(), new GameResyncMessage(1),
+				new CensusMessage(counts), new CityUpdateMessage(counts), new SetUserMessage(new User()),
+				new GameLogRequestMessage(1, 0, Instant.now(), null, GameLogRequestMessage.MAX_EVENTS) };
+		try {
+			for (final ServerMessage message : serverMessages) {
+				decodeServerMessage(encode(message));
+			}
+			for (final ClientMessage message : clientMessages) {
+				decodeClientMessage(encode(message));
+			}
+		} catch (final IOException exception) {
+			exception.printStackTrace();
+		}
+		// Warm-up traffic shouldn't show up in the statistics
+		TIMINGS.clear();
+	}
+
+	/**
+	 * Get the encode/decode timing statistics for each message type seen so far.
+	 *
+	 * @return Map from message type name to its timing statistics.
+	 */
+	public static Map<String, Timing> getTimings() {
+		final TreeMap<String, Timing> timings = new TreeMap<String, Timing>();
+		TIMINGS.forEach((type, timing) -> timings.put(type.getSimpleName(), timing));
+		return timings;
+	}
+
+	private static Timing getTiming(final Class<?> type) {
+		return TIMINGS.computeIfAbsent(type, t -> new Timing());
+	}
+
+	/**
+	 * Counters for the number of messages of a single type encoded and decoded and the total time spent doing so.
+	 */
+	public static final class Timing {
+		private final LongAdder	encodeCount	= new LongAdder();
+		private final LongAdder	encodeNanos	= new LongAdder();
+		private final LongAdder	decodeCount	= new LongAdder();
+		private final LongAdder	decodeNanos	= new LongAdder();
+
+		private void recordEncode(final long nanos) {
+			this.encodeCount.increment();
+			this.encodeNanos.add(nanos);
+		}
+
+		private void recordDecode(final long nanos) {
+			this.decodeCount.increment();
+			this.decodeNanos.add(nanos);
+		}
+
+		public long getEncodeCount() {
+			return this.encodeCount.sum();
+		}
+
+		public Duration getEncodeTime() {
+			return Duration.ofNanos(this.encodeNanos.sum());
+		}
+
+		public long getDecodeCount() {
+			return this.decodeCount.sum();
+		}
+
+		public Duration getDecodeTime() {
+			return Duration.ofNanos(this.decodeNanos.sum());
+		}
+
+		@Override
+		public String toString() {
+			final long encodes = this.getEncodeCount();
+			final long decodes = this.getDecodeCount();
+			return "Encoded: " + encodes + " (" + ( encodes > 0 ? this.encodeNanos.sum() / encodes / 1000 : 0 )
+					+ " us avg) Decoded: " + decodes + " ("
+					+ ( decodes > 0 ? this.decodeNanos.sum() / decodes / 1000 : 0 ) + " us avg)";
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package net.bubbaland.megaciv.messages;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.bubbaland.megaciv.game.User;
+
+/**
+ * Message describing changes to the list of connected users since a given version. Users are identified by their
+ * session key. Activity times are informational and don't change the version.
+ */
+public class PresenceDeltaMessage implements ServerMessage {
+
+	@JsonProperty("baseVersion")
+	private final long							baseVersion;
+	@JsonProperty("version")
+	private final long							version;
+	@JsonProperty("joined")
+	private final HashMap<String, User>			joined;
+	@JsonProperty("renamed")
+	private final HashMap<String, String>		renamed;
+	@JsonProperty("left")
+	private final ArrayList<String>				left;
+	@JsonProperty("activity")
+	private final HashMap<String, LocalDateTime>	activity;
+
+	@JsonCreator
+	public PresenceDeltaMessage(@JsonProperty("baseVersion") final long baseVersion,
+			@JsonProperty("version") final long version, @JsonProperty("joined") final HashMap<String, User> joined,
+			@JsonProperty("renamed") final HashMap<String, String> renamed,
+			@JsonProperty("left") final ArrayList<String> left,
+			@JsonProperty("activity") final HashMap<String, LocalDateTime> activity) {
+		this.baseVersion = baseVersion;
+		this.version = version;
+		this.joined = joined;
+		this.renamed = renamed;
+		this.left = left;
+		this.activity = activity;
+	}
+
+	public long getBaseVersion() {
+		return this.baseVersion;
+	}
+
+	public long getVersion() {
+		return this.version;
+	}
+
+	public HashMap<String, User> getJoined() {
+		return this.joined;
+	}
+
+	public HashMap<String, String> getRenamed() {
+		return this.renamed;
+	}
+
+	public ArrayList<String> getLeft() {
+		return this.left;
+	}
+
+	public HashMap<String, LocalDateTime> getActivity() {
+		return this.activity;
+	}
+
+	/**
+	 * Determine whether this delta changes who is connected or what they are called, as opposed to only reporting
+	 * activity.
+	 *
+	 * @return Whether the membership changed.
+	 */
+	public boolean changesMembership() {
+		return this.version != this.baseVersion;
+	}
+
+}
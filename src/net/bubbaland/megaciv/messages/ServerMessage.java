@@ -1,7 +1,6 @@
 package net.bubbaland.megaciv.messages;
 
 import java.io.IOException;
-import java.io.StringWriter;
 
 import javax.websocket.DecodeException;
 import javax.websocket.Decoder;
@@ -9,41 +8,23 @@ import javax.websocket.EncodeException;
 import javax.websocket.Encoder;
 import javax.websocket.EndpointConfig;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 @JsonTypeInfo(use = JsonTypeInfo.Id.CLASS, include = JsonTypeInfo.As.PROPERTY)
 public interface ServerMessage {
 
-	static JsonFactory jsonFactory = new JsonFactory();
-
 	public static class MessageEncoder implements Encoder.Text<ServerMessage> {
 		@Override
 		public void init(final EndpointConfig config) {}
 
 		@Override
 		public String encode(final ServerMessage message) throws EncodeException {
-			// System.out.println("Encoding ServerMessage with command " + message.command);
-			final StringWriter writer = new StringWriter();
-			final ObjectMapper mapper = new ObjectMapper();
-			mapper.findAndRegisterModules();
-			mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-			mapper.setVisibility(mapper.getVisibilityChecker().with(JsonAutoDetect.Visibility.NONE));
-			mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
-			JsonGenerator jsonGen;
 			try {
-				jsonGen = jsonFactory.createGenerator(writer);
-				mapper.writeValue(jsonGen, message);
+				return MessageCodec.encode(message);
 			} catch (final IOException exception) {
 				exception.printStackTrace();
 			}
-			return writer.toString();
+			return "";
 		}
 
 		@Override
@@ -57,19 +38,12 @@ public interface ServerMessage {
 
 		@Override
 		public ServerMessage decode(final String str) throws DecodeException {
-			// System.out.println("Decoding ServerMessage");
-			final ObjectMapper mapper = new ObjectMapper();
-			// mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-			mapper.findAndRegisterModules();
-			mapper.setVisibility(mapper.getVisibilityChecker().with(JsonAutoDetect.Visibility.NONE));
-			mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
 			ServerMessage message = null;
 			try {
-				message = mapper.readValue(str, ServerMessage.class);
+				message = MessageCodec.decodeServerMessage(str);
 			} catch (final IOException exception) {
 				exception.printStackTrace();
 			}
-			// System.out.println("Decoded ServerMessage with command " + message.getCommand());
 			return message;
 		}
 
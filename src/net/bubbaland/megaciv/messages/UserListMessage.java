@@ -1,24 +1,41 @@
 package net.bubbaland.megaciv.messages;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import net.bubbaland.megaciv.game.User;
 
+/**
+ * Full list of connected users, keyed by session, at a given presence version. Later changes are sent as
+ * {@link PresenceDeltaMessage}s.
+ */
 public class UserListMessage implements ServerMessage {
 
-	@JsonProperty("userList")
-	private final ArrayList<User> userList;
+	@JsonProperty("version")
+	private final long					version;
+	@JsonProperty("users")
+	private final HashMap<String, User>	users;
 
 	@JsonCreator
-	public UserListMessage(@JsonProperty("userList") final ArrayList<User> userList) {
-		this.userList = userList;
+	public UserListMessage(@JsonProperty("version") final long version,
+			@JsonProperty("users") final HashMap<String, User> users) {
+		this.version = version;
+		this.users = users;
+	}
+
+	public long getVersion() {
+		return this.version;
+	}
+
+	public HashMap<String, User> getUsers() {
+		return this.users;
 	}
 
 	public ArrayList<User> getUserList() {
-		return this.userList;
+		return new ArrayList<User>(this.users.values());
 	}
 
 }
@@ -1,23 +1,39 @@
 package net.bubbaland.megaciv.server;
 
+import java.io.IOException;
+import java.util.List;
+
+import javax.websocket.CloseReason;
 import javax.websocket.EndpointConfig;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
 import net.bubbaland.megaciv.game.User;
 import net.bubbaland.megaciv.messages.ClientMessage;
+import net.bubbaland.megaciv.messages.GameResyncMessage;
+import net.bubbaland.megaciv.messages.GameUploadMessage;
+import net.bubbaland.megaciv.messages.LoadGameMessage;
 import net.bubbaland.megaciv.messages.ServerMessage;
 
 @ServerEndpoint(decoders = { ClientMessage.MessageDecoder.class }, encoders = {
 		ServerMessage.MessageEncoder.class }, value = "/")
 public class ClientMessageReceiver {
 
-	private User				user;
-	private static GameServer	server	= null;
+	private User							user;
+	private volatile GameRoom				room;
+	private SessionOutbox					outbox;
+	private static GameServer				server	= null;
+
+	// Save file being uploaded by this client, if any
+	private GameUpload						upload;
+
+	// Pings the client and evicts it if it goes silent
+	private volatile LivenessMonitor.Watch	liveness;
 
 	public ClientMessageReceiver() {
 		this.user = new User();
@@ -35,6 +51,10 @@ public class ClientMessageReceiver {
 		this.user = user;
 	}
 
+	SessionOutbox getOutbox() {
+		return this.outbox;
+	}
+
 	/**
 	 * Initial hook when a client first connects (TriviaServerEndpoint() is automatically called as well)
 	 *
@@ -43,11 +63,41 @@ public class ClientMessageReceiver {
 	 */
 	@OnOpen
 	public void onOpen(final Session session, final EndpointConfig config) {
-		ClientMessageReceiver.server.log("User " + session.getId() + " connected");
+		if (!ClientMessageReceiver.server.admitSession()) {
+			server.log("Turned away " + session.getId() + ": server full or stopping");
+			try {
+				session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Server full"));
+			} catch (final IOException exception) {
+				exception.printStackTrace();
+			}
+			return;
+		}
+		this.room = ClientMessageReceiver.server.joinRoom(session);
+		this.room.log("User " + session.getId() + " connected");
 		this.user.setUserName("User " + session.getId());
-		ClientMessageReceiver.server.addSession(session, this);
-		ClientMessageReceiver.server.sendGame(session);
-		ClientMessageReceiver.server.sendClock(session);
+		this.outbox = new SessionOutbox(session);
+		this.room.addSession(session, this);
+		this.room.sendGame(session, ClientMessageReceiver.getResumeVersion(session));
+		this.room.sendClock(session);
+		this.liveness = ClientMessageReceiver.server.getLivenessMonitor().watch(session, this);
+	}
+
+	/**
+	 * Get the game version a reconnecting client says it already has.
+	 *
+	 * @param session
+	 * @return The client's game version, or {@link GameResyncMessage#NO_VERSION}.
+	 */
+	private static long getResumeVersion(final Session session) {
+		final List<String> resume = session.getRequestParameterMap().get(GameResyncMessage.RESUME_PARAMETER);
+		if (resume != null && !resume.isEmpty()) {
+			try {
+				return Long.parseLong(resume.get(0));
+			} catch (final NumberFormatException exception) {
+				server.log("Invalid resume version from " + session.getId() + ": " + resume.get(0));
+			}
+		}
+		return GameResyncMessage.NO_VERSION;
 	}
 
 	/**
@@ -58,7 +108,59 @@ public class ClientMessageReceiver {
 	 */
 	@OnMessage
 	public void onMessage(final ClientMessage message, final Session session) {
-		server.processIncomingMessage(message, session);
+		final LivenessMonitor.Watch liveness = this.liveness;
+		final GameRoom room = this.room;
+		if (liveness == null || room == null) {
+			// Evicted; the connection is closing
+			return;
+		}
+		liveness.heard();
+		if (message instanceof GameUploadMessage) {
+			this.receiveUpload((GameUploadMessage) message, session);
+		} else {
+			room.processIncomingMessage(message, session);
+		}
+	}
+
+	/**
+	 * Handle a reply to a ping sent to check the client is still there
+	 *
+	 * @param pong
+	 * @param session
+	 */
+	@OnMessage
+	public void onPong(final PongMessage pong, final Session session) {
+		final LivenessMonitor.Watch liveness = this.liveness;
+		if (liveness != null) {
+			liveness.pong(pong.getApplicationData());
+		}
+	}
+
+	/**
+	 * Handle a chunk of an uploaded save file. Chunks are assembled and parsed away from the game actor; once the
+	 * whole file has arrived and been checked, the game is replaced as if the client had sent it in one message.
+	 *
+	 * @param chunk
+	 * @param session
+	 */
+	private synchronized void receiveUpload(final GameUploadMessage chunk, final Session session) {
+		if (this.room == null) {
+			return;
+		}
+		if (chunk.getChunkIndex() == 0) {
+			if (this.upload != null) {
+				this.upload.abort("replaced by upload " + chunk.getUploadId());
+			}
+			final GameRoom room = this.room;
+			this.upload = new GameUpload(room, chunk, ClientMessageReceiver.server.getUploadExecutor(),
+					game -> room.processIncomingMessage(new LoadGameMessage(game), session));
+		} else if (this.upload == null) {
+			this.room.log("Ignored " + chunk + " from " + session.getId() + " with no upload in progress");
+			return;
+		}
+		if (!this.upload.accept(chunk)) {
+			this.upload = null;
+		}
 	}
 
 	/**
@@ -71,7 +173,12 @@ public class ClientMessageReceiver {
 		if (server == null) {
 			System.out.println("Server still null!");
 		}
-		server.communicationsError(session, throwable);
+		if (this.room != null) {
+			this.room.communicationsError(session, throwable);
+		} else {
+			server.log("Error while connecting " + session.getId() + ":");
+			throwable.printStackTrace();
+		}
 	}
 
 	/**
@@ -81,7 +188,48 @@ public class ClientMessageReceiver {
 	 */
 	@OnClose
 	public void onClose(final Session session) {
-		server.removeSession(session);
+		this.release(session, "client disconnected");
+	}
+
+	/**
+	 * Disconnect a client that has stopped responding. Its session is removed from the room straight away, so it
+	 * isn't sent anything more while the connection closes.
+	 *
+	 * @param session
+	 * @param reason
+	 *            Why the client is being disconnected.
+	 */
+	void evict(final Session session, final String reason) {
+		server.log(this.user + " evicted: " + reason);
+		this.release(session, "client evicted");
+		try {
+			session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, reason));
+		} catch (final IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+
+	/**
+	 * Forget a session that has closed or is being closed. Only the first call has any effect.
+	 *
+	 * @param session
+	 * @param reason
+	 *            Why the session is closing, given to any upload in progress.
+	 */
+	private synchronized void release(final Session session, final String reason) {
+		if (this.liveness != null) {
+			this.liveness.cancel();
+			this.liveness = null;
+		}
+		if (this.upload != null) {
+			this.upload.abort(reason);
+			this.upload = null;
+		}
+		if (this.room != null) {
+			this.room.removeSession(session);
+			ClientMessageReceiver.server.releaseSession();
+			this.room = null;
+		}
 	}
 
 }
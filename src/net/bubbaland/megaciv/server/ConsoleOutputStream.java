@@ -0,0 +1,99 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+
+/**
+ * Stream shown in a text area, for use as the server's console when it has no terminal.
+ *
+ * Output is collected from any thread and added to the text area in one piece by the event dispatch thread, at most
+ * once per event, so writing a line doesn't cost a document change per character. The oldest lines are removed once
+ * the text area holds more than a set number of characters.
+ */
+class ConsoleOutputStream extends OutputStream {
+
+	private final JTextArea				textArea;
+	private final int					maxLength;
+
+	// Output not yet added to the text area, and whether the event dispatch thread has been asked to add it
+	private final ByteArrayOutputStream	pending;
+	private boolean						scheduled;
+
+	/**
+	 * Create a stream shown in a text area.
+	 *
+	 * @param textArea
+	 *            The text area.
+	 * @param maxLength
+	 *            Most characters to keep in the text area.
+	 */
+	ConsoleOutputStream(final JTextArea textArea, final int maxLength) {
+		this.textArea = textArea;
+		this.maxLength = maxLength;
+		this.pending = new ByteArrayOutputStream();
+		this.scheduled = false;
+	}
+
+	@Override
+	public void write(final int b) {
+		this.write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(final byte[] bytes, final int offset, final int length) {
+		this.pending.write(bytes, offset, length);
+		if (!this.scheduled) {
+			this.scheduled = true;
+			SwingUtilities.invokeLater(this::show);
+		}
+	}
+
+	/**
+	 * Take the complete lines written so far. A partial line is left until it is finished, so characters split across
+	 * writes are decoded whole.
+	 */
+	private synchronized String takePending() {
+		this.scheduled = false;
+		final byte[] bytes = this.pending.toByteArray();
+		int end = bytes.length;
+		while (end > 0 && bytes[end - 1] != '\n') {
+			end--;
+		}
+		if (end == 0) {
+			return null;
+		}
+		this.pending.reset();
+		this.pending.write(bytes, end, bytes.length - end);
+		return new String(bytes, 0, end, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Add pending output to the text area. Run on the event dispatch thread.
+	 */
+	private void show() {
+		final String text = this.takePending();
+		if (text == null) {
+			return;
+		}
+		this.textArea.append(text);
+		final int excess = this.textArea.getDocument().getLength() - this.maxLength;
+		if (excess > 0) {
+			// Remove whole lines from the start
+			final Element root = this.textArea.getDocument().getDefaultRootElement();
+			final int end = root.getElement(root.getElementIndex(excess)).getEndOffset();
+			try {
+				this.textArea.getDocument().remove(0, Math.min(end, this.textArea.getDocument().getLength()));
+			} catch (final BadLocationException exception) {
+				exception.printStackTrace();
+			}
+		}
+		this.textArea.setCaretPosition(this.textArea.getDocument().getLength());
+	}
+
+}
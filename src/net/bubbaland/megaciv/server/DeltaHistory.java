@@ -0,0 +1,105 @@
+package net.bubbaland.megaciv.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent encoded game deltas, kept so a client that missed some can be sent just those rather than the whole
+ * game. Only an unbroken chain of deltas is kept: adding one that doesn't follow on from the last starts over.
+ */
+class DeltaHistory {
+
+	private final long[]	baseVersions;
+	private final long[]	versions;
+	private final String[]	frames;
+
+	// Index of the oldest delta and the number kept
+	private int				start;
+	private int				size;
+
+	/**
+	 * Create an empty history.
+	 *
+	 * @param capacity
+	 *            Maximum number of deltas to keep.
+	 */
+	DeltaHistory(final int capacity) {
+		this.baseVersions = new long[capacity];
+		this.versions = new long[capacity];
+		this.frames = new String[capacity];
+		this.start = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Add a delta, replacing the oldest if the history is full.
+	 *
+	 * @param baseVersion
+	 *            Version the delta applies to.
+	 * @param version
+	 *            Version after the delta is applied.
+	 * @param frame
+	 *            The encoded delta.
+	 */
+	void add(final long baseVersion, final long version, final String frame) {
+		if (this.size > 0 && this.versions[this.index(this.size - 1)] != baseVersion) {
+			this.clear();
+		}
+		final int capacity = this.frames.length;
+		final int index;
+		if (this.size < capacity) {
+			index = this.index(this.size);
+			this.size++;
+		} else {
+			index = this.start;
+			this.start = ( this.start + 1 ) % capacity;
+		}
+		this.baseVersions[index] = baseVersion;
+		this.versions[index] = version;
+		this.frames[index] = frame;
+	}
+
+	/**
+	 * Discard all deltas, for example when the game is replaced.
+	 */
+	void clear() {
+		for (int i = 0; i < this.frames.length; i++) {
+			this.frames[i] = null;
+		}
+		this.start = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Get the deltas that take a client from the version it has to the current version.
+	 *
+	 * @param lastVersion
+	 *            The version the client has.
+	 * @param currentVersion
+	 *            The current version of the game.
+	 * @return The encoded deltas in order, or null if the history doesn't reach back far enough.
+	 */
+	List<String> since(final long lastVersion, final long currentVersion) {
+		if (lastVersion == currentVersion) {
+			return new ArrayList<String>();
+		}
+		if (this.size == 0 || this.versions[this.index(this.size - 1)] != currentVersion) {
+			return null;
+		}
+		for (int i = 0; i < this.size; i++) {
+			if (this.baseVersions[this.index(i)] == lastVersion) {
+				final ArrayList<String> missed = new ArrayList<String>(this.size - i);
+				for (int j = i; j < this.size; j++) {
+					missed.add(this.frames[this.index(j)]);
+				}
+				return missed;
+			}
+		}
+		return null;
+	}
+
+	private int index(final int offset) {
+		return ( this.start + offset ) % this.frames.length;
+	}
+
+}
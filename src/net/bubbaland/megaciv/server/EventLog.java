@@ -0,0 +1,445 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.messages.ClientMessage;
+import net.bubbaland.megaciv.messages.GameLogRequestMessage;
+import net.bubbaland.megaciv.messages.MessageCodec;
+
+/**
+ * The log of a room's game, kept apart from the game so snapshots and deltas only need to carry its length. The most
+ * recent events are kept in memory, in an {@link EventStore}. Every event is also appended to a file, one JSON line
+ * each, from which older events are read a page at a time; without a file, only the recent events are available.
+ *
+ * The log is only changed by the room's actor. The file is written and read by the writer, in the order requests are
+ * made, so a read always sees every event appended before it.
+ */
+class EventLog {
+
+	// Extension of the file holding a room's log
+	static final String					LOG_EXTENSION	= ".log";
+
+	// Number of recent events kept in memory
+	private static final int			RECENT_CAPACITY	= 1024;
+
+	private final Path					file;
+	private final Executor				writer;
+	// Where problems are reported
+	private final Consumer<String>		log;
+
+	// Only used by the actor: the recent events, and the time and file position of every event
+	private final EventStore			recent;
+	private int							size;
+	private long[]						timestamps;
+	private long[]						offsets;
+	private long						endOffset;
+
+	// Only used by the writer
+	private FileChannel					channel;
+
+	/**
+	 * Create an empty log. Nothing is read or written until {@link #recover(int)} is called.
+	 *
+	 * @param file
+	 *            File to keep the log in, or null to keep only recent events in memory.
+	 * @param writer
+	 *            Executor that reads and writes the file.
+	 * @param log
+	 *            Where problems are reported, such as the room's log.
+	 */
+	EventLog(final Path file, final Executor writer, final Consumer<String> log) {
+		this.file = file;
+		this.writer = writer;
+		this.log = log;
+		this.recent = new EventStore(RECENT_CAPACITY);
+		this.size = 0;
+		this.timestamps = new long[RECENT_CAPACITY];
+		this.offsets = new long[RECENT_CAPACITY];
+		this.endOffset = 0;
+		this.channel = null;
+	}
+
+	/**
+	 * Read the events already in the file and open it for appending. Events beyond the length of the game being
+	 * recovered are discarded; they will be logged again as the journal is replayed.
+	 *
+	 * @param gameLength
+	 *            Length of the log in the recovered game.
+	 * @return The number of events recovered.
+	 * @throws IOException
+	 */
+	int recover(final int gameLength) throws IOException {
+		if (this.file == null) {
+			return 0;
+		}
+		Files.createDirectories(this.file.getParent());
+		this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long lineStart = 0;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(this.file), 64 * 1024)) {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long position = 0;
+			for (int b = in.read(); b >= 0 && this.size < gameLength; b = in.read()) {
+				position++;
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				final GameEvent event = decode(line.toByteArray(), 0, line.size());
+				if (event == null) {
+					break;
+				}
+				this.record(event, null, lineStart);
+				lineStart = position;
+				line.reset();
+			}
+		}
+		// Anything after the last complete event is either partial or not part of the recovered game
+		this.channel.truncate(lineStart);
+		this.channel.position(lineStart);
+		this.endOffset = lineStart;
+		return this.size;
+	}
+
+	/**
+	 * Add an event to the end of the log.
+	 *
+	 * @param event
+	 *            The event.
+	 * @param message
+	 *            The message the event's text was rendered from, or null if it isn't known.
+	 */
+	void append(final GameEvent event, final ClientMessage message) {
+		this.record(event, message, this.endOffset);
+		if (this.file == null) {
+			return;
+		}
+		final byte[] line;
+		try {
+			line = ( MessageCodec.encodeValue(event) + "\n" ).getBytes(StandardCharsets.UTF_8);
+		} catch (final IOException exception) {
+			this.log.accept("Couldn't encode log event: " + exception);
+			exception.printStackTrace();
+			return;
+		}
+		this.endOffset += line.length;
+		this.writer.execute(() -> this.write(line));
+	}
+
+	/**
+	 * Replace the whole log, for example when a new game is started.
+	 *
+	 * @param events
+	 *            The events in the new log, oldest first.
+	 */
+	void reset(final List<GameEvent> events) {
+		this.recent.clear();
+		this.size = 0;
+		this.endOffset = 0;
+		if (this.file != null) {
+			this.writer.execute(() -> {
+				try {
+					if (this.channel != null) {
+						this.channel.truncate(0);
+						this.channel.position(0);
+					}
+				} catch (final IOException exception) {
+					this.log.accept("Couldn't clear log: " + exception);
+					exception.printStackTrace();
+				}
+			});
+		}
+		events.forEach(event -> this.append(event, null));
+	}
+
+	/**
+	 * Get the number of events in the log.
+	 *
+	 * @return The length of the log.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Get the index of the oldest event that can still be read.
+	 *
+	 * @return The index.
+	 */
+	int getFirstAvailable() {
+		return this.file != null ? 0 : Math.max(0, this.size - RECENT_CAPACITY);
+	}
+
+	/**
+	 * Find the first event at or after a time. Events are logged in the order they happen, so the log is sorted by
+	 * time.
+	 *
+	 * @param time
+	 *            The time.
+	 * @return The index of the event, or the length of the log if every event is earlier.
+	 */
+	int indexAt(final Instant time) {
+		final long millis = time.toEpochMilli();
+		int low = 0;
+		int high = this.size;
+		while (low < high) {
+			final int middle = ( low + high ) >>> 1;
+			if (this.timestamps[middle] < millis) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Read a page of events. Recent events are passed to the callback at once; older events are read from the file
+	 * by the writer, which then runs the callback.
+	 *
+	 * @param start
+	 *            Index of the first event wanted. Events that are no longer available are skipped.
+	 * @param maxEvents
+	 *            Most events wanted; no more than {@link GameLogRequestMessage#MAX_EVENTS} are read.
+	 * @param until
+	 *            Time after which no events are wanted, or null for no limit.
+	 * @param callback
+	 *            Receives the index of the first event read, and the events, oldest first.
+	 */
+	void read(final int start, final int maxEvents, final Instant until,
+			final BiConsumer<Integer, ArrayList<GameEvent>> callback) {
+		final int first = Math.min(Math.max(start, this.getFirstAvailable()), this.size);
+		int end = (int) Math.min(this.size, (long) first + Math.min(maxEvents, GameLogRequestMessage.MAX_EVENTS));
+		if (until != null) {
+			end = Math.max(first, Math.min(end, this.indexAt(until.plusMillis(1))));
+		}
+		if (first >= this.size - RECENT_CAPACITY) {
+			final ArrayList<GameEvent> events = new ArrayList<GameEvent>(end - first);
+			for (int i = first; i < end; i++) {
+				events.add(this.recent.get(i % RECENT_CAPACITY));
+			}
+			callback.accept(first, events);
+		} else {
+			final long from = this.offsets[first];
+			final long to = end < this.size ? this.offsets[end] : this.endOffset;
+			this.writer.execute(() -> callback.accept(first, this.readFile(from, to)));
+		}
+	}
+
+	/**
+	 * Get a reader for the events logged so far, for use on another thread. When the log is kept in a file, the
+	 * reader must not be used until the events have been written; see {@link #whenWritten(Runnable)}.
+	 *
+	 * @return The reader.
+	 */
+	Reader reader() {
+		if (this.file == null) {
+			final ArrayList<GameEvent> events = new ArrayList<GameEvent>();
+			for (int i = this.getFirstAvailable(); i < this.size; i++) {
+				events.add(this.recent.get(i % RECENT_CAPACITY));
+			}
+			return new Reader(events.iterator());
+		}
+		return new Reader(this.file, this.endOffset);
+	}
+
+	/**
+	 * Run an action once every event appended so far has been written.
+	 *
+	 * @param action
+	 *            The action. It is run by the writer if there is a file, and otherwise immediately.
+	 */
+	void whenWritten(final Runnable action) {
+		if (this.file != null) {
+			this.writer.execute(action);
+		} else {
+			action.run();
+		}
+	}
+
+	/**
+	 * Close the file once everything pending has been written.
+	 */
+	void close() {
+		if (this.file != null) {
+			this.writer.execute(() -> {
+				try {
+					if (this.channel != null) {
+						this.channel.close();
+					}
+				} catch (final IOException exception) {
+					this.log.accept("Couldn't close log: " + exception);
+					exception.printStackTrace();
+				}
+			});
+		}
+	}
+
+	private void record(final GameEvent event, final ClientMessage message, final long offset) {
+		if (this.size == this.timestamps.length) {
+			this.timestamps = Arrays.copyOf(this.timestamps, this.size * 2);
+			this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+		}
+		final Instant timestamp = event.getTimestamp();
+		this.timestamps[this.size] = timestamp != null ? timestamp.toEpochMilli() : 0;
+		this.offsets[this.size] = offset;
+		this.recent.put(this.size % RECENT_CAPACITY, event, message);
+		this.size++;
+	}
+
+	private void write(final byte[] line) {
+		try {
+			if (this.channel == null) {
+				throw new IOException("Log not open");
+			}
+			final ByteBuffer bytes = ByteBuffer.wrap(line);
+			while (bytes.hasRemaining()) {
+				this.channel.write(bytes);
+			}
+		} catch (final IOException exception) {
+			this.log.accept("Couldn't write log: " + exception);
+			exception.printStackTrace();
+		}
+	}
+
+	private ArrayList<GameEvent> readFile(final long from, final long to) {
+		final ArrayList<GameEvent> events = new ArrayList<GameEvent>();
+		try {
+			if (this.channel == null) {
+				throw new IOException("Log not open");
+			}
+			final ByteBuffer bytes = ByteBuffer.allocate((int) ( to - from ));
+			while (bytes.hasRemaining() && this.channel.read(bytes, from + bytes.position()) >= 0) {}
+			final byte[] array = bytes.array();
+			int lineStart = 0;
+			for (int i = 0; i < bytes.position(); i++) {
+				if (array[i] == '\n') {
+					final GameEvent event = decode(array, lineStart, i - lineStart);
+					if (event != null) {
+						events.add(event);
+					}
+					lineStart = i + 1;
+				}
+			}
+		} catch (final IOException exception) {
+			this.log.accept("Couldn't read log: " + exception);
+			exception.printStackTrace();
+		}
+		return events;
+	}
+
+	private static GameEvent decode(final byte[] bytes, final int offset, final int length) {
+		try {
+			return MessageCodec.decodeValue(new String(bytes, offset, length, StandardCharsets.UTF_8),
+					GameEvent.class);
+		} catch (final IOException exception) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the events in a log, oldest first, without holding them all in memory.
+	 */
+	static final class Reader implements Iterator<GameEvent>, Closeable {
+		private final Iterator<GameEvent>	events;
+		private final Path					file;
+		private final long					length;
+		private InputStream					in;
+		private long						position;
+		private GameEvent					next;
+
+		private Reader(final Iterator<GameEvent> events) {
+			this.events = events;
+			this.file = null;
+			this.length = 0;
+		}
+
+		private Reader(final Path file, final long length) {
+			this.events = null;
+			this.file = file;
+			this.length = length;
+			this.position = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.events != null) {
+				return this.events.hasNext();
+			}
+			if (this.next == null && this.position < this.length) {
+				this.next = this.readNext();
+			}
+			return this.next != null;
+		}
+
+		@Override
+		public GameEvent next() {
+			if (this.events != null) {
+				return this.events.next();
+			}
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final GameEvent event = this.next;
+			this.next = null;
+			return event;
+		}
+
+		private GameEvent readNext() {
+			try {
+				if (this.in == null) {
+					this.in = new BufferedInputStream(Files.newInputStream(this.file), 64 * 1024);
+				}
+				final ByteArrayOutputStream line = new ByteArrayOutputStream();
+				while (this.position < this.length) {
+					final int b = this.in.read();
+					if (b < 0) {
+						throw new IOException("Log ended early");
+					}
+					this.position++;
+					if (b == '\n') {
+						final GameEvent event = decode(line.toByteArray(), 0, line.size());
+						if (event != null) {
+							return event;
+						}
+						line.reset();
+					} else {
+						line.write(b);
+					}
+				}
+				return null;
+			} catch (final IOException exception) {
+				throw new UncheckedIOException(exception);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.in != null) {
+				this.in.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.game.User;
+import net.bubbaland.megaciv.messages.ClientMessage;
+
+/**
+ * Compact in-memory storage for a fixed number of game events.
+ *
+ * Events are stored a field per array rather than as objects. Users are kept once in a table and referred to by
+ * number. Where the message that caused an event is known, it is kept in the journal's binary encoding and the event's
+ * text is only rendered from it when the event is read; otherwise the text itself is kept.
+ *
+ * Not thread safe.
+ */
+final class EventStore {
+
+	// Written in place of a type, user, or time that is null
+	private static final byte					NO_TYPE		= -1;
+	private static final int					NO_USER		= -1;
+	private static final long					NO_TIME		= Long.MIN_VALUE;
+
+	private final byte[]						types;
+	private final long[]						seconds;
+	private final int[]							nanos;
+	private final int[]							users;
+	private final long[]						lastActive;
+	// Each event's encoded message, or its text if the message is unknown or wouldn't reproduce it
+	private final Object[]						payloads;
+
+	// Users seen so far, numbered in the order they were seen
+	private final HashMap<String, Integer>		userNumbers;
+	private final ArrayList<String>				userNames;
+
+	// Encoder for messages, and the strings it has numbered
+	private final JournalCodec					codec;
+	private final ArrayList<String>				strings;
+
+	/**
+	 * Create an empty store.
+	 *
+	 * @param capacity
+	 *            Number of events that can be stored.
+	 */
+	EventStore(final int capacity) {
+		this.types = new byte[capacity];
+		this.seconds = new long[capacity];
+		this.nanos = new int[capacity];
+		this.users = new int[capacity];
+		this.lastActive = new long[capacity];
+		this.payloads = new Object[capacity];
+		this.userNumbers = new HashMap<String, Integer>();
+		this.userNames = new ArrayList<String>();
+		this.codec = new JournalCodec();
+		this.strings = new ArrayList<String>();
+	}
+
+	/**
+	 * Store an event, replacing any already in its slot.
+	 *
+	 * @param slot
+	 *            The slot to store the event in.
+	 * @param event
+	 *            The event.
+	 * @param message
+	 *            The message the event's text was rendered from, or null if it isn't known.
+	 */
+	void put(final int slot, final GameEvent event, final ClientMessage message) {
+		this.types[slot] = event.getType() != null ? (byte) event.getType().ordinal() : NO_TYPE;
+		final Instant timestamp = event.getTimestamp();
+		this.seconds[slot] = timestamp != null ? timestamp.getEpochSecond() : NO_TIME;
+		this.nanos[slot] = timestamp != null ? timestamp.getNano() : 0;
+		final User user = event.getUser();
+		this.users[slot] = user != null ? this.userNumber(user.getUserName()) : NO_USER;
+		final LocalDateTime active = user != null ? user.getLastActive() : null;
+		this.lastActive[slot] = active != null ? active.toInstant(ZoneOffset.UTC).toEpochMilli() : NO_TIME;
+		this.payloads[slot] = this.encodePayload(event.getMessage(), message);
+	}
+
+	/**
+	 * Read an event.
+	 *
+	 * @param slot
+	 *            The slot the event is stored in.
+	 * @return The event, or null if the slot is empty.
+	 */
+	GameEvent get(final int slot) {
+		final Object payload = this.payloads[slot];
+		if (payload == null) {
+			return null;
+		}
+		final Instant timestamp =
+				this.seconds[slot] != NO_TIME ? Instant.ofEpochSecond(this.seconds[slot], this.nanos[slot]) : null;
+		final GameEvent.EventType type = this.types[slot] != NO_TYPE ? GameEvent.EventType.values()[this.types[slot]]
+				: null;
+		User user = null;
+		if (this.users[slot] != NO_USER) {
+			final LocalDateTime active = this.lastActive[slot] != NO_TIME
+					? LocalDateTime.ofInstant(Instant.ofEpochMilli(this.lastActive[slot]), ZoneOffset.UTC) : null;
+			user = new User(this.userNames.get(this.users[slot]), active);
+		}
+		return new GameEvent(timestamp, type, user, this.render(payload));
+	}
+
+	/**
+	 * Empty every slot.
+	 */
+	void clear() {
+		Arrays.fill(this.payloads, null);
+	}
+
+	private int userNumber(final String userName) {
+		Integer number = this.userNumbers.get(userName);
+		if (number == null) {
+			number = this.userNames.size();
+			this.userNumbers.put(userName, number);
+			this.userNames.add(userName);
+		}
+		return number;
+	}
+
+	/**
+	 * Encode an event's message if that is smaller than its text and renders back to the same text.
+	 */
+	private Object encodePayload(final String text, final ClientMessage message) {
+		if (text == null) {
+			// Distinguishes an event with no text from an empty slot
+			return new byte[0];
+		}
+		if (message == null) {
+			return text;
+		}
+		try {
+			final byte[] encoded = this.codec.encodeMessage(message, this.strings);
+			if (encoded.length < text.length() && text.equals(this.render(encoded))) {
+				return encoded;
+			}
+		} catch (final IOException exception) {
+			// Kept as text instead
+		}
+		return text;
+	}
+
+	private String render(final Object payload) {
+		if (payload instanceof String) {
+			return (String) payload;
+		}
+		final byte[] encoded = (byte[]) payload;
+		if (encoded.length == 0) {
+			return null;
+		}
+		try {
+			return JournalCodec.decodeMessage(ByteBuffer.wrap(encoded), this.strings).toString();
+		} catch (final IOException | RuntimeException exception) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package net.bubbaland.megaciv.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks that touch a game one at a time, in the order they were submitted. Any number of threads may submit
+ * tasks, but only one task runs at a time, so the game never has to be locked.
+ *
+ * Messages from clients are limited: once the mailbox holds as many as its capacity, the threads receiving them wait
+ * for room rather than letting work pile up. Other tasks, such as those the actor queues for itself or that the
+ * server's shared threads queue when a write becomes durable or a timer fires, never wait, since those threads may be
+ * the ones the actor is waiting on.
+ */
+class GameActor {
+
+	// Maximum number of tasks to run before giving the executor thread back
+	private static final int				BATCH_SIZE	= 64;
+
+	private final BlockingQueue<Runnable>	mailbox;
+	// Room left in the mailbox for client messages
+	private final Semaphore					clientPermits;
+	private final Executor					executor;
+	private final AtomicBoolean				scheduled;
+
+	// Number of tasks run, and the count/time when the rate was last measured
+	private final AtomicLong				processed;
+	private long							lastRateCount;
+	private long							lastRateTime;
+
+	/**
+	 * Create a new actor.
+	 *
+	 * @param executor
+	 *            Executor that runs the actor's tasks.
+	 * @param capacity
+	 *            Maximum number of client messages waiting to run.
+	 */
+	GameActor(final Executor executor, final int capacity) {
+		this.executor = executor;
+		this.mailbox = new LinkedBlockingQueue<Runnable>();
+		this.clientPermits = new Semaphore(capacity);
+		this.scheduled = new AtomicBoolean(false);
+		this.processed = new AtomicLong(0);
+		this.lastRateCount = 0;
+		this.lastRateTime = System.nanoTime();
+	}
+
+	/**
+	 * Queue a task to run after all previously submitted tasks. Never blocks, so is safe to call from the actor itself
+	 * and from threads shared between rooms.
+	 *
+	 * @param task
+	 *            The task to run.
+	 */
+	void submit(final Runnable task) {
+		this.mailbox.add(task);
+		this.schedule();
+	}
+
+	/**
+	 * Queue a client message to run after all previously submitted tasks. Blocks while the mailbox already holds its
+	 * capacity of client messages, so must only be called from threads receiving messages, never from the actor.
+	 *
+	 * @param task
+	 *            The task to run.
+	 */
+	void submitFromClient(final Runnable task) {
+		try {
+			this.clientPermits.acquire();
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		this.submit(() -> {
+			this.clientPermits.release();
+			task.run();
+		});
+	}
+
+	/**
+	 * Get the number of tasks waiting to run.
+	 *
+	 * @return The mailbox depth.
+	 */
+	int getQueueDepth() {
+		return this.mailbox.size();
+	}
+
+	/**
+	 * Get the total number of tasks run.
+	 *
+	 * @return The number of tasks run.
+	 */
+	long getProcessedCount() {
+		return this.processed.get();
+	}
+
+	/**
+	 * Get the number of tasks run per second since the last time this method was called.
+	 *
+	 * @return Tasks per second.
+	 */
+	synchronized double measureRate() {
+		final long now = System.nanoTime();
+		final long count = this.processed.get();
+		final double elapsed = ( now - this.lastRateTime ) / 1.0e9;
+		final double rate = elapsed > 0 ? ( count - this.lastRateCount ) / elapsed : 0.0;
+		this.lastRateCount = count;
+		this.lastRateTime = now;
+		return rate;
+	}
+
+	private void schedule() {
+		if (this.scheduled.compareAndSet(false, true)) {
+			try {
+				this.executor.execute(this::drain);
+			} catch (final RejectedExecutionException exception) {
+				// The server has stopped, so the tasks will never run
+				this.scheduled.set(false);
+			}
+		}
+	}
+
+	private void drain() {
+		Runnable task;
+		int count = 0;
+		while (count < BATCH_SIZE && ( task = this.mailbox.poll() ) != null) {
+			try {
+				task.run();
+			} catch (final RuntimeException exception) {
+				exception.printStackTrace();
+			}
+			this.processed.incrementAndGet();
+			count++;
+		}
+		this.scheduled.set(false);
+		// Pick up anything submitted after the last poll, or left over from a full batch
+		if (!this.mailbox.isEmpty()) {
+			this.schedule();
+		}
+	}
+
+}
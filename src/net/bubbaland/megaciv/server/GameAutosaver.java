@@ -0,0 +1,213 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.messages.GameDataMessage;
+import net.bubbaland.megaciv.messages.GameFile;
+import net.bubbaland.megaciv.messages.MessageCodec;
+
+/**
+ * Writes save files of each room's game in the background, so the server keeps copies that can be loaded by a client
+ * even if every client's copy is lost.
+ *
+ * Rooms hand over the encoded snapshot they already keep for new connections, so the game can keep changing while the
+ * save is written. Each save is written to a temporary file and renamed into place, so a save file is never partly
+ * written. Only the most recent saves for each room are kept.
+ */
+class GameAutosaver {
+
+	// Extensions of save files, and of files being written
+	static final String							SAVE_EXTENSION		= ".json";
+	static final String							COMPRESSED_EXTENSION	= ".gz";
+	private static final String					TEMP_EXTENSION		= ".tmp";
+
+	private static final int					BUFFER_SIZE			= 64 * 1024;
+
+	// Sortable timestamp included in each save's name
+	private static final DateTimeFormatter		TIMESTAMP_FORMAT	=
+			DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+	private final Path							directory;
+	private final boolean						compressed;
+	private final int							retention;
+	private final ExecutorService				writer;
+
+	// Saves written and failed, and time spent writing, since the last report
+	private final LongAdder						saveCount;
+	private final LongAdder						failureCount;
+	private final LongAdder						saveNanos;
+	private final LongAccumulator				maxSaveNanos;
+	private final AtomicLong					lastSaveSize;
+
+	/**
+	 * Create an autosaver.
+	 *
+	 * @param directory
+	 *            Directory to save in. Each room's saves are kept in a subdirectory named after the room.
+	 * @param compressed
+	 *            Whether to gzip save files.
+	 * @param retention
+	 *            Number of saves to keep for each room.
+	 */
+	GameAutosaver(final Path directory, final boolean compressed, final int retention) {
+		if (retention < 1) {
+			throw new IllegalArgumentException("Must keep at least one save: " + retention);
+		}
+		this.directory = directory;
+		this.compressed = compressed;
+		this.retention = retention;
+		this.writer = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "autosave-writer"));
+		this.saveCount = new LongAdder();
+		this.failureCount = new LongAdder();
+		this.saveNanos = new LongAdder();
+		this.maxSaveNanos = new LongAccumulator(Math::max, 0);
+		this.lastSaveSize = new AtomicLong(0);
+	}
+
+	/**
+	 * Save a room's game in the background.
+	 *
+	 * @param room
+	 *            The room.
+	 * @param snapshot
+	 *            The encoded GameDataMessage holding the game.
+	 * @param log
+	 *            Reader for the game's log, closed once the save is written.
+	 * @param reason
+	 *            Why the game is being saved, for the log.
+	 */
+	void save(final GameRoom room, final String snapshot, final EventLog.Reader log, final String reason) {
+		this.writer.execute(() -> this.write(room, snapshot, log, reason));
+	}
+
+	/**
+	 * Finish writing any saves already requested, then stop.
+	 *
+	 * @param timeout
+	 *            Longest to wait for the saves to be written.
+	 */
+	void close(final Duration timeout) {
+		this.writer.shutdown();
+		try {
+			if (!this.writer.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+				System.out.println("Timed out waiting for autosaves to be written");
+			}
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(final GameRoom room, final String snapshot, final EventLog.Reader log, final String reason) {
+		final long startTime = System.nanoTime();
+		final String roomId = room.getId();
+		final Path roomDirectory = this.directory.resolve(roomId);
+		final String name = roomId + "-" + TIMESTAMP_FORMAT.format(LocalDateTime.now()) + SAVE_EXTENSION
+				+ ( this.compressed ? COMPRESSED_EXTENSION : "" );
+		final Path saveFile = roomDirectory.resolve(name);
+		final Path tempFile = roomDirectory.resolve(name + TEMP_EXTENSION);
+		try {
+			final Game game = ( (GameDataMessage) MessageCodec.decodeServerMessage(snapshot) ).getGame();
+			Files.createDirectories(roomDirectory);
+			final long size;
+			try (FileOutputStream file = new FileOutputStream(tempFile.toFile())) {
+				// The streams in front of the file are finished rather than closed, so the file can be synced
+				final BufferedOutputStream buffer = new BufferedOutputStream(file, BUFFER_SIZE);
+				if (this.compressed) {
+					final GZIPOutputStream out = new GZIPOutputStream(buffer, BUFFER_SIZE);
+					GameFile.write(out, game, log);
+					out.finish();
+				} else {
+					GameFile.write(buffer, game, log);
+				}
+				buffer.flush();
+				file.getChannel().force(false);
+				size = file.getChannel().size();
+			}
+			Files.move(tempFile, saveFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.prune(roomId, roomDirectory);
+
+			final long nanos = System.nanoTime() - startTime;
+			this.saveCount.increment();
+			this.saveNanos.add(nanos);
+			this.maxSaveNanos.accumulate(nanos);
+			this.lastSaveSize.set(size);
+			room.log("Autosaved round " + game.getCurrentRound() + " (" + reason + ") to " + saveFile + ", "
+					+ size + " bytes in " + nanos / 1000000 + " ms");
+		} catch (final IOException | UncheckedIOException | ClassCastException exception) {
+			this.failureCount.increment();
+			room.log("Couldn't autosave game:");
+			exception.printStackTrace();
+			try {
+				Files.deleteIfExists(tempFile);
+			} catch (final IOException deleteException) {
+				deleteException.printStackTrace();
+			}
+		} finally {
+			try {
+				log.close();
+			} catch (final IOException exception) {
+				exception.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Delete all but the most recent saves for a room.
+	 */
+	private void prune(final String roomId, final Path roomDirectory) throws IOException {
+		final ArrayList<Path> saves = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(roomDirectory, roomId + "-*")) {
+			for (final Path file : files) {
+				if (!file.getFileName().toString().endsWith(TEMP_EXTENSION)) {
+					saves.add(file);
+				}
+			}
+		}
+		if (saves.size() <= this.retention) {
+			return;
+		}
+		// Names sort by the time they were saved
+		Collections.sort(saves);
+		for (final Path file : saves.subList(0, saves.size() - this.retention)) {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Get a summary of the saves written since the last report, then start a new reporting period.
+	 *
+	 * @return The summary, or null if nothing was saved.
+	 */
+	String reportStats() {
+		final long count = this.saveCount.sumThenReset();
+		final long failures = this.failureCount.sumThenReset();
+		if (count == 0 && failures == 0) {
+			return null;
+		}
+		final long meanMillis = count > 0 ? this.saveNanos.sumThenReset() / count / 1000000 : 0;
+		final long maxMillis = this.maxSaveNanos.getThenReset() / 1000000;
+		return String.format("Autosaved %d games (%d failed), %d ms avg / %d ms max, last save %d bytes", count,
+				failures, meanMillis, maxMillis, this.lastSaveSize.get());
+	}
+
+}
@@ -0,0 +1,341 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Append-only record of the changes made to a room's game, so the game can be rebuilt if the server stops
+ * unexpectedly. Records are written by a background writer; records appended while the previous batch is being synced
+ * to disk are written and synced together, so a burst of messages costs one sync rather than one each. The journal is
+ * stored in the binary format described in {@link JournalCodec}.
+ *
+ * To keep recovery quick, the journal is periodically compacted: a snapshot of the whole game is written and the
+ * records it includes are discarded.
+ */
+class GameJournal {
+
+	// Extensions of the files kept for each room
+	static final String					JOURNAL_EXTENSION	= ".journal";
+	static final String					SNAPSHOT_EXTENSION	= ".snapshot";
+
+	// Extension given to a journal that can't be read, such as one in an older format, when it is set aside
+	static final String					UNREADABLE_EXTENSION	= ".unreadable";
+
+	private final Path					journalFile;
+	private final Path					snapshotFile;
+	private final Executor				writer;
+	// Where problems are reported
+	private final Consumer<String>		log;
+
+	// Only used by the room's actor, which appends
+	private final JournalCodec			codec;
+
+	// Only used by the writer
+	private FileChannel					channel;
+
+	// Records, snapshots and callbacks waiting for the writer, in the order they were added
+	private final ArrayList<Object>		pending;
+	private boolean						scheduled;
+	private boolean						closed;
+
+	// Number of records since the last snapshot
+	private int							recordCount;
+
+	/**
+	 * Create a journal for a room. Nothing is read or written until {@link #recover()} is called.
+	 *
+	 * @param directory
+	 *            Directory holding the journal files.
+	 * @param id
+	 *            Room identifier, used to name the files.
+	 * @param writer
+	 *            Executor that writes to disk.
+	 * @param log
+	 *            Where problems are reported, such as the room's log.
+	 */
+	GameJournal(final Path directory, final String id, final Executor writer, final Consumer<String> log) {
+		this.journalFile = directory.resolve(id + JOURNAL_EXTENSION);
+		this.snapshotFile = directory.resolve(id + SNAPSHOT_EXTENSION);
+		this.writer = writer;
+		this.log = log;
+		this.codec = new JournalCodec();
+		this.channel = null;
+		this.pending = new ArrayList<Object>();
+		this.scheduled = false;
+		this.closed = false;
+		this.recordCount = 0;
+	}
+
+	/**
+	 * Read the latest snapshot and the entries written after it, then open the journal for appending. A partial
+	 * record left by a crash is discarded. A journal that can't be read at all is set aside and a new one started.
+	 *
+	 * @return The saved snapshot and entries.
+	 * @throws IOException
+	 */
+	Contents recover() throws IOException {
+		Files.createDirectories(this.journalFile.getParent());
+		final String snapshot = Files.exists(this.snapshotFile)
+				? new String(Files.readAllBytes(this.snapshotFile), StandardCharsets.UTF_8) : null;
+		final ArrayList<JournalEntry> entries = new ArrayList<JournalEntry>();
+		int validLength = 0;
+		if (Files.exists(this.journalFile) && Files.size(this.journalFile) > 0) {
+			try {
+				final JournalReader reader = new JournalReader(this.journalFile);
+				while (true) {
+					try {
+						final JournalEntry entry = reader.next();
+						if (entry == null) {
+							break;
+						}
+						entries.add(entry);
+					} catch (final IOException exception) {
+						this.log.accept("Skipping unreadable entry in journal: " + exception);
+						exception.printStackTrace();
+					}
+				}
+				validLength = reader.getValidLength();
+				this.codec.prime(reader.getStrings());
+			} catch (final IOException exception) {
+				final Path unreadable =
+						this.journalFile.resolveSibling(this.journalFile.getFileName() + UNREADABLE_EXTENSION);
+				this.log.accept("Couldn't read journal, moving it to " + unreadable + ": " + exception);
+				exception.printStackTrace();
+				Files.move(this.journalFile, unreadable, StandardCopyOption.REPLACE_EXISTING);
+				entries.clear();
+			}
+		}
+		this.channel = FileChannel.open(this.journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (validLength == 0) {
+			this.channel.truncate(0);
+			this.writeHeader();
+			this.codec.reset();
+		} else {
+			this.channel.truncate(validLength);
+			this.channel.position(validLength);
+		}
+		this.recordCount = entries.size();
+		return new Contents(snapshot, entries);
+	}
+
+	/**
+	 * Add an entry to the journal. It is encoded by the calling thread and written in the background.
+	 *
+	 * @param entry
+	 *            The entry.
+	 * @return The number of entries since the last snapshot, including this one.
+	 */
+	int append(final JournalEntry entry) {
+		final byte[] records;
+		try {
+			records = this.codec.encode(entry);
+		} catch (final IOException exception) {
+			this.log.accept("Couldn't encode journal entry: " + exception);
+			exception.printStackTrace();
+			synchronized (this) {
+				return this.recordCount;
+			}
+		}
+		final int count;
+		synchronized (this) {
+			this.pending.add(records);
+			count = ++this.recordCount;
+		}
+		this.schedule();
+		return count;
+	}
+
+	/**
+	 * Replace the journal with a snapshot of the game that includes every record appended so far.
+	 *
+	 * @param snapshot
+	 *            The encoded game.
+	 */
+	void compact(final String snapshot) {
+		// The journal starts over by defining the strings again, so later records can keep using their numbers
+		final List<String> strings = this.codec.getStrings();
+		synchronized (this) {
+			this.pending.add(new Snapshot(snapshot, strings));
+			this.recordCount = 0;
+		}
+		this.schedule();
+	}
+
+	/**
+	 * Run an action once every record appended so far is safely on disk.
+	 *
+	 * @param action
+	 *            The action to run. It is run by the writer, in the order actions were added.
+	 */
+	void whenDurable(final Runnable action) {
+		synchronized (this) {
+			this.pending.add(action);
+		}
+		this.schedule();
+	}
+
+	/**
+	 * Write anything still pending and close the journal.
+	 */
+	void close() {
+		synchronized (this) {
+			this.closed = true;
+		}
+		this.writer.execute(() -> {
+			this.flush();
+			try {
+				if (this.channel != null) {
+					this.channel.close();
+				}
+			} catch (final IOException exception) {
+				this.log.accept("Couldn't close journal: " + exception);
+				exception.printStackTrace();
+			}
+		});
+	}
+
+	private void schedule() {
+		synchronized (this) {
+			if (this.scheduled || this.closed) {
+				return;
+			}
+			this.scheduled = true;
+		}
+		this.writer.execute(this::flush);
+	}
+
+	/**
+	 * Write everything pending, sync it to disk, then run the actions that were waiting for it.
+	 */
+	private void flush() {
+		final ArrayList<Object> batch;
+		synchronized (this) {
+			this.scheduled = false;
+			batch = new ArrayList<Object>(this.pending);
+			this.pending.clear();
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		final ArrayList<Runnable> actions = new ArrayList<Runnable>();
+		for (final Object item : batch) {
+			if (item instanceof Runnable) {
+				actions.add((Runnable) item);
+			}
+		}
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try {
+			if (this.channel == null) {
+				throw new IOException("Journal not open");
+			}
+			for (final Object item : batch) {
+				if (item instanceof byte[]) {
+					final byte[] bytes = (byte[]) item;
+					buffer.write(bytes, 0, bytes.length);
+				} else if (item instanceof Snapshot) {
+					final Snapshot snapshot = (Snapshot) item;
+					try {
+						this.writeSnapshot(snapshot.snapshot);
+					} catch (final IOException exception) {
+						// The journal still has every record, so carry on appending to it
+						this.log.accept("Couldn't write snapshot, keeping the whole journal: " + exception);
+						exception.printStackTrace();
+						continue;
+					}
+					// Records before the snapshot are included in it
+					buffer.reset();
+					this.channel.truncate(0);
+					this.channel.position(0);
+					final byte[] header = JournalCodec.header(snapshot.strings);
+					buffer.write(header, 0, header.length);
+				}
+			}
+			final ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+			while (bytes.hasRemaining()) {
+				this.channel.write(bytes);
+			}
+			this.channel.force(false);
+		} catch (final IOException exception) {
+			this.log.accept("Couldn't write journal: " + exception);
+			exception.printStackTrace();
+		}
+		// Actions run even if the write failed, so clients aren't left waiting forever
+		for (final Runnable action : actions) {
+			action.run();
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		final ByteBuffer bytes = ByteBuffer.wrap(JournalCodec.header());
+		while (bytes.hasRemaining()) {
+			this.channel.write(bytes);
+		}
+		this.channel.force(false);
+	}
+
+	private void writeSnapshot(final String snapshot) throws IOException {
+		final Path tempFile = this.snapshotFile.resolveSibling(this.snapshotFile.getFileName() + ".tmp");
+		try (FileChannel snapshotChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer bytes = ByteBuffer.wrap(snapshot.getBytes(StandardCharsets.UTF_8));
+			while (bytes.hasRemaining()) {
+				snapshotChannel.write(bytes);
+			}
+			snapshotChannel.force(false);
+		}
+		Files.move(tempFile, this.snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * The contents of a journal read during recovery.
+	 */
+	static final class Contents {
+		private final String				snapshot;
+		private final List<JournalEntry>	entries;
+
+		private Contents(final String snapshot, final List<JournalEntry> entries) {
+			this.snapshot = snapshot;
+			this.entries = entries;
+		}
+
+		/**
+		 * @return The encoded game from the last compaction, or null if there hasn't been one.
+		 */
+		String getSnapshot() {
+			return this.snapshot;
+		}
+
+		/**
+		 * @return The entries appended since the snapshot, oldest first.
+		 */
+		List<JournalEntry> getEntries() {
+			return this.entries;
+		}
+	}
+
+	/**
+	 * A snapshot waiting to be written, and the dictionary the records after it use.
+	 */
+	private static final class Snapshot {
+		private final String		snapshot;
+		private final List<String>	strings;
+
+		private Snapshot(final String snapshot, final List<String> strings) {
+			this.snapshot = snapshot;
+			this.strings = strings;
+		}
+	}
+
+}
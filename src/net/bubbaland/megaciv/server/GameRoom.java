@@ -0,0 +1,1030 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.websocket.Session;
+
+import net.bubbaland.megaciv.game.Civilization;
+import net.bubbaland.megaciv.game.Civilization.AstChange;
+import net.bubbaland.megaciv.game.Civilization.Name;
+import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.game.Game.Difficulty;
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.game.Stopwatch;
+import net.bubbaland.megaciv.game.Technology;
+import net.bubbaland.megaciv.game.User;
+import net.bubbaland.megaciv.messages.AdditionalCreditMessage;
+import net.bubbaland.megaciv.messages.AdvanceAstMessage;
+import net.bubbaland.megaciv.messages.CensusMessage;
+import net.bubbaland.megaciv.messages.CityUpdateMessage;
+import net.bubbaland.megaciv.messages.CivEditMessage;
+import net.bubbaland.megaciv.messages.ClientMessage;
+import net.bubbaland.megaciv.messages.GameDataMessage;
+import net.bubbaland.megaciv.messages.GameDeltaMessage;
+import net.bubbaland.megaciv.messages.GameLogPageMessage;
+import net.bubbaland.megaciv.messages.GameLogRequestMessage;
+import net.bubbaland.megaciv.messages.GameResyncMessage;
+import net.bubbaland.megaciv.messages.KeepAliveMessage;
+import net.bubbaland.megaciv.messages.LoadGameMessage;
+import net.bubbaland.megaciv.messages.MessageCodec;
+import net.bubbaland.megaciv.messages.NewGameMessage;
+import net.bubbaland.megaciv.messages.PresenceDeltaMessage;
+import net.bubbaland.megaciv.messages.RetireMessage;
+import net.bubbaland.megaciv.messages.ServerMessage;
+import net.bubbaland.megaciv.messages.SetUserMessage;
+import net.bubbaland.megaciv.messages.StopwatchMessage;
+import net.bubbaland.megaciv.messages.TechPurchaseMessage;
+import net.bubbaland.megaciv.messages.UndoPurchaseMessage;
+import net.bubbaland.megaciv.messages.UserListMessage;
+import net.bubbaland.megaciv.server.MessageRoutes.Channel;
+import net.bubbaland.megaciv.server.SessionOutbox.FrameType;
+
+/**
+ * A single game hosted by the server, along with its stopwatch and the clients connected to it. Each room applies
+ * messages on its own {@link GameActor}; all rooms share the server's transport, codec and thread pool.
+ */
+public class GameRoom {
+
+	private final String									id;
+	private final GameServer								server;
+
+	private Game											game;
+
+	private final Stopwatch									stopwatch;
+
+	private final Hashtable<Session, ClientMessageReceiver>	sessionList;
+
+	// Most recent encoded game snapshot, reused for new connections until the game changes
+	private volatile SnapshotFrame							snapshotFrame;
+
+	// Most recent encoded stopwatch event, reused for new connections
+	private volatile String									clockFrame;
+
+	// Single writer for the game; every change to game or session state runs here
+	private final GameActor									actor;
+
+	// Connections that have joined (or are joining) this room, and the last time anything happened
+	private final AtomicInteger								connections;
+	private volatile long									lastActivity;
+
+	// Time from a message arriving to its result being broadcast
+	private final LongAdder									latencyCount;
+	private final LongAdder									latencyNanos;
+	private final LongAccumulator							maxLatencyNanos;
+
+	// Durable record of changes to the game, or null if changes aren't recorded
+	private final GameJournal								journal;
+
+	// Whether the game's recovery from the journal has been queued, and released once it has finished
+	private final AtomicBoolean								recoveryQueued;
+	private final CountDownLatch							recovered;
+
+	// Recent deltas, replayed to clients that missed them
+	private final DeltaHistory								history;
+
+	// Version given to the first game in this room. Starting from the clock means versions from before a restart
+	// aren't mistaken for current ones.
+	private final long										initialVersion;
+
+	// Users connected to this room
+	private final PresenceRegistry							presence;
+
+	// Writer of periodic save files, or null if the game isn't autosaved, and the version last saved
+	private final GameAutosaver								autosaver;
+	private long											autosavedVersion;
+
+	// Log of the game, kept apart from it so it can grow without making every snapshot larger
+	private final EventLog									eventLog;
+
+	// Changes applied but not yet broadcast while coalescing
+	private final ScheduledExecutorService					timer;
+	private boolean											flushScheduled;
+	private boolean											deltaPending;
+	private long											pendingBaseVersion;
+	private final HashSet<Civilization.Name>				pendingChangedCivs;
+	private final HashSet<Civilization.Name>				pendingRetiredCivs;
+	private final ArrayList<Long>							pendingArrivals;
+	private long											coalesceWindowNanos;
+
+	// Total size of frames queued for clients
+	private final LongAdder									bytesSent;
+
+	// Maximum number of client messages waiting to be applied to the game
+	private static final int								MAILBOX_CAPACITY	= 1024;
+
+	// Number of journal records between compactions
+	private static final int								COMPACTION_INTERVAL	= 500;
+
+	// Number of recent deltas kept for clients that reconnect or miss an update
+	private static final int								HISTORY_CAPACITY	= 256;
+
+	/**
+	 * Create a new room with no game.
+	 *
+	 * @param id
+	 *            The room identifier.
+	 * @param server
+	 *            The server hosting the room.
+	 * @param executor
+	 *            Executor shared by all rooms to apply messages.
+	 * @param timer
+	 *            Timer used to delay coalesced broadcasts.
+	 * @param journal
+	 *            Journal to record changes in, or null to keep the game only in memory.
+	 * @param autosaver
+	 *            Writer of save files, or null if the game isn't autosaved.
+	 * @param eventLog
+	 *            Log of the room's game.
+	 */
+	GameRoom(final String id, final GameServer server, final Executor executor, final ScheduledExecutorService timer,
+			final GameJournal journal, final GameAutosaver autosaver, final EventLog eventLog) {
+		this.id = id;
+		this.server = server;
+		this.game = null;
+		this.sessionList = new Hashtable<Session, ClientMessageReceiver>();
+		this.stopwatch = new Stopwatch(Duration.ofMinutes(5));
+		this.snapshotFrame = null;
+		this.clockFrame = null;
+		this.actor = new GameActor(executor, MAILBOX_CAPACITY);
+		this.connections = new AtomicInteger(0);
+		this.lastActivity = System.nanoTime();
+		this.latencyCount = new LongAdder();
+		this.latencyNanos = new LongAdder();
+		this.maxLatencyNanos = new LongAccumulator(Math::max, 0);
+		this.presence = new PresenceRegistry();
+		this.journal = journal;
+		this.recoveryQueued = new AtomicBoolean(false);
+		this.recovered = new CountDownLatch(1);
+		this.autosaver = autosaver;
+		this.autosavedVersion = -1;
+		this.eventLog = eventLog;
+		this.history = new DeltaHistory(HISTORY_CAPACITY);
+		this.initialVersion = System.currentTimeMillis() * 1000;
+		this.timer = timer;
+		this.flushScheduled = false;
+		this.deltaPending = false;
+		this.pendingChangedCivs = new HashSet<Civilization.Name>();
+		this.pendingRetiredCivs = new HashSet<Civilization.Name>();
+		this.pendingArrivals = new ArrayList<Long>();
+		this.coalesceWindowNanos = server.getMinCoalesceWindow().toNanos();
+		this.bytesSent = new LongAdder();
+	}
+
+	public void addSession(final Session session, final ClientMessageReceiver endpoint) {
+		this.actor.submit(() -> {
+			this.log("New client connecting...");
+			this.sessionList.put(session, endpoint);
+			final PresenceDeltaMessage joined = this.presence.join(session.getId(), endpoint.getUser());
+			// The new client needs the whole list; everyone else only needs to know who joined
+			this.sendFrame(session, FrameType.USERS, this.encode(this.presence.snapshot()));
+			this.broadcastMessage(joined);
+		});
+	}
+
+	public void removeSession(final Session session) {
+		this.connections.decrementAndGet();
+		this.lastActivity = System.nanoTime();
+		this.actor.submit(() -> {
+			final ClientMessageReceiver endpoint = this.sessionList.remove(session);
+			if (endpoint != null) {
+				this.log(endpoint.getUser() + " disconnected");
+			}
+			final PresenceDeltaMessage left = this.presence.leave(session.getId());
+			if (left != null) {
+				this.broadcastMessage(left);
+			}
+		});
+	}
+
+	/**
+	 * Broadcast the activity times of users who have sent messages since the last digest.
+	 */
+	void publishActivity() {
+		this.actor.submit(() -> {
+			final PresenceDeltaMessage digest = this.presence.digest();
+			if (digest != null) {
+				this.broadcastMessage(digest);
+			}
+		});
+	}
+
+	/**
+	 * Queue a message from a client to be applied to the game. Messages are applied one at a time in the order they
+	 * arrive. Waits if too many messages are already queued, so must not be called from the game actor.
+	 *
+	 * @param message
+	 *            The message from the client.
+	 * @param session
+	 *            The session that sent the message.
+	 */
+	public void processIncomingMessage(final ClientMessage message, final Session session) {
+		final long queuedTime = System.nanoTime();
+		this.lastActivity = queuedTime;
+		this.actor.submitFromClient(() -> this.applyMessage(message, session, queuedTime));
+	}
+
+	/**
+	 * Apply a message from a client to the game and broadcast the result. Must only be run by the game actor.
+	 *
+	 * @param message
+	 *            The message from the client.
+	 * @param session
+	 *            The session that sent the message.
+	 * @param queuedTime
+	 *            When the message arrived.
+	 */
+	private void applyMessage(final ClientMessage message, final Session session, final long queuedTime) {
+		final String messageType = message.getClass().getSimpleName();
+		final Set<Channel> channels = MessageRoutes.getChannels(message);
+		if (channels == null) {
+			this.log("ERROR: Unknown message type received: " + messageType);
+			return;
+		}
+		// Sessions are released as soon as they close or are evicted, which may be after their messages were queued
+		final ClientMessageReceiver endpoint = this.sessionList.get(session);
+		if (endpoint == null) {
+			this.log("Dropped " + messageType + " from closed session " + session.getId());
+			return;
+		}
+		final User user = endpoint.getUser();
+		user.updateActivity();
+		this.presence.touch(session.getId(), user);
+		final GameEvent event = new GameEvent(message.getEventType(), user, message.toString());
+
+		// Track what changed so only the differences need to be sent to clients
+		final long baseVersion = this.game != null ? this.game.getVersion() : this.initialVersion;
+		final HashSet<Civilization.Name> changedCivs = new HashSet<Civilization.Name>();
+		final HashSet<Civilization.Name> retiredCivs = new HashSet<Civilization.Name>();
+		PresenceDeltaMessage presenceChange = null;
+		boolean newGame = false;
+
+		switch (messageType) {
+			case "GameResyncMessage":
+				this.catchUp(session, ( (GameResyncMessage) message ).getLastVersion());
+				this.sendFrame(session, FrameType.USERS, this.encode(this.presence.snapshot()));
+				return;
+			case "GameLogRequestMessage":
+				this.sendLogPage(session, (GameLogRequestMessage) message);
+				return;
+			case "StopwatchMessage":
+				this.stopwatch.remoteEvent((StopwatchMessage) message);
+				break;
+			case "SetUserMessage":
+				final User newUser = ( (SetUserMessage) message ).getUser();
+				endpoint.setUser(newUser);
+				presenceChange = this.presence.rename(session.getId(), newUser);
+				// this.log(user.getUserName() + " changed name to " + newUser.getUserName());
+				break;
+			case "KeepAliveMessage":
+				this.sendFrame(session, FrameType.ESSENTIAL, this.encode((KeepAliveMessage) message));
+				break;
+			default:
+				newGame = this.applyToGame(message, baseVersion, changedCivs, retiredCivs);
+				break;
+		}
+		this.log(event.toString());
+		if (channels.contains(Channel.STOPWATCH)) {
+			this.broadcastMessage((StopwatchMessage) message);
+		}
+		if (channels.contains(Channel.USERS) && presenceChange != null) {
+			this.broadcastMessage(presenceChange);
+		}
+		boolean gameChanged = false;
+		if (this.game != null && channels.contains(Channel.GAME)) {
+			this.logEvent(event, message);
+			if (!newGame) {
+				this.game.nextVersion();
+			}
+			this.journal(event, message, newGame);
+			if (message instanceof AdvanceAstMessage) {
+				this.saveGame("round " + this.game.getCurrentRound() + " started");
+			}
+			if (newGame) {
+				// A replaced game can't be described as changes to the old one
+				this.deltaPending = false;
+				this.pendingChangedCivs.clear();
+				this.pendingRetiredCivs.clear();
+				this.broadcastWhenDurable(new GameDataMessage(this.game));
+			} else {
+				gameChanged = true;
+			}
+		}
+		if (this.server.isCoalescing()) {
+			if (gameChanged) {
+				if (!this.deltaPending) {
+					this.deltaPending = true;
+					this.pendingBaseVersion = baseVersion;
+				}
+				this.pendingChangedCivs.addAll(changedCivs);
+				this.pendingRetiredCivs.addAll(retiredCivs);
+				this.pendingArrivals.add(queuedTime);
+				if (!this.flushScheduled) {
+					this.flushScheduled = true;
+					this.timer.schedule(() -> this.actor.submit(this::flushPending), this.coalesceWindowNanos,
+							TimeUnit.NANOSECONDS);
+				}
+				return;
+			}
+		} else {
+			this.flushPending();
+			if (gameChanged) {
+				this.broadcastWhenDurable(new GameDeltaMessage(baseVersion, this.game, changedCivs, retiredCivs));
+			}
+		}
+		this.recordLatency(System.nanoTime() - queuedTime);
+	}
+
+	/**
+	 * Record a change to the game in the journal. The journal is compacted when the game is replaced, and otherwise
+	 * every {@link #COMPACTION_INTERVAL} records. Must only be run by the game actor.
+	 *
+	 * @param event
+	 *            The event logged for the change.
+	 * @param message
+	 *            The message that made the change.
+	 * @param newGame
+	 *            Whether the message replaced the game.
+	 */
+	private void journal(final GameEvent event, final ClientMessage message, final boolean newGame) {
+		if (this.journal == null) {
+			return;
+		}
+		final int records = this.journal.append(new JournalEntry(this.game.getVersion(), event, message));
+		if (newGame || records >= COMPACTION_INTERVAL) {
+			final String snapshot = this.getSnapshotFrame();
+			if (snapshot != null) {
+				this.journal.compact(snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Add an event to the game's log. Must only be run by the game actor.
+	 *
+	 * @param event
+	 *            The event.
+	 * @param message
+	 *            The message the event describes.
+	 */
+	private void logEvent(final GameEvent event, final ClientMessage message) {
+		this.eventLog.append(event, message);
+		this.game.setLogLength(this.eventLog.size());
+	}
+
+	/**
+	 * Start the log over with the events saved with a game that replaced the old one. The saved events are moved into
+	 * the log, so they aren't also kept in the game. Must only be run by the game actor.
+	 */
+	private void replaceLog() {
+		this.eventLog.reset(this.game.getLog());
+		this.game.getLog().clear();
+		this.game.setLogLength(this.eventLog.size());
+	}
+
+	/**
+	 * Send a client a page of the log. Recent events are sent at once; older ones are sent once they have been read
+	 * from the log file. Must only be run by the game actor.
+	 *
+	 * @param session
+	 *            The client's session.
+	 * @param request
+	 *            The client's request.
+	 */
+	private void sendLogPage(final Session session, final GameLogRequestMessage request) {
+		final int start = request.getSince() != null ? this.eventLog.indexAt(request.getSince()) : request.getStart();
+		final int logLength = this.eventLog.size();
+		final int firstAvailable = this.eventLog.getFirstAvailable();
+		this.eventLog.read(start, Math.max(request.getMaxEvents(), 0), request.getUntil(), (first, events) -> {
+			final GameLogPageMessage page =
+					new GameLogPageMessage(request.getRequestId(), first, events, logLength, firstAvailable);
+			this.actor.submit(() -> this.sendFrame(session, FrameType.ESSENTIAL, this.encode(page)));
+		});
+	}
+
+	/**
+	 * Rebuild the game from the journal, and wait until it has been rebuilt. Must be called before any clients join
+	 * the room. Recovery is the actor's first task, so nothing else touches the game until it is done; only the first
+	 * call starts it, and later ones just wait for it.
+	 */
+	void recover() {
+		if (this.recoveryQueued.compareAndSet(false, true)) {
+			this.actor.submit(() -> {
+				try {
+					this.replayJournal();
+				} finally {
+					this.recovered.countDown();
+				}
+			});
+		}
+		try {
+			this.recovered.await();
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Load the last snapshot from the journal, then apply the changes recorded after it. Must only be run by the game
+	 * actor.
+	 */
+	private void replayJournal() {
+		if (this.journal == null) {
+			return;
+		}
+		final GameJournal.Contents contents;
+		try {
+			contents = this.journal.recover();
+			if (contents.getSnapshot() != null) {
+				this.game = ( (GameDataMessage) MessageCodec.decodeServerMessage(contents.getSnapshot()) ).getGame();
+			}
+			final int expectedLength = this.game != null ? this.game.getLogLength() : 0;
+			final int logLength = this.eventLog.recover(expectedLength);
+			if (this.game != null && !this.game.getLog().isEmpty()) {
+				// Snapshots from before the log was kept separately include the events themselves
+				this.replaceLog();
+			} else if (this.game != null) {
+				if (logLength < expectedLength) {
+					this.log("WARNING: Only " + logLength + " of " + expectedLength + " log events recovered");
+				}
+				this.game.setLogLength(logLength);
+			}
+		} catch (final IOException exception) {
+			this.log("Couldn't read journal:");
+			exception.printStackTrace();
+			return;
+		}
+		int replayed = 0;
+		for (final JournalEntry entry : contents.getEntries()) {
+			if (this.game != null && entry.getVersion() <= this.game.getVersion()) {
+				// Already included in the snapshot
+				continue;
+			}
+			final long baseVersion = this.game != null ? this.game.getVersion() : this.initialVersion;
+			this.applyToGame(entry.getMessage(), baseVersion, new HashSet<Civilization.Name>(),
+					new HashSet<Civilization.Name>());
+			if (this.game != null) {
+				this.logEvent(entry.getEvent(), entry.getMessage());
+				this.game.setVersion(entry.getVersion());
+			}
+			replayed++;
+		}
+		if (this.game != null) {
+			this.log("Recovered game at version " + this.game.getVersion() + " (" + replayed
+					+ " changes replayed from journal)");
+		}
+	}
+
+	/**
+	 * Save the game in the background if it has changed since it was last saved.
+	 *
+	 * @param reason
+	 *            Why the game is being saved, for the log.
+	 */
+	void autosave(final String reason) {
+		if (this.autosaver != null) {
+			this.actor.submit(() -> this.saveGame(reason));
+		}
+	}
+
+	/**
+	 * Hand the current game to the autosaver. Must only be run by the game actor. The encoded snapshot is immutable,
+	 * and the log is read only up to its current length, so the game can keep changing while it is written. The save
+	 * is started once the log has been written out.
+	 */
+	private void saveGame(final String reason) {
+		if (this.autosaver == null || this.game == null || this.game.getVersion() == this.autosavedVersion) {
+			return;
+		}
+		final String snapshot = this.getSnapshotFrame();
+		if (snapshot != null) {
+			this.autosavedVersion = this.game.getVersion();
+			final EventLog.Reader log = this.eventLog.reader();
+			this.eventLog.whenWritten(() -> this.autosaver.save(this, snapshot, log, reason));
+		}
+	}
+
+	/**
+	 * Apply the messages already received, broadcast any coalesced changes, and save the game, then count down once
+	 * the journal is on disk and the broadcasts waiting for it have been queued. Used when the server stops, so the
+	 * actor is no longer needed once every room has finished.
+	 *
+	 * @param done
+	 *            Counted down once the room has finished.
+	 */
+	void finish(final CountDownLatch done) {
+		this.actor.submit(() -> {
+			try {
+				this.flushPending();
+				this.saveGame("server stopped");
+			} finally {
+				if (this.journal == null) {
+					done.countDown();
+				} else {
+					// Durable actions run in order, so this runs after those queued before it
+					this.journal.whenDurable(() -> this.actor.submit(done::countDown));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Release the room's resources once it is no longer in use.
+	 */
+	void close() {
+		if (this.journal != null) {
+			this.journal.close();
+		}
+		this.eventLog.close();
+	}
+
+	/**
+	 * Apply a message that changes the game. Used both for messages from clients and when replaying the journal.
+	 *
+	 * @param message
+	 *            The message.
+	 * @param baseVersion
+	 *            The version of the game before the message is applied.
+	 * @param changedCivs
+	 *            Filled with the civilizations the message changed.
+	 * @param retiredCivs
+	 *            Filled with the civilizations the message removed.
+	 * @return Whether the message replaced the game.
+	 */
+	private boolean applyToGame(final ClientMessage message, final long baseVersion,
+			final HashSet<Civilization.Name> changedCivs, final HashSet<Civilization.Name> retiredCivs) {
+		final String messageType = message.getClass().getSimpleName();
+		boolean newGame = false;
+
+		switch (messageType) {
+			case "NewGameMessage":
+				this.game = new Game();
+				final HashMap<Civilization.Name, String> startingCivs = ( (NewGameMessage) message ).getCivNames();
+				this.game.addCivilization(new ArrayList<Civilization.Name>(startingCivs.keySet()));
+				for (final Civilization.Name name : startingCivs.keySet()) {
+					this.game.getCivilization(name).setPlayer(startingCivs.get(name));
+				}
+				if (( (NewGameMessage) message ).useCredits()) {
+					this.game.assignStartCredits();
+				}
+				final Difficulty difficulty = ( (NewGameMessage) message ).getDifficulty();
+				this.game.setDifficulty(difficulty);
+				final Civilization.Region region = ( (NewGameMessage) message ).getRegion();
+				this.game.setRegion(region);
+				this.game.setVersion(baseVersion + 1);
+				newGame = true;
+
+				// this.log(user + " created new " + WordUtils.capitalizeFully(difficulty.toString())
+				// + " game with the following civilizations: " + startingCivs);
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			case "CensusMessage":
+				final HashMap<Civilization.Name, Integer> census = ( (CensusMessage) message ).getCensus();
+				for (final Civilization.Name name : census.keySet()) {
+					// this.log(name + " " + census.get(name) + " " + this.game.getCivilization(name));
+					this.game.getCivilization(name).setPopulation(census.get(name));
+				}
+				changedCivs.addAll(census.keySet());
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				// this.log("Census reported by " + user + ": " + census);
+				break;
+			case "CityUpdateMessage":
+				final HashMap<Civilization.Name, Integer> cityCount = ( (CityUpdateMessage) message ).getCityCount();
+				for (final Civilization.Name name : cityCount.keySet()) {
+					this.game.getCivilization(name).setCityCount(cityCount.get(name));
+				}
+				changedCivs.addAll(cityCount.keySet());
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				// this.log("City counts updated by " + user + ": " + cityCount);
+				break;
+			case "TechPurchaseMessage": {
+				final Civilization.Name name = ( (TechPurchaseMessage) message ).getCivName();
+				final Civilization civ = this.game.getCivilization(name);
+				final ArrayList<Technology> newTechs = ( (TechPurchaseMessage) message ).getTechs();
+				for (final Technology newTech : newTechs) {
+					civ.addTech(newTech, this.game.getCurrentRound());
+				}
+				civ.setPurchased(true);
+				changedCivs.add(name);
+				// this.log(name + " bought the following technologies: " + newTechs + " (via " + user + ")");
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			}
+			case "UndoPurchaseMessage": {
+				final Civilization.Name name = ( (UndoPurchaseMessage) message ).getCivName();
+				final Civilization civ = this.game.getCivilization(name);
+				final int currentRound = this.game.getCurrentRound();
+				civ.undoTechPurchase(currentRound);
+				civ.setPurchased(false);
+				changedCivs.add(name);
+				// this.log(name + " undid the following technology purchases from this round: " + undoneTechs + " (via
+				// "
+				// + user + ")");
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			}
+			case "AdvanceAstMessage":
+				final HashMap<Name, AstChange> advanceAst = ( (AdvanceAstMessage) message ).getAdvanceAst();
+				for (final Civilization.Name name : advanceAst.keySet()) {
+					this.game.getCivilization(name).changeAst(advanceAst.get(name));
+				}
+				this.game.nextRound();
+				// A new round resets purchases for every civilization
+				changedCivs.addAll(this.game.getCivilizationNames());
+				// this.log("Ast advances triggered by " + user + ": " + advanceAst);
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			case "AdditionalCreditMessage": {
+				final ArrayList<Technology.Type> credits = ( (AdditionalCreditMessage) message ).getCredits();
+				final Technology tech = ( (AdditionalCreditMessage) message ).getTech();
+				final Civilization.Name name = ( (AdditionalCreditMessage) message ).getCivName();
+				final Civilization civ = this.game.getCivilization(name);
+				civ.addTypeCredits(tech, credits);
+				changedCivs.add(name);
+				// this.log("Additional credits add to " + name.toString() + " by " + user + " for tech " + tech + ": "
+				// + credits);
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			}
+			case "LoadGameMessage":
+				this.game = ( (LoadGameMessage) message ).getGame();
+				this.game.setVersion(baseVersion + 1);
+				newGame = true;
+				// this.log("Game loaded from save by " + user);
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			case "RetireMessage":
+				final Civilization.Name name = ( (RetireMessage) message ).getCivName();
+				this.game.retireCivilization(name);
+				retiredCivs.add(name);
+				// this.log(name.toString() + " has retired!");
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			case "CivEditMessage":
+				final Civilization civ = ( (CivEditMessage) message ).getCivilization();
+				// Civilization oldCiv = this.game.getCivilization(civ.getName());
+				this.game.setCivilization(civ);
+				changedCivs.add(civ.getName());
+				// this.log("Civilization edited by " + user + ":\n" + "Before Edit: " + oldCiv.toFullString() + "\n"
+				// + "After Edit: " + civ.toFullString());
+				// this.broadcastMessage(new GameDataMessage(this.game));
+				break;
+			default:
+				break;
+		}
+		if (newGame) {
+			this.replaceLog();
+		}
+		return newGame;
+	}
+
+	/**
+	 * Broadcast everything that changed since the last coalesced broadcast as a single update, then adjust the window:
+	 * wider if several messages arrived together, narrower if only one did. Must only be run by the game actor.
+	 */
+	private void flushPending() {
+		this.flushScheduled = false;
+		final int coalesced = this.pendingArrivals.size();
+		if (coalesced == 0) {
+			return;
+		}
+		if (this.deltaPending && this.game != null) {
+			this.broadcastWhenDurable(new GameDeltaMessage(this.pendingBaseVersion, this.game, this.pendingChangedCivs,
+					this.pendingRetiredCivs));
+		}
+		final long now = System.nanoTime();
+		for (final long arrival : this.pendingArrivals) {
+			this.recordLatency(now - arrival);
+		}
+		this.deltaPending = false;
+		this.pendingChangedCivs.clear();
+		this.pendingRetiredCivs.clear();
+		this.pendingArrivals.clear();
+
+		final long minWindow = this.server.getMinCoalesceWindow().toNanos();
+		final long maxWindow = this.server.getMaxCoalesceWindow().toNanos();
+		if (coalesced > 1 || this.actor.getQueueDepth() > 0) {
+			this.coalesceWindowNanos = Math.min(maxWindow, this.coalesceWindowNanos * 3 / 2);
+		} else {
+			this.coalesceWindowNanos = Math.max(minWindow, this.coalesceWindowNanos * 2 / 3);
+		}
+	}
+
+	public void communicationsError(final Session session, final Throwable throwable) {
+		final ClientMessageReceiver endpoint = this.sessionList.get(session);
+		final String name = endpoint != null ? endpoint.getUser().getUserName() : "session " + session.getId();
+		this.log("Error while communicating with " + name + ":");
+		throwable.printStackTrace();
+	}
+
+	/**
+	 * Bring a newly connected client up to date with the game.
+	 *
+	 * @param session
+	 *            The client's session.
+	 * @param lastVersion
+	 *            The version of the game the client already has, or {@link GameResyncMessage#NO_VERSION}.
+	 */
+	void sendGame(final Session session, final long lastVersion) {
+		this.actor.submit(() -> this.catchUp(session, lastVersion));
+	}
+
+	/**
+	 * Send a client the deltas it missed since the version it has, or a full copy of the game if they're no longer
+	 * available. Like broadcasts, they are only sent once the changes they include are on disk, so a client is never
+	 * given a version the server could lose in a crash and then reuse for a different game. Must only be run by the
+	 * game actor.
+	 *
+	 * @param session
+	 *            The client's session.
+	 * @param lastVersion
+	 *            The version of the game the client already has.
+	 */
+	private void catchUp(final Session session, final long lastVersion) {
+		// Deltas and the snapshot include any changes waiting to be broadcast, so send those first
+		this.flushPending();
+		final List<String> missed = this.game != null && lastVersion != GameResyncMessage.NO_VERSION
+				? this.history.since(lastVersion, this.game.getVersion()) : null;
+		if (missed == null) {
+			this.sendWhenDurable(session, FrameType.SNAPSHOT, this.getSnapshotFrame());
+		} else {
+			for (final String frame : missed) {
+				this.sendWhenDurable(session, FrameType.DELTA, frame);
+			}
+			this.log("Replayed " + missed.size() + " updates since version " + lastVersion + " to session "
+					+ session.getId());
+		}
+	}
+
+	void sendClock(final Session session) {
+		this.actor.submit(() -> this.sendClockFrame(session));
+	}
+
+	private void sendClockFrame(final Session session) {
+		String frame = this.clockFrame;
+		if (frame == null) {
+			final Instant startTime = this.stopwatch.getStartTime();
+			final StopwatchMessage message;
+			if (this.stopwatch.isRunning()) {
+				message = this.stopwatch.generateTimerMessage(Stopwatch.StopwatchEvent.START, startTime);
+			} else {
+				message = this.stopwatch.generateTimerMessage(Stopwatch.StopwatchEvent.STOP, startTime);
+			}
+			frame = this.encode(message);
+			this.clockFrame = frame;
+		}
+		this.sendFrame(session, FrameType.ESSENTIAL, frame);
+	}
+
+	/**
+	 * Log the rate at which messages are being applied to the game and how long they take from arrival to broadcast.
+	 */
+	void reportThroughput() {
+		final double rate = this.actor.measureRate();
+		if (rate > 0) {
+			final long count = this.latencyCount.sumThenReset();
+			final long meanLatency = count > 0 ? this.latencyNanos.sumThenReset() / count / 1000 : 0;
+			final long maxLatency = this.maxLatencyNanos.getThenReset() / 1000;
+			this.log(String.format("Processed %.2f messages/s (%d total, %d waiting), latency %d us avg / %d us max",
+					rate, this.actor.getProcessedCount(), this.actor.getQueueDepth(), meanLatency, maxLatency));
+			this.log(String.format("Sent %d bytes, coalescing %s", this.bytesSent.sumThenReset(),
+					this.server.isCoalescing() ? "on (" + this.coalesceWindowNanos / 1000000 + " ms window)" : "off"));
+		}
+	}
+
+	/**
+	 * Disconnect clients that have fallen too far behind and log the state of any client that is backed up or has
+	 * missed messages.
+	 */
+	void checkOutboxes() {
+		this.actor.submit(() -> {
+			for (final ClientMessageReceiver endpoint : this.sessionList.values()) {
+				final SessionOutbox outbox = endpoint.getOutbox();
+				if (outbox.disconnectIfSlow()) {
+					this.log(endpoint.getUser() + " disconnected for falling behind (" + outbox + ")");
+				} else if (outbox.getQueueDepth() > 0 || outbox.getDroppedCount() > 0) {
+					this.log(endpoint.getUser() + " outbox: " + outbox);
+				}
+			}
+		});
+	}
+
+	private void recordLatency(final long nanos) {
+		this.latencyCount.increment();
+		this.latencyNanos.add(nanos);
+		this.maxLatencyNanos.accumulate(nanos);
+	}
+
+	/**
+	 * Determine whether this room can be discarded: nobody is connected and nothing has happened for a while.
+	 *
+	 * @param idleTimeout
+	 *            How long the room must have been inactive.
+	 * @return Whether the room is idle.
+	 */
+	boolean isIdle(final Duration idleTimeout) {
+		return this.connections.get() == 0 && System.nanoTime() - this.lastActivity > idleTimeout.toNanos();
+	}
+
+	/**
+	 * Reserve a place in this room for a new connection, so the room isn't discarded while the connection is being set
+	 * up.
+	 */
+	void reserveConnection() {
+		this.connections.incrementAndGet();
+		this.lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * Get the room identifier.
+	 *
+	 * @return The room identifier.
+	 */
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * Print a message with timestamp and room identifier to the console.
+	 *
+	 * @param message
+	 *            The message
+	 */
+	void log(final String message) {
+		this.server.log("[" + this.id + "] " + message);
+	}
+
+	/**
+	 * Get the encoded snapshot of the current game, encoding it only if the game has changed since the last snapshot
+	 * was encoded. Must only be run by the game actor, so the game can't change while it is being encoded.
+	 *
+	 * @return The encoded GameDataMessage for the current game.
+	 */
+	private String getSnapshotFrame() {
+		final Game game = this.game;
+		final long version = game != null ? game.getVersion() : -1;
+		final SnapshotFrame cached = this.snapshotFrame;
+		if (cached != null && cached.version == version) {
+			return cached.frame;
+		}
+		final String frame = this.encode(new GameDataMessage(game));
+		this.snapshotFrame = new SnapshotFrame(version, frame);
+		return frame;
+	}
+
+	/**
+	 * Encode a message once so the same frame can be sent to any number of clients.
+	 *
+	 * @param message
+	 *            The message to encode.
+	 * @return The encoded message.
+	 */
+	private String encode(final ServerMessage message) {
+		try {
+			return MessageCodec.encode(message);
+		} catch (final IOException exception) {
+			exception.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Queue an already encoded message to be sent to the specified client
+	 *
+	 * @param session
+	 * @param type
+	 * @param frame
+	 */
+	private void sendFrame(final Session session, final FrameType type, final String frame) {
+		final ClientMessageReceiver endpoint = session != null ? this.sessionList.get(session) : null;
+		if (endpoint == null || frame == null) {
+			return;
+		}
+		if (endpoint.getOutbox().offer(type, frame)) {
+			this.bytesSent.add(frame.length());
+		}
+		// this.log("Sent message to " + sessionList.get(session).getUser());
+	}
+
+	/**
+	 * Send a frame to one client once every change journaled so far is on disk.
+	 *
+	 * @param session
+	 *            The client's session.
+	 * @param type
+	 *            What the frame carries.
+	 * @param frame
+	 *            The encoded message.
+	 */
+	private void sendWhenDurable(final Session session, final FrameType type, final String frame) {
+		if (this.journal == null) {
+			this.sendFrame(session, type, frame);
+		} else {
+			this.journal.whenDurable(() -> this.actor.submit(() -> this.sendFrame(session, type, frame)));
+		}
+	}
+
+	/**
+	 * Send a message to every client. The message is only encoded once.
+	 *
+	 * @param message
+	 */
+	private void broadcastMessage(final ServerMessage message) {
+		this.broadcastFrame(GameRoom.getFrameType(message), this.prepareFrame(message));
+	}
+
+	/**
+	 * Send a message to every client once every change recorded in the journal so far is safely on disk, so clients
+	 * never see a change that would be lost if the server stopped. The message is encoded immediately.
+	 *
+	 * @param message
+	 */
+	private void broadcastWhenDurable(final ServerMessage message) {
+		final FrameType type = GameRoom.getFrameType(message);
+		final String frame = this.prepareFrame(message);
+		if (this.journal == null) {
+			this.broadcastFrame(type, frame);
+		} else {
+			this.journal.whenDurable(() -> this.actor.submit(() -> this.broadcastFrame(type, frame)));
+		}
+	}
+
+	private static FrameType getFrameType(final ServerMessage message) {
+		if (message instanceof GameDataMessage) {
+			return FrameType.SNAPSHOT;
+		} else if (message instanceof GameDeltaMessage) {
+			return FrameType.DELTA;
+		} else if (message instanceof UserListMessage) {
+			return FrameType.USERS;
+		} else if (message instanceof PresenceDeltaMessage) {
+			return FrameType.PRESENCE;
+		}
+		return FrameType.ESSENTIAL;
+	}
+
+	/**
+	 * Encode a message to be broadcast, and keep track of the state it represents.
+	 *
+	 * @param message
+	 * @return The encoded message.
+	 */
+	private String prepareFrame(final ServerMessage message) {
+		final String frame;
+		if (message instanceof GameDataMessage) {
+			// A replaced game can't be reached from earlier deltas
+			this.history.clear();
+			frame = ( (GameDataMessage) message ).getGame() == this.game ? this.getSnapshotFrame() : this.encode(message);
+		} else {
+			frame = this.encode(message);
+		}
+		if (message instanceof GameDeltaMessage && frame != null) {
+			this.history.add(( (GameDeltaMessage) message ).getBaseVersion(),
+					( (GameDeltaMessage) message ).getVersion(), frame);
+		}
+		if (message instanceof StopwatchMessage) {
+			// New clients can be synchronized with the last stopwatch event
+			this.clockFrame = frame;
+		}
+		return frame;
+	}
+
+	private void broadcastFrame(final FrameType type, final String frame) {
+		if (frame == null) {
+			return;
+		}
+		for (final ClientMessageReceiver endpoint : this.sessionList.values()) {
+			if (endpoint.getOutbox().offer(type, frame)) {
+				this.bytesSent.add(frame.length());
+			}
+		}
+	}
+
+	/**
+	 * An encoded game snapshot along with the game version it represents.
+	 */
+	private static final class SnapshotFrame {
+		private final long		version;
+		private final String	frame;
+
+		private SnapshotFrame(final long version, final String frame) {
+			this.version = version;
+			this.frame = frame;
+		}
+	}
+
+}
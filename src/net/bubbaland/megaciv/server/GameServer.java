@@ -3,14 +3,24 @@ package net.bubbaland.megaciv.server;
 import java.awt.GraphicsEnvironment;
 import java.awt.GridLayout;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
@@ -26,273 +36,535 @@ import javax.websocket.Session;
 
 import org.glassfish.tyrus.server.Server;
 
-import net.bubbaland.megaciv.game.Civilization;
-import net.bubbaland.megaciv.game.Civilization.AstChange;
-import net.bubbaland.megaciv.game.Civilization.Name;
-import net.bubbaland.megaciv.game.Game;
-import net.bubbaland.megaciv.game.Game.Difficulty;
-import net.bubbaland.megaciv.game.GameEvent;
-import net.bubbaland.megaciv.game.Stopwatch;
-import net.bubbaland.megaciv.game.Technology;
-import net.bubbaland.megaciv.game.User;
-import net.bubbaland.megaciv.messages.AdditionalCreditMessage;
-import net.bubbaland.megaciv.messages.AdvanceAstMessage;
-import net.bubbaland.megaciv.messages.CensusMessage;
-import net.bubbaland.megaciv.messages.CityUpdateMessage;
-import net.bubbaland.megaciv.messages.CivEditMessage;
-import net.bubbaland.megaciv.messages.ClientMessage;
-import net.bubbaland.megaciv.messages.GameDataMessage;
-import net.bubbaland.megaciv.messages.LoadGameMessage;
-import net.bubbaland.megaciv.messages.NewGameMessage;
-import net.bubbaland.megaciv.messages.RetireMessage;
-import net.bubbaland.megaciv.messages.ServerMessage;
-import net.bubbaland.megaciv.messages.SetUserMessage;
-import net.bubbaland.megaciv.messages.StopwatchMessage;
-import net.bubbaland.megaciv.messages.TechPurchaseMessage;
-import net.bubbaland.megaciv.messages.UndoPurchaseMessage;
-import net.bubbaland.megaciv.messages.UserListMessage;
+import net.bubbaland.megaciv.messages.MessageCodec;
 import net.bubbaland.sntp.SntpServer;
 
 public class GameServer extends Server {
 
-	private Game											game;
+	// Room used when a client doesn't ask for one
+	public static final String							DEFAULT_ROOM		= "default";
 
-	private final Server									server;
-	private SntpServer										sntpServer;
+	// Query parameter in the connection URI that selects the room
+	public static final String							ROOM_PARAMETER		= "room";
 
-	private final Stopwatch									stopwatch;
+	// Allowed room identifiers
+	private static final Pattern						ROOM_ID_PATTERN		= Pattern.compile("[A-Za-z0-9_-]{1,64}");
 
-	private boolean											isRunning;
-	private final int										serverPort;
+	// How long a room with nobody connected is kept before being discarded
+	private static final Duration						ROOM_IDLE_TIMEOUT	= Duration.ofHours(1);
 
-	private final Hashtable<Session, ClientMessageReceiver>	sessionList;
+	// Default bounds for the broadcast coalescing window
+	public static final Duration						MIN_COALESCE_WINDOW	= Duration.ofMillis(20);
+	public static final Duration						MAX_COALESCE_WINDOW	= Duration.ofMillis(50);
+
+	// Directory holding each room's journal unless configured otherwise
+	public static final Path							DEFAULT_JOURNAL_DIRECTORY	= Paths.get("journal");
+
+	// Where and how often games are saved unless configured otherwise, and how many saves are kept for each room
+	public static final Path							DEFAULT_AUTOSAVE_DIRECTORY	= Paths.get("autosave");
+	public static final Duration						AUTOSAVE_INTERVAL	= Duration.ofMinutes(5);
+	public static final int								AUTOSAVE_RETENTION	= 20;
+
+	// File the server log is written to unless configured otherwise
+	public static final Path							DEFAULT_LOG_FILE	= Paths.get("server.log");
+
+	// Most characters kept in the console window
+	private static final int							CONSOLE_LENGTH		= 1000000;
+
+	// Longest to wait for each stage of shutting down
+	private static final Duration						SHUTDOWN_TIMEOUT	= Duration.ofSeconds(30);
+
+	// Frequency of user activity digests
+	private static final Duration						PRESENCE_INTERVAL	= Duration.ofSeconds(15);
+
+	// Frequency of throughput reports and idle room checks
+	private static final Duration						STATS_INTERVAL		= Duration.ofMinutes(1);
+
+	private final Server								server;
+	private final SntpServer							sntpServer;
+
+	// Log written to the console and log file in the background
+	private final ServerLog								serverLog;
+
+	private volatile boolean							isRunning;
+
+	// Whether the server has begun stopping, and released once it has stopped
+	private final AtomicBoolean							stopping;
+	private final CountDownLatch						stopped;
+
+	// Clients connected across all rooms, and the most allowed
+	private final AtomicInteger							sessionCount;
+	private volatile int								maxSessions;
+
+	// Pings clients and evicts those that stop responding
+	private final LivenessMonitor						livenessMonitor;
+
+	private final ConcurrentHashMap<String, GameRoom>	rooms;
+
+	// Threads shared by all rooms to apply messages
+	private final ExecutorService						roomExecutor;
+
+	// Periodic reporting of message throughput, removal of idle rooms, and delayed broadcasts
+	private final ScheduledExecutorService				timer;
+
+	// Threads shared by all rooms to parse uploaded save files
+	private final ExecutorService						uploadExecutor;
+
+	// Thread shared by all rooms to write journals, and where they are kept (null if changes aren't recorded)
+	private final ExecutorService						journalWriter;
+	private volatile Path								journalDirectory;
+
+	// Periodic save files (saver is null until the server starts, or if games aren't autosaved)
+	private volatile Path								autosaveDirectory;
+	private volatile Duration							autosaveInterval;
+	private volatile boolean							autosaveCompressed;
+	private volatile int								autosaveRetention;
+	private volatile GameAutosaver						autosaver;
+
+	// Whether changes applied within a short window are broadcast together, and the bounds of that window
+	private volatile boolean							coalescing;
+	private volatile Duration							minCoalesceWindow;
+	private volatile Duration							maxCoalesceWindow;
 
 	public GameServer(final String serverUrl, final int serverPort) {
-		this.serverPort = serverPort;
+		this(serverUrl, serverPort, ServerConfig.DEFAULT_SNTP_PORT, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a server.
+	 *
+	 * @param serverUrl
+	 *            Host name the server listens on.
+	 * @param serverPort
+	 *            Port the server listens on.
+	 * @param sntpPort
+	 *            Port the time service listens on.
+	 * @param roomThreads
+	 *            Number of threads applying changes to games.
+	 */
+	public GameServer(final String serverUrl, final int serverPort, final int sntpPort, final int roomThreads) {
+		this.serverLog = new ServerLog(DEFAULT_LOG_FILE);
 		this.server = new Server(serverUrl, serverPort, "/", null, ClientMessageReceiver.class);
 		ClientMessageReceiver.registerServer(this);
-		this.sntpServer = new SntpServer(123);
-		this.sessionList = new Hashtable<Session, ClientMessageReceiver>();
-		this.stopwatch = new Stopwatch(Duration.ofMinutes(5));
+		this.sntpServer = new SntpServer(sntpPort);
+		this.isRunning = false;
+		this.stopping = new AtomicBoolean(false);
+		this.stopped = new CountDownLatch(1);
+		this.sessionCount = new AtomicInteger(0);
+		this.maxSessions = ServerConfig.DEFAULT_MAX_SESSIONS;
+		this.livenessMonitor = new LivenessMonitor();
+		this.rooms = new ConcurrentHashMap<String, GameRoom>();
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		this.roomExecutor = Executors.newFixedThreadPool(roomThreads,
+				runnable -> new Thread(runnable, "game-actor-" + threadCount.incrementAndGet()));
+		this.journalWriter = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "journal-writer"));
+		final AtomicInteger uploadCount = new AtomicInteger(0);
+		this.uploadExecutor = Executors.newCachedThreadPool(runnable -> {
+			final Thread thread = new Thread(runnable, "upload-parser-" + uploadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.journalDirectory = DEFAULT_JOURNAL_DIRECTORY;
+		this.autosaveDirectory = DEFAULT_AUTOSAVE_DIRECTORY;
+		this.autosaveInterval = AUTOSAVE_INTERVAL;
+		this.autosaveCompressed = true;
+		this.autosaveRetention = AUTOSAVE_RETENTION;
+		this.autosaver = null;
+		this.coalescing = false;
+		this.minCoalesceWindow = MIN_COALESCE_WINDOW;
+		this.maxCoalesceWindow = MAX_COALESCE_WINDOW;
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "server-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	@Override
 	public void start() throws DeploymentException {
+		MessageCodec.warmUp();
+		if (this.autosaveDirectory != null) {
+			this.autosaver = new GameAutosaver(this.autosaveDirectory, this.autosaveCompressed, this.autosaveRetention);
+		}
+		this.recoverRooms();
 		this.server.start();
-		this.sntpServer.run();
+		this.timer.scheduleAtFixedRate(this::checkRooms, STATS_INTERVAL.toMillis(), STATS_INTERVAL.toMillis(),
+				TimeUnit.MILLISECONDS);
+		if (this.autosaver != null) {
+			this.timer.scheduleAtFixedRate(() -> this.rooms.values().forEach(room -> room.autosave("scheduled")),
+					this.autosaveInterval.toMillis(), this.autosaveInterval.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		this.timer.scheduleAtFixedRate(() -> this.rooms.values().forEach(GameRoom::publishActivity),
+				PRESENCE_INTERVAL.toMillis(), PRESENCE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+		final Thread sntpThread = new Thread(this.sntpServer::run, "sntp-server");
+		sntpThread.setDaemon(true);
+		sntpThread.start();
 		this.isRunning = true;
 	}
 
+	/**
+	 * Stop the server. Clients are disconnected, messages already received are applied, each game is saved, and the
+	 * journals and logs are written out before this returns. Only the first call has any effect; later calls return
+	 * at once.
+	 */
 	@Override
 	public void stop() {
+		if (!this.stopping.compareAndSet(false, true)) {
+			return;
+		}
+		this.log("Stopping server");
 		this.server.stop();
-		this.sntpServer = new SntpServer(this.serverPort + 1);
+		this.livenessMonitor.stop();
+		this.timer.shutdown();
+		final CountDownLatch finished = new CountDownLatch(this.rooms.size());
+		this.rooms.values().forEach(room -> room.finish(finished));
+		try {
+			if (!finished.await(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+				this.log("Timed out waiting for rooms to finish");
+			}
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+		// Rooms only finish once their journals are durable, so no broadcasts are left to give the actors
+		this.roomExecutor.shutdown();
+		this.awaitTermination(this.roomExecutor, "game actors");
+		this.rooms.values().forEach(GameRoom::close);
+		// Autosaves are handed over once the log has been written, so the journal writer finishes first
+		this.journalWriter.shutdown();
+		this.awaitTermination(this.journalWriter, "journal writer");
+		this.uploadExecutor.shutdownNow();
+		if (this.autosaver != null) {
+			this.autosaver.close(SHUTDOWN_TIMEOUT);
+		}
+		this.sntpServer.stop();
 		this.isRunning = false;
+		this.log("Server stopped");
+		this.serverLog.close();
+		this.stopped.countDown();
+	}
+
+	private void awaitTermination(final ExecutorService executor, final String name) {
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+				this.log("Timed out waiting for " + name + " to finish");
+			}
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
-	public void addSession(final Session session, final ClientMessageReceiver endpoint) {
-		this.log("New client connecting...");
-		this.sessionList.put(session, endpoint);
-		this.broadcastMessage(new UserListMessage(this.getUserList()));
+	/**
+	 * Wait until the server has stopped.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitStop() throws InterruptedException {
+		this.stopped.await();
 	}
 
-	private ArrayList<User> getUserList() {
-		final ArrayList<User> userList = new ArrayList<User>() {
-			private static final long serialVersionUID = 5052692806073959873L;
+	public boolean isRunning() {
+		return this.isRunning;
+	}
 
-			{
-				for (final ClientMessageReceiver endpoint : GameServer.this.sessionList.values()) {
-					this.add(endpoint.getUser());
-				}
+	/**
+	 * Set the most clients that may be connected at once, across all rooms. Clients connecting beyond this are
+	 * turned away.
+	 *
+	 * @param maxSessions
+	 *            The most clients.
+	 */
+	public void setMaxSessions(final int maxSessions) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("Must allow at least one session: " + maxSessions);
+		}
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Count a new connection against the session limit.
+	 *
+	 * @return Whether the connection is allowed. If so, {@link #releaseSession()} must be called when it closes.
+	 */
+	boolean admitSession() {
+		while (true) {
+			final int count = this.sessionCount.get();
+			if (count >= this.maxSessions || this.stopping.get()) {
+				return false;
+			}
+			if (this.sessionCount.compareAndSet(count, count + 1)) {
+				return true;
 			}
-		};
-		return userList;
+		}
 	}
 
-	public void removeSession(final Session session) {
-		this.log(this.sessionList.get(session).getUser() + " disconnected");
-		this.sessionList.remove(session);
-		this.broadcastMessage(new UserListMessage(this.getUserList()));
+	/**
+	 * Stop counting a closed connection against the session limit.
+	 */
+	void releaseSession() {
+		this.sessionCount.decrementAndGet();
 	}
 
-	public void processIncomingMessage(final ClientMessage message, final Session session) {
-		final String messageType = message.getClass().getSimpleName();
-		final User user = this.sessionList.get(session).getUser();
-		user.updateActivity();
-		final GameEvent event = new GameEvent(message.getEventType(), user, message.toString());
-		switch (messageType) {
-			case "StopwatchMessage":
-				this.stopwatch.remoteEvent((StopwatchMessage) message);
-				this.broadcastMessage((StopwatchMessage) message);
-				break;
-			case "NewGameMessage":
-				this.game = new Game();
-				final HashMap<Civilization.Name, String> startingCivs = ( (NewGameMessage) message ).getCivNames();
-				this.game.addCivilization(new ArrayList<Civilization.Name>(startingCivs.keySet()));
-				for (final Civilization.Name name : startingCivs.keySet()) {
-					this.game.getCivilization(name).setPlayer(startingCivs.get(name));
-				}
-				if (( (NewGameMessage) message ).useCredits()) {
-					this.game.assignStartCredits();
-				}
-				final Difficulty difficulty = ( (NewGameMessage) message ).getDifficulty();
-				this.game.setDifficulty(difficulty);
-				final Civilization.Region region = ( (NewGameMessage) message ).getRegion();
-				this.game.setRegion(region);
-
-				// this.log(user + " created new " + WordUtils.capitalizeFully(difficulty.toString())
-				// + " game with the following civilizations: " + startingCivs);
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
-			case "CensusMessage":
-				final HashMap<Civilization.Name, Integer> census = ( (CensusMessage) message ).getCensus();
-				for (final Civilization.Name name : census.keySet()) {
-					// this.log(name + " " + census.get(name) + " " + this.game.getCivilization(name));
-					this.game.getCivilization(name).setPopulation(census.get(name));
-				}
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				// this.log("Census reported by " + user + ": " + census);
-				break;
-			case "CityUpdateMessage":
-				final HashMap<Civilization.Name, Integer> cityCount = ( (CityUpdateMessage) message ).getCityCount();
-				for (final Civilization.Name name : cityCount.keySet()) {
-					this.game.getCivilization(name).setCityCount(cityCount.get(name));
-				}
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				// this.log("City counts updated by " + user + ": " + cityCount);
-				break;
-			case "TechPurchaseMessage": {
-				final Civilization.Name name = ( (TechPurchaseMessage) message ).getCivName();
-				final Civilization civ = this.game.getCivilization(name);
-				final ArrayList<Technology> newTechs = ( (TechPurchaseMessage) message ).getTechs();
-				for (final Technology newTech : newTechs) {
-					civ.addTech(newTech, this.game.getCurrentRound());
-				}
-				civ.setPurchased(true);
-				// this.log(name + " bought the following technologies: " + newTechs + " (via " + user + ")");
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
+	/**
+	 * Set how often clients are pinged, and how long one may go without being heard from before it is disconnected.
+	 *
+	 * @param pingInterval
+	 *            Time between pings.
+	 * @param timeout
+	 *            Longest a client may stay silent; at least the ping interval.
+	 */
+	public void setLiveness(final Duration pingInterval, final Duration timeout) {
+		this.livenessMonitor.setTimeouts(pingInterval, timeout);
+	}
+
+	LivenessMonitor getLivenessMonitor() {
+		return this.livenessMonitor;
+	}
+
+	/**
+	 * Find the room requested by a new connection, creating it if necessary. The connection is counted against the
+	 * room immediately so it can't be discarded as idle while the connection is being set up. A new room's game is
+	 * recovered after it has been added, so reading its journal doesn't hold up other rooms.
+	 *
+	 * @param session
+	 *            The new connection.
+	 * @return The room the connection belongs to.
+	 */
+	GameRoom joinRoom(final Session session) {
+		final List<String> requested = session.getRequestParameterMap().get(ROOM_PARAMETER);
+		String roomId = DEFAULT_ROOM;
+		if (requested != null && !requested.isEmpty()) {
+			if (ROOM_ID_PATTERN.matcher(requested.get(0)).matches()) {
+				roomId = requested.get(0);
+			} else {
+				this.log("Invalid room requested by " + session.getId() + ", using " + DEFAULT_ROOM);
 			}
-			case "UndoPurchaseMessage": {
-				final Civilization.Name name = ( (UndoPurchaseMessage) message ).getCivName();
-				final Civilization civ = this.game.getCivilization(name);
-				final int currentRound = this.game.getCurrentRound();
-				civ.undoTechPurchase(currentRound);
-				civ.setPurchased(false);
-				// this.log(name + " undid the following technology purchases from this round: " + undoneTechs + " (via
-				// "
-				// + user + ")");
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
+		}
+		final GameRoom joined = this.rooms.compute(roomId, (id, room) -> {
+			if (room == null) {
+				room = this.createRoom(id);
+				this.log("Created room " + id + " (" + ( this.rooms.size() + 1 ) + " rooms)");
 			}
-			case "AdvanceAstMessage":
-				final HashMap<Name, AstChange> advanceAst = ( (AdvanceAstMessage) message ).getAdvanceAst();
-				for (final Civilization.Name name : advanceAst.keySet()) {
-					this.game.getCivilization(name).changeAst(advanceAst.get(name));
+			room.reserveConnection();
+			return room;
+		});
+		joined.recover();
+		return joined;
+	}
+
+	/**
+	 * Create a room. Its game must then be restored with {@link GameRoom#recover()}.
+	 *
+	 * @param id
+	 *            The room identifier.
+	 * @return The new room.
+	 */
+	private GameRoom createRoom(final String id) {
+		final Path directory = this.journalDirectory;
+		// Problems with the room's files are reported the same way as the room's own messages
+		final Consumer<String> log = message -> this.log("[" + id + "] " + message);
+		final GameJournal journal =
+				directory != null ? new GameJournal(directory, id, this.journalWriter, log) : null;
+		final EventLog eventLog = new EventLog(
+				directory != null ? directory.resolve(id + EventLog.LOG_EXTENSION) : null, this.journalWriter, log);
+		return new GameRoom(id, this, this.roomExecutor, this.timer, journal, this.autosaver, eventLog);
+	}
+
+	/**
+	 * Restore every room that has a journal, so games in progress survive a restart.
+	 */
+	private void recoverRooms() {
+		final Path directory = this.journalDirectory;
+		if (directory == null || !Files.isDirectory(directory)) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (final Path file : files) {
+				final String name = file.getFileName().toString();
+				final String id;
+				if (name.endsWith(GameJournal.JOURNAL_EXTENSION)) {
+					id = name.substring(0, name.length() - GameJournal.JOURNAL_EXTENSION.length());
+				} else if (name.endsWith(GameJournal.SNAPSHOT_EXTENSION)) {
+					id = name.substring(0, name.length() - GameJournal.SNAPSHOT_EXTENSION.length());
+				} else {
+					continue;
+				}
+				if (ROOM_ID_PATTERN.matcher(id).matches()) {
+					this.rooms.computeIfAbsent(id, this::createRoom).recover();
 				}
-				this.game.nextRound();
-				// this.log("Ast advances triggered by " + user + ": " + advanceAst);
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
-			case "AdditionalCreditMessage": {
-				final ArrayList<Technology.Type> credits = ( (AdditionalCreditMessage) message ).getCredits();
-				final Technology tech = ( (AdditionalCreditMessage) message ).getTech();
-				final Civilization.Name name = ( (AdditionalCreditMessage) message ).getCivName();
-				final Civilization civ = this.game.getCivilization(name);
-				civ.addTypeCredits(tech, credits);
-				// this.log("Additional credits add to " + name.toString() + " by " + user + " for tech " + tech + ": "
-				// + credits);
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
 			}
-			case "LoadGameMessage":
-				this.game = ( (LoadGameMessage) message ).getGame();
-				// this.log("Game loaded from save by " + user);
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
-			case "RetireMessage":
-				final Civilization.Name name = ( (RetireMessage) message ).getCivName();
-				this.game.retireCivilization(name);
-				// this.log(name.toString() + " has retired!");
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
-			case "CivEditMessage":
-				final Civilization civ = ( (CivEditMessage) message ).getCivilization();
-				// Civilization oldCiv = this.game.getCivilization(civ.getName());
-				this.game.setCivilization(civ);
-				// this.log("Civilization edited by " + user + ":\n" + "Before Edit: " + oldCiv.toFullString() + "\n"
-				// + "After Edit: " + civ.toFullString());
-				// this.broadcastMessage(new GameDataMessage(this.game));
-				break;
-			case "SetUserMessage":
-				final User newUser = ( (SetUserMessage) message ).getUser();
-				this.sessionList.get(session).setUser(newUser);
-				// this.log(user.getUserName() + " changed name to " + newUser.getUserName());
-				break;
-			case "KeepAliveMessage":
-				break;
-			default:
-				this.log("ERROR: Unknown message type received: " + message.getClass().getSimpleName());
-				return;
-		}
-		if (this.game != null) {
-			this.game.logEvent(event);
+		} catch (final IOException exception) {
+			this.log("Couldn't read journal directory " + directory + ":");
+			exception.printStackTrace();
 		}
-		this.log(event.toString());
-		this.broadcastMessage(new GameDataMessage(this.game));
-		this.broadcastMessage(new UserListMessage(this.getUserList()));
 	}
 
-	public void communicationsError(final Session session, final Throwable throwable) {
-		this.log("Error while communicating with " + this.sessionList.get(session).getUser().getUserName() + ":");
-		throwable.printStackTrace();
+	/**
+	 * Get the executor that parses uploaded save files. Each upload blocks one of its threads while waiting for chunks.
+	 *
+	 * @return The executor.
+	 */
+	Executor getUploadExecutor() {
+		return this.uploadExecutor;
 	}
 
 	/**
-	 * Print a message with timestamp to the console.
+	 * Set the directory where each room's changes are recorded so games survive a restart. Must be called before the
+	 * server is started.
 	 *
-	 * @param message
-	 *            The message
+	 * @param directory
+	 *            The journal directory, or null to keep games only in memory.
 	 */
-	public void log(final String message) {
-		final LocalDateTime date = LocalDateTime.now();
-		System.out.println(GameEvent.dateFormat.format(date) + ": " + message);
+	public void setJournalDirectory(final Path directory) {
+		this.journalDirectory = directory;
 	}
 
-	void sendGame(final Session session) {
-		this.sendMessage(session, new GameDataMessage(this.game));
+	public Path getJournalDirectory() {
+		return this.journalDirectory;
 	}
 
-	void sendClock(final Session session) {
-		final Instant startTime = this.stopwatch.getStartTime();
-		if (this.stopwatch.isRunning()) {
-			this.sendMessage(session, this.stopwatch.generateTimerMessage(Stopwatch.StopwatchEvent.START, startTime));
-		} else {
-			this.sendMessage(session, this.stopwatch.generateTimerMessage(Stopwatch.StopwatchEvent.STOP, startTime));
+	/**
+	 * Set how the server saves each room's game. Games are saved periodically and at the start of each round, but only
+	 * if they have changed. Must be called before the server is started.
+	 *
+	 * @param directory
+	 *            Directory to save in, or null to turn autosaving off.
+	 * @param interval
+	 *            Time between periodic saves.
+	 * @param compressed
+	 *            Whether to gzip save files.
+	 * @param retention
+	 *            Number of saves to keep for each room.
+	 */
+	public void setAutosave(final Path directory, final Duration interval, final boolean compressed,
+			final int retention) {
+		if (interval.isNegative() || interval.isZero() || retention < 1) {
+			throw new IllegalArgumentException(
+					"Invalid autosave settings: every " + interval + ", keeping " + retention);
 		}
+		this.autosaveDirectory = directory;
+		this.autosaveInterval = interval;
+		this.autosaveCompressed = compressed;
+		this.autosaveRetention = retention;
+	}
+
+	public Path getAutosaveDirectory() {
+		return this.autosaveDirectory;
 	}
 
 	/**
-	 * Send a message to the specified client
+	 * Turn broadcast coalescing on or off. When on, changes applied within a short window are sent to clients as a
+	 * single update. Each room adapts its window between the bounds: it widens while messages keep arriving together
+	 * and narrows when they arrive alone.
 	 *
-	 * @param session
-	 * @param message
+	 * @param coalescing
+	 *            Whether to coalesce broadcasts.
+	 * @param minWindow
+	 *            Shortest time to wait for more changes.
+	 * @param maxWindow
+	 *            Longest time to wait for more changes.
 	 */
-	private void sendMessage(final Session session, final ServerMessage message) {
-		if (session == null) {
-			return;
+	public void setCoalescing(final boolean coalescing, final Duration minWindow, final Duration maxWindow) {
+		if (minWindow.isNegative() || maxWindow.compareTo(minWindow) < 0) {
+			throw new IllegalArgumentException("Invalid coalescing window: " + minWindow + " to " + maxWindow);
+		}
+		this.minCoalesceWindow = minWindow;
+		this.maxCoalesceWindow = maxWindow;
+		this.coalescing = coalescing;
+		this.log("Broadcast coalescing " + ( coalescing
+				? "on (" + minWindow.toMillis() + "-" + maxWindow.toMillis() + " ms window)" : "off" ));
+	}
+
+	public boolean isCoalescing() {
+		return this.coalescing;
+	}
+
+	public Duration getMinCoalesceWindow() {
+		return this.minCoalesceWindow;
+	}
+
+	public Duration getMaxCoalesceWindow() {
+		return this.maxCoalesceWindow;
+	}
+
+	/**
+	 * Get the number of rooms currently hosted.
+	 *
+	 * @return The number of rooms.
+	 */
+	public int getRoomCount() {
+		return this.rooms.size();
+	}
+
+	/**
+	 * Report throughput for each room, disconnect clients that have fallen behind, discard rooms that have been empty
+	 * for too long, and report autosave timing and client round trips.
+	 */
+	private void checkRooms() {
+		for (final String roomId : this.rooms.keySet()) {
+			final GameRoom room = this.rooms.computeIfPresent(roomId, (id, r) -> {
+				if (r.isIdle(ROOM_IDLE_TIMEOUT)) {
+					r.close();
+					this.log("Removed idle room " + id);
+					return null;
+				}
+				return r;
+			});
+			if (room != null) {
+				room.reportThroughput();
+				room.checkOutboxes();
+			}
+		}
+		final GameAutosaver autosaver = this.autosaver;
+		final String autosaveStats = autosaver != null ? autosaver.reportStats() : null;
+		if (autosaveStats != null) {
+			this.log(autosaveStats);
+		}
+		final String livenessStats = this.livenessMonitor.reportStats();
+		if (livenessStats != null) {
+			this.log(livenessStats);
 		}
-		session.getAsyncRemote().sendObject(message);
-		// this.log("Sent message to " + sessionList.get(session).getUser());
 	}
 
-	private void broadcastMessage(final ServerMessage message) {
-		this.sessionList.keySet().parallelStream().forEach(session -> this.sendMessage(session, message));
+	/**
+	 * Set the file the server log is written to, as well as the console.
+	 *
+	 * @param file
+	 *            The log file, or null to log to the console only.
+	 */
+	public void setLogFile(final Path file) {
+		this.serverLog.setFile(file);
 	}
 
+	/**
+	 * Log a message with timestamp to the console and log file. The message is written in the background, so this
+	 * never waits for output.
+	 *
+	 * @param message
+	 *            The message
+	 */
+	public void log(final String message) {
+		this.serverLog.log(message);
+	}
+
+	/**
+	 * Run a server. Settings are read from the command line and an optional properties file, as described in
+	 * {@link ServerConfig}. With no settings and a display, the host and port are asked for instead. The server runs
+	 * until the process is told to exit.
+	 *
+	 * @param args
+	 *            Command line arguments.
+	 */
 	public static void main(final String args[]) {
-		GameServer server = null;
-		if (System.console() == null && !GraphicsEnvironment.isHeadless()) {
+		final ServerConfig config;
+		try {
+			config = ServerConfig.parse(args);
+		} catch (final IOException | IllegalArgumentException exception) {
+			System.err.println("Couldn't read server settings: " + exception.getMessage());
+			System.exit(2);
+			return;
+		}
+		final boolean headless = GraphicsEnvironment.isHeadless();
+		if (System.console() == null && !headless) {
 			System.out.println("Redirecting");
 			final JFrame frame = new JFrame();
 			final JPanel panel = new JPanel(new GridLayout());
@@ -303,15 +575,7 @@ public class GameServer extends Server {
 
 			panel.add(scrollPane);
 
-			final PrintStream output = new PrintStream(new OutputStream() {
-				@Override
-				public void write(final int arg0) throws IOException {
-					// redirects data to the text area
-					outputArea.append(String.valueOf((char) arg0));
-					// scrolls the text area to the end of data
-					outputArea.setCaretPosition(outputArea.getDocument().getLength());
-				}
-			});
+			final PrintStream output = new PrintStream(new ConsoleOutputStream(outputArea, CONSOLE_LENGTH), true);
 
 			frame.pack();
 			frame.setVisible(true);
@@ -321,21 +585,26 @@ public class GameServer extends Server {
 			System.setErr(output);
 			System.out.println("System.out and System.err redirected here");
 		}
-		if (args.length > 1) {
-			server = new GameServer(args[0], Integer.parseInt(args[1]));
-		} else {
-			final JTextField hostname = new JTextField("localhost");
-			final JSpinner port = new JSpinner(new SpinnerNumberModel(1099, 0, 65535, 1));
+		final GameServer server;
+		if (config.isEmpty() && !headless) {
+			final JTextField hostname = new JTextField(ServerConfig.DEFAULT_HOST);
+			final JSpinner port = new JSpinner(new SpinnerNumberModel(ServerConfig.DEFAULT_PORT, 0, 65535, 1));
 			final Object[] message = { "Hostname:", hostname, "Port:", port };
 			JOptionPane.showMessageDialog(null, message, "Server Configuration", JOptionPane.PLAIN_MESSAGE);
 			server = new GameServer(hostname.getText(), (int) port.getValue());
+		} else {
+			server = config.createServer();
 		}
+		// Stopping saves every game, so let an interrupted server do so before it exits
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "server-shutdown"));
 		try {
 			server.start();
-			while (server.isRunning) {}
+			server.awaitStop();
 		} catch (final DeploymentException exception) {
 			exception.printStackTrace();
 			server.stop();
+		} catch (final InterruptedException exception) {
+			server.stop();
 		}
 	}
 
@@ -0,0 +1,201 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.messages.GameFile;
+import net.bubbaland.megaciv.messages.GameUploadMessage;
+
+/**
+ * A save file being uploaded by a client in chunks. Chunks are checked as they arrive and handed to a parser running on
+ * a background thread, so the game is read while the rest of the file is still arriving and neither the connection nor
+ * the game actor waits for it. The parsed game is only handed over once the whole file has arrived and its checksum
+ * matches.
+ */
+class GameUpload {
+
+	// Largest save file accepted
+	static final long							MAX_SIZE		= 64L * 1024 * 1024;
+
+	// How long the parser waits for the next chunk before giving up
+	private static final Duration				CHUNK_TIMEOUT	= Duration.ofMinutes(2);
+
+	// Markers passed to the parser in place of data
+	private static final byte[]					END				= new byte[0];
+	private static final byte[]					ABORT			= new byte[0];
+
+	private final GameRoom						room;
+	private final String						id;
+	private final int							chunkCount;
+	private final Consumer<Game>				onLoaded;
+
+	// Only used by the thread receiving chunks
+	private final CRC32							checksum;
+	private int									nextIndex;
+	private long								size;
+	private boolean								finished;
+
+	// Chunks waiting for the parser
+	private final LinkedBlockingQueue<byte[]>	chunks;
+	private volatile String						abortReason;
+
+	/**
+	 * Start receiving an upload.
+	 *
+	 * @param room
+	 *            The room the upload is for, used for logging.
+	 * @param first
+	 *            The first chunk of the upload.
+	 * @param parser
+	 *            Executor that parses the file.
+	 * @param onLoaded
+	 *            Called by the parser with the uploaded game once the whole file has been checked.
+	 */
+	GameUpload(final GameRoom room, final GameUploadMessage first, final Executor parser,
+			final Consumer<Game> onLoaded) {
+		this.room = room;
+		this.id = first.getUploadId();
+		this.chunkCount = first.getChunkCount();
+		this.onLoaded = onLoaded;
+		this.checksum = new CRC32();
+		this.nextIndex = 0;
+		this.size = 0;
+		this.finished = false;
+		this.chunks = new LinkedBlockingQueue<byte[]>();
+		this.abortReason = null;
+		parser.execute(this::parse);
+	}
+
+	/**
+	 * Add the next chunk of the upload.
+	 *
+	 * @param chunk
+	 *            The chunk.
+	 * @return Whether the upload is still in progress. The upload is over once the last chunk has been accepted, or
+	 *         as soon as a chunk is rejected.
+	 */
+	boolean accept(final GameUploadMessage chunk) {
+		if (this.finished) {
+			return false;
+		}
+		final byte[] data = chunk.getData();
+		if (!this.id.equals(chunk.getUploadId()) || chunk.getChunkIndex() != this.nextIndex
+				|| chunk.getChunkCount() != this.chunkCount || data == null) {
+			this.abort("unexpected chunk (" + chunk + ", expected chunk " + ( this.nextIndex + 1 ) + ")");
+			return false;
+		}
+		this.size += data.length;
+		if (this.size > MAX_SIZE) {
+			this.abort("file larger than " + MAX_SIZE + " bytes");
+			return false;
+		}
+		this.checksum.update(data, 0, data.length);
+		this.chunks.add(data);
+		this.nextIndex++;
+		if (chunk.isLastChunk()) {
+			if (this.checksum.getValue() != chunk.getChecksum()) {
+				this.abort("checksum mismatch");
+				return false;
+			}
+			this.finished = true;
+			this.chunks.add(END);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Abandon the upload. The game is not replaced.
+	 *
+	 * @param reason
+	 *            Why the upload was abandoned, for the log.
+	 */
+	void abort(final String reason) {
+		if (this.finished) {
+			return;
+		}
+		this.finished = true;
+		this.abortReason = reason;
+		this.chunks.add(ABORT);
+	}
+
+	private void parse() {
+		try {
+			final ChunkStream stream = new ChunkStream();
+			final Game game = GameFile.read(stream, true);
+			// The game can be read before the last chunk arrives; it is only used once the checksum is confirmed
+			stream.drain();
+			this.room.log("Received uploaded game " + this.id + " (" + this.size + " bytes, " + game.getLog().size()
+					+ " log events)");
+			this.onLoaded.accept(game);
+		} catch (final IOException | RuntimeException exception) {
+			this.room.log("Upload " + this.id + " failed: "
+					+ ( this.abortReason != null ? this.abortReason : exception.toString() ));
+		}
+	}
+
+	/**
+	 * The uploaded file as a stream, blocking until the next chunk arrives.
+	 */
+	private class ChunkStream extends InputStream {
+		private byte[]	current	= null;
+		private int		position	= 0;
+
+		@Override
+		public int read() throws IOException {
+			final byte[] single = new byte[1];
+			return this.read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			while (this.current == null || this.position == this.current.length) {
+				if (this.current == END) {
+					return -1;
+				}
+				final byte[] next;
+				try {
+					next = GameUpload.this.chunks.poll(CHUNK_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+				} catch (final InterruptedException exception) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted");
+				}
+				if (next == null) {
+					GameUpload.this.abortReason = "timed out waiting for chunk " + ( GameUpload.this.nextIndex + 1 );
+					throw new IOException(GameUpload.this.abortReason);
+				}
+				if (next == ABORT) {
+					throw new IOException("Upload abandoned");
+				}
+				this.current = next;
+				this.position = 0;
+			}
+			final int count = Math.min(length, this.current.length - this.position);
+			System.arraycopy(this.current, this.position, buffer, offset, count);
+			this.position += count;
+			return count;
+		}
+
+		/**
+		 * Wait for the rest of the upload.
+		 *
+		 * @throws IOException
+		 *             If the upload is abandoned.
+		 */
+		void drain() throws IOException {
+			final byte[] buffer = new byte[4096];
+			while (this.read(buffer, 0, buffer.length) >= 0) {}
+		}
+	}
+
+}
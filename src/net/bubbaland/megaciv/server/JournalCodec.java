@@ -0,0 +1,535 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.bubbaland.megaciv.game.Civilization;
+import net.bubbaland.megaciv.game.Game;
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.game.Technology;
+import net.bubbaland.megaciv.game.User;
+import net.bubbaland.megaciv.messages.AdditionalCreditMessage;
+import net.bubbaland.megaciv.messages.AdvanceAstMessage;
+import net.bubbaland.megaciv.messages.CensusMessage;
+import net.bubbaland.megaciv.messages.CityUpdateMessage;
+import net.bubbaland.megaciv.messages.CivEditMessage;
+import net.bubbaland.megaciv.messages.ClientMessage;
+import net.bubbaland.megaciv.messages.LoadGameMessage;
+import net.bubbaland.megaciv.messages.MessageCodec;
+import net.bubbaland.megaciv.messages.NewGameMessage;
+import net.bubbaland.megaciv.messages.RetireMessage;
+import net.bubbaland.megaciv.messages.TechPurchaseMessage;
+import net.bubbaland.megaciv.messages.UndoPurchaseMessage;
+
+/**
+ * Binary encoding of journal entries.
+ *
+ * A journal file starts with a header: the four bytes "MCJL" followed by a two byte format version. The rest of the
+ * file is a sequence of records, each made up of a one byte kind, a four byte payload length, the payload, and a
+ * CRC32 of the kind and payload. A record whose length or checksum doesn't match marks the end of the readable
+ * journal.
+ *
+ * There are two kinds of record. A string record adds a string to the file's dictionary; strings are numbered in the
+ * order they are added. An entry record holds a {@link JournalEntry}, with enums written as ordinals and user and
+ * player names as dictionary numbers. The event text is different for nearly every entry, so it is written inline
+ * rather than growing the dictionary. Messages that carry a whole civilization or game are embedded as JSON.
+ *
+ * An encoder is stateful: it remembers which strings it has already written. It must be reset if the file it writes
+ * to starts over empty. When a journal is compacted, the file instead starts over with records defining every string
+ * the encoder knows, so the numbers it has handed out stay valid whether or not the compaction succeeds.
+ */
+final class JournalCodec {
+
+	// File header
+	static final byte[]		MAGIC				= { 'M', 'C', 'J', 'L' };
+	static final short		FORMAT_VERSION		= 2;
+	static final int		HEADER_SIZE			= MAGIC.length + 2;
+
+	// Record kinds
+	static final byte		STRING_RECORD		= 1;
+	static final byte		ENTRY_RECORD		= 2;
+
+	// Bytes around each record's payload: kind and length before, checksum after
+	static final int		RECORD_OVERHEAD		= 1 + 4 + 4;
+
+	// Message kinds within an entry record
+	private static final byte	NEW_GAME			= 0;
+	private static final byte	CENSUS				= 1;
+	private static final byte	CITY_UPDATE			= 2;
+	private static final byte	TECH_PURCHASE		= 3;
+	private static final byte	UNDO_PURCHASE		= 4;
+	private static final byte	ADVANCE_AST			= 5;
+	private static final byte	ADDITIONAL_CREDIT	= 6;
+	private static final byte	RETIRE				= 7;
+	private static final byte	CIV_EDIT			= 8;
+	private static final byte	LOAD_GAME			= 9;
+	// Any other message, embedded as JSON
+	private static final byte	OTHER				= 127;
+
+	// Written in place of an enum ordinal, string number, text length or time that is null
+	private static final int	NULL				= -1;
+
+	// Strings already written to the current file, with their numbers
+	private final HashMap<String, Integer>	dictionary;
+
+	// Strings added while encoding the current entry, forgotten again if encoding fails
+	private final ArrayList<String>			added;
+
+	JournalCodec() {
+		this.dictionary = new HashMap<String, Integer>();
+		this.added = new ArrayList<String>();
+	}
+
+	/**
+	 * Get the file header.
+	 *
+	 * @return The header bytes.
+	 */
+	static byte[] header() {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC);
+		header.putShort(FORMAT_VERSION);
+		return header.array();
+	}
+
+	/**
+	 * Get the start of a file that continues an existing dictionary: the header, followed by records defining the
+	 * strings in order.
+	 *
+	 * @param strings
+	 *            The strings in the dictionary, in order.
+	 * @return The header and string records.
+	 */
+	static byte[] header(final List<String> strings) {
+		final ByteArrayOutputStream start = new ByteArrayOutputStream();
+		final byte[] header = header();
+		start.write(header, 0, header.length);
+		for (final String string : strings) {
+			writeRecord(start, STRING_RECORD, string.getBytes(StandardCharsets.UTF_8));
+		}
+		return start.toByteArray();
+	}
+
+	/**
+	 * Get the strings written so far.
+	 *
+	 * @return The dictionary, in order.
+	 */
+	List<String> getStrings() {
+		final String[] strings = new String[this.dictionary.size()];
+		for (final Map.Entry<String, Integer> string : this.dictionary.entrySet()) {
+			strings[string.getValue()] = string.getKey();
+		}
+		return Arrays.asList(strings);
+	}
+
+	/**
+	 * Forget the strings written so far, because the file is starting over empty.
+	 */
+	void reset() {
+		this.dictionary.clear();
+	}
+
+	/**
+	 * Continue a file that already has a dictionary.
+	 *
+	 * @param strings
+	 *            The strings in the file's dictionary, in order.
+	 */
+	void prime(final List<String> strings) {
+		this.dictionary.clear();
+		for (int i = 0; i < strings.size(); i++) {
+			this.dictionary.put(strings.get(i), i);
+		}
+	}
+
+	/**
+	 * Encode an entry, preceded by records for any strings it uses that haven't been written yet.
+	 *
+	 * @param entry
+	 *            The entry to encode.
+	 * @return The encoded records.
+	 * @throws IOException
+	 */
+	byte[] encode(final JournalEntry entry) throws IOException {
+		final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		final DataOutputStream payload = new DataOutputStream(payloadBytes);
+
+		this.added.clear();
+		try {
+			payload.writeLong(entry.getVersion());
+			final GameEvent event = entry.getEvent();
+			this.writeInstant(payload, event.getTimestamp());
+			this.writeOrdinal(payload, event.getType());
+			final User user = event.getUser();
+			this.writeString(payload, records, user != null ? user.getUserName() : null);
+			final LocalDateTime lastActive = user != null ? user.getLastActive() : null;
+			this.writeInstant(payload, lastActive != null ? lastActive.toInstant(ZoneOffset.UTC) : null);
+			writeText(payload, event.getMessage());
+			this.writeMessage(payload, records, entry.getMessage());
+		} catch (final IOException exception) {
+			// None of the string records will be written
+			this.added.forEach(this.dictionary::remove);
+			throw exception;
+		}
+
+		payload.flush();
+		writeRecord(records, ENTRY_RECORD, payloadBytes.toByteArray());
+		return records.toByteArray();
+	}
+
+	/**
+	 * Encode just a message, for keeping in memory rather than in a file. Strings are numbered in the dictionary as
+	 * for an entry, but are added to a list instead of being written as records.
+	 *
+	 * @param message
+	 *            The message to encode.
+	 * @param strings
+	 *            The dictionary so far, in order; any strings the message adds are appended.
+	 * @return The encoded message.
+	 * @throws IOException
+	 */
+	byte[] encodeMessage(final ClientMessage message, final List<String> strings) throws IOException {
+		final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		final DataOutputStream payload = new DataOutputStream(payloadBytes);
+		this.added.clear();
+		try {
+			this.writeMessage(payload, new ByteArrayOutputStream(), message);
+		} catch (final IOException exception) {
+			this.added.forEach(this.dictionary::remove);
+			throw exception;
+		}
+		strings.addAll(this.added);
+		payload.flush();
+		return payloadBytes.toByteArray();
+	}
+
+	private void writeMessage(final DataOutputStream out, final ByteArrayOutputStream records,
+			final ClientMessage message) throws IOException {
+		switch (message.getClass().getSimpleName()) {
+			case "NewGameMessage": {
+				final NewGameMessage newGame = (NewGameMessage) message;
+				out.writeByte(NEW_GAME);
+				this.writeOrdinal(out, newGame.getRegion());
+				this.writeOrdinal(out, newGame.getDifficulty());
+				out.writeBoolean(newGame.useCredits());
+				out.writeShort(newGame.getCivNames().size());
+				for (final Map.Entry<Civilization.Name, String> civ : newGame.getCivNames().entrySet()) {
+					this.writeOrdinal(out, civ.getKey());
+					this.writeString(out, records, civ.getValue());
+				}
+				break;
+			}
+			case "CensusMessage":
+				out.writeByte(CENSUS);
+				this.writeCounts(out, ( (CensusMessage) message ).getCensus());
+				break;
+			case "CityUpdateMessage":
+				out.writeByte(CITY_UPDATE);
+				this.writeCounts(out, ( (CityUpdateMessage) message ).getCityCount());
+				break;
+			case "TechPurchaseMessage": {
+				final TechPurchaseMessage purchase = (TechPurchaseMessage) message;
+				out.writeByte(TECH_PURCHASE);
+				this.writeOrdinal(out, purchase.getCivName());
+				out.writeShort(purchase.getTechs().size());
+				for (final Technology tech : purchase.getTechs()) {
+					this.writeOrdinal(out, tech);
+				}
+				break;
+			}
+			case "UndoPurchaseMessage":
+				out.writeByte(UNDO_PURCHASE);
+				this.writeOrdinal(out, ( (UndoPurchaseMessage) message ).getCivName());
+				break;
+			case "AdvanceAstMessage": {
+				final HashMap<Civilization.Name, Civilization.AstChange> advance =
+						( (AdvanceAstMessage) message ).getAdvanceAst();
+				out.writeByte(ADVANCE_AST);
+				out.writeShort(advance.size());
+				for (final Map.Entry<Civilization.Name, Civilization.AstChange> civ : advance.entrySet()) {
+					this.writeOrdinal(out, civ.getKey());
+					this.writeOrdinal(out, civ.getValue());
+				}
+				break;
+			}
+			case "AdditionalCreditMessage": {
+				final AdditionalCreditMessage credit = (AdditionalCreditMessage) message;
+				out.writeByte(ADDITIONAL_CREDIT);
+				this.writeOrdinal(out, credit.getCivName());
+				this.writeOrdinal(out, credit.getTech());
+				out.writeShort(credit.getCredits().size());
+				for (final Technology.Type type : credit.getCredits()) {
+					this.writeOrdinal(out, type);
+				}
+				break;
+			}
+			case "RetireMessage":
+				out.writeByte(RETIRE);
+				this.writeOrdinal(out, ( (RetireMessage) message ).getCivName());
+				break;
+			case "CivEditMessage":
+				out.writeByte(CIV_EDIT);
+				writeBytes(out, MessageCodec.encodeValue(( (CivEditMessage) message ).getCivilization())
+						.getBytes(StandardCharsets.UTF_8));
+				break;
+			case "LoadGameMessage":
+				out.writeByte(LOAD_GAME);
+				writeBytes(out, MessageCodec.encodeValue(( (LoadGameMessage) message ).getGame())
+						.getBytes(StandardCharsets.UTF_8));
+				break;
+			default:
+				out.writeByte(OTHER);
+				writeBytes(out, MessageCodec.encode(message).getBytes(StandardCharsets.UTF_8));
+				break;
+		}
+	}
+
+	private void writeCounts(final DataOutputStream out, final HashMap<Civilization.Name, Integer> counts)
+			throws IOException {
+		out.writeShort(counts.size());
+		for (final Map.Entry<Civilization.Name, Integer> civ : counts.entrySet()) {
+			this.writeOrdinal(out, civ.getKey());
+			out.writeInt(civ.getValue());
+		}
+	}
+
+	private void writeOrdinal(final DataOutputStream out, final Enum<?> value) throws IOException {
+		out.writeByte(value != null ? value.ordinal() : NULL);
+	}
+
+	private void writeInstant(final DataOutputStream out, final Instant instant) throws IOException {
+		if (instant == null) {
+			out.writeLong(Long.MIN_VALUE);
+			out.writeInt(0);
+		} else {
+			out.writeLong(instant.getEpochSecond());
+			out.writeInt(instant.getNano());
+		}
+	}
+
+	/**
+	 * Write a string's dictionary number, first adding the string to the dictionary if necessary.
+	 */
+	private void writeString(final DataOutputStream out, final ByteArrayOutputStream records, final String string)
+			throws IOException {
+		if (string == null) {
+			out.writeInt(NULL);
+			return;
+		}
+		Integer number = this.dictionary.get(string);
+		if (number == null) {
+			number = this.dictionary.size();
+			this.dictionary.put(string, number);
+			this.added.add(string);
+			writeRecord(records, STRING_RECORD, string.getBytes(StandardCharsets.UTF_8));
+		}
+		out.writeInt(number);
+	}
+
+	/**
+	 * Write a string inline as its length and UTF-8 bytes.
+	 */
+	private static void writeText(final DataOutputStream out, final String text) throws IOException {
+		if (text == null) {
+			out.writeInt(NULL);
+			return;
+		}
+		writeBytes(out, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeRecord(final ByteArrayOutputStream out, final byte kind, final byte[] payload) {
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+		record.put(kind);
+		record.putInt(payload.length);
+		record.put(payload);
+		record.putInt(checksum(kind, payload, 0, payload.length));
+		out.write(record.array(), 0, record.capacity());
+	}
+
+	static int checksum(final byte kind, final byte[] payload, final int offset, final int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(kind);
+		crc.update(payload, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Decode an entry record's payload.
+	 *
+	 * @param payload
+	 *            The payload, positioned at its start.
+	 * @param strings
+	 *            The dictionary so far.
+	 * @return The decoded entry.
+	 * @throws IOException
+	 *             If the payload refers to something that doesn't exist.
+	 */
+	static JournalEntry decodeEntry(final ByteBuffer payload, final List<String> strings) throws IOException {
+		final long version = payload.getLong();
+		final Instant timestamp = readInstant(payload);
+		final GameEvent.EventType type = readOrdinal(payload, GameEvent.EventType.values());
+		final String userName = readString(payload, strings);
+		final Instant lastActive = readInstant(payload);
+		final String text = readText(payload);
+		final User user = userName != null
+				? new User(userName, lastActive != null ? LocalDateTime.ofInstant(lastActive, ZoneOffset.UTC) : null)
+				: null;
+		final GameEvent event = new GameEvent(timestamp, type, user, text);
+		return new JournalEntry(version, event, readMessage(payload, strings));
+	}
+
+	/**
+	 * Decode a message encoded by {@link #encodeMessage(ClientMessage, List)}.
+	 *
+	 * @param payload
+	 *            The encoded message, positioned at its start.
+	 * @param strings
+	 *            The dictionary the message was encoded with.
+	 * @return The decoded message.
+	 * @throws IOException
+	 *             If the message refers to something that doesn't exist.
+	 */
+	static ClientMessage decodeMessage(final ByteBuffer payload, final List<String> strings) throws IOException {
+		return readMessage(payload, strings);
+	}
+
+	private static ClientMessage readMessage(final ByteBuffer in, final List<String> strings) throws IOException {
+		final byte kind = in.get();
+		switch (kind) {
+			case NEW_GAME: {
+				final Civilization.Region region = readOrdinal(in, Civilization.Region.values());
+				final Game.Difficulty difficulty = readOrdinal(in, Game.Difficulty.values());
+				final boolean useCredits = in.get() != 0;
+				final int count = in.getShort();
+				final HashMap<Civilization.Name, String> civNames = new HashMap<Civilization.Name, String>();
+				for (int i = 0; i < count; i++) {
+					final Civilization.Name name = readOrdinal(in, Civilization.Name.values());
+					civNames.put(name, readString(in, strings));
+				}
+				return new NewGameMessage(region, civNames, difficulty, useCredits);
+			}
+			case CENSUS:
+				return new CensusMessage(readCounts(in));
+			case CITY_UPDATE:
+				return new CityUpdateMessage(readCounts(in));
+			case TECH_PURCHASE: {
+				final Civilization.Name name = readOrdinal(in, Civilization.Name.values());
+				final int count = in.getShort();
+				final ArrayList<Technology> techs = new ArrayList<Technology>(count);
+				for (int i = 0; i < count; i++) {
+					techs.add(readOrdinal(in, Technology.values()));
+				}
+				return new TechPurchaseMessage(name, techs);
+			}
+			case UNDO_PURCHASE:
+				return new UndoPurchaseMessage(readOrdinal(in, Civilization.Name.values()));
+			case ADVANCE_AST: {
+				final int count = in.getShort();
+				final HashMap<Civilization.Name, Civilization.AstChange> advance =
+						new HashMap<Civilization.Name, Civilization.AstChange>();
+				for (int i = 0; i < count; i++) {
+					final Civilization.Name name = readOrdinal(in, Civilization.Name.values());
+					advance.put(name, readOrdinal(in, Civilization.AstChange.values()));
+				}
+				return new AdvanceAstMessage(advance);
+			}
+			case ADDITIONAL_CREDIT: {
+				final Civilization.Name name = readOrdinal(in, Civilization.Name.values());
+				final Technology tech = readOrdinal(in, Technology.values());
+				final int count = in.getShort();
+				final ArrayList<Technology.Type> credits = new ArrayList<Technology.Type>(count);
+				for (int i = 0; i < count; i++) {
+					credits.add(readOrdinal(in, Technology.Type.values()));
+				}
+				return new AdditionalCreditMessage(name, tech, credits);
+			}
+			case RETIRE:
+				return new RetireMessage(readOrdinal(in, Civilization.Name.values()));
+			case CIV_EDIT:
+				return new CivEditMessage(MessageCodec.decodeValue(readBytes(in), Civilization.class));
+			case LOAD_GAME:
+				return new LoadGameMessage(MessageCodec.decodeValue(readBytes(in), Game.class));
+			case OTHER:
+				return MessageCodec.decodeClientMessage(readBytes(in));
+			default:
+				throw new IOException("Unknown message kind " + kind);
+		}
+	}
+
+	private static HashMap<Civilization.Name, Integer> readCounts(final ByteBuffer in) throws IOException {
+		final int count = in.getShort();
+		final HashMap<Civilization.Name, Integer> counts = new HashMap<Civilization.Name, Integer>();
+		for (int i = 0; i < count; i++) {
+			final Civilization.Name name = readOrdinal(in, Civilization.Name.values());
+			counts.put(name, in.getInt());
+		}
+		return counts;
+	}
+
+	private static <E extends Enum<E>> E readOrdinal(final ByteBuffer in, final E[] values) throws IOException {
+		final byte ordinal = in.get();
+		if (ordinal == NULL) {
+			return null;
+		}
+		if (ordinal < 0 || ordinal >= values.length) {
+			throw new IOException("Invalid ordinal " + ordinal);
+		}
+		return values[ordinal];
+	}
+
+	private static Instant readInstant(final ByteBuffer in) {
+		final long seconds = in.getLong();
+		final int nanos = in.getInt();
+		return seconds == Long.MIN_VALUE ? null : Instant.ofEpochSecond(seconds, nanos);
+	}
+
+	private static String readString(final ByteBuffer in, final List<String> strings) throws IOException {
+		final int number = in.getInt();
+		if (number == NULL) {
+			return null;
+		}
+		if (number < 0 || number >= strings.size()) {
+			throw new IOException("Undefined string " + number);
+		}
+		return strings.get(number);
+	}
+
+	private static String readText(final ByteBuffer in) throws IOException {
+		final int length = in.getInt();
+		if (length == NULL) {
+			return null;
+		}
+		if (length < 0 || length > in.remaining()) {
+			throw new IOException("Invalid text length " + length);
+		}
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String readBytes(final ByteBuffer in) {
+		final byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,42 @@
+package net.bubbaland.megaciv.server;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import net.bubbaland.megaciv.game.GameEvent;
+import net.bubbaland.megaciv.messages.ClientMessage;
+
+/**
+ * A message that changed the game, as recorded in the journal: the message itself, the event logged for it, and the
+ * game version it produced.
+ */
+class JournalEntry {
+
+	@JsonProperty("version")
+	private final long			version;
+	@JsonProperty("event")
+	private final GameEvent		event;
+	@JsonProperty("message")
+	private final ClientMessage	message;
+
+	@JsonCreator
+	JournalEntry(@JsonProperty("version") final long version, @JsonProperty("event") final GameEvent event,
+			@JsonProperty("message") final ClientMessage message) {
+		this.version = version;
+		this.event = event;
+		this.message = message;
+	}
+
+	long getVersion() {
+		return this.version;
+	}
+
+	GameEvent getEvent() {
+		return this.event;
+	}
+
+	ClientMessage getMessage() {
+		return this.message;
+	}
+
+}
@@ -0,0 +1,39 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import net.bubbaland.megaciv.messages.MessageCodec;
+
+/**
+ * Prints the entries in a binary journal file as JSON, one per line, for debugging.
+ *
+ * Usage: java net.bubbaland.megaciv.server.JournalExport &lt;journal file&gt;
+ */
+public class JournalExport {
+
+	private JournalExport() {}
+
+	public static void main(final String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: java " + JournalExport.class.getName() + " <journal file>");
+			System.exit(1);
+		}
+		final Path file = Paths.get(args[0]);
+		try {
+			final JournalReader reader = new JournalReader(file);
+			int count = 0;
+			for (JournalEntry entry = reader.next(); entry != null; entry = reader.next()) {
+				System.out.println(MessageCodec.encodeValue(entry));
+				count++;
+			}
+			System.err.println(count + " entries, " + reader.getStrings().size() + " strings, "
+					+ reader.getValidLength() + " readable bytes");
+		} catch (final IOException exception) {
+			exception.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the entries in a journal file written with {@link JournalCodec}. The whole file is read into memory up front
+ * and nothing is left open, so the caller is free to truncate or move the file afterwards; a memory-mapped file can't
+ * be truncated or moved on Windows while the mapping is live.
+ *
+ * Reading stops at the end of the file or at the first record that is incomplete or fails its checksum, such as one
+ * being written when the server stopped. {@link #getValidLength()} then gives the length of the readable part.
+ */
+class JournalReader {
+
+	private final ByteBuffer			buffer;
+	private final ArrayList<String>		strings;
+
+	// End of the last complete record read
+	private int							validLength;
+
+	/**
+	 * Open a journal file and check its header.
+	 *
+	 * @param file
+	 *            The journal file.
+	 * @throws IOException
+	 *             If the file can't be read or isn't a journal in a format this reader understands.
+	 */
+	JournalReader(final Path file) throws IOException {
+		final long size = Files.size(file);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Journal too large to read: " + file);
+		}
+		this.buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		this.strings = new ArrayList<String>();
+		final byte[] magic = new byte[JournalCodec.MAGIC.length];
+		if (this.buffer.remaining() < JournalCodec.HEADER_SIZE) {
+			throw new IOException("Missing journal header: " + file);
+		}
+		this.buffer.get(magic);
+		final short version = this.buffer.getShort();
+		if (!Arrays.equals(magic, JournalCodec.MAGIC) || version != JournalCodec.FORMAT_VERSION) {
+			throw new IOException("Unsupported journal format: " + file);
+		}
+		this.validLength = this.buffer.position();
+	}
+
+	/**
+	 * Read the next entry.
+	 *
+	 * @return The entry, or null if there are no more readable entries.
+	 * @throws IOException
+	 *             If an entry is intact but can't be decoded.
+	 */
+	JournalEntry next() throws IOException {
+		while (this.buffer.remaining() >= JournalCodec.RECORD_OVERHEAD) {
+			final int start = this.buffer.position();
+			final byte kind = this.buffer.get();
+			final int length = this.buffer.getInt();
+			if (length < 0 || length > this.buffer.remaining() - 4) {
+				break;
+			}
+			final byte[] payload = new byte[length];
+			this.buffer.get(payload);
+			if (this.buffer.getInt() != JournalCodec.checksum(kind, payload, 0, length)) {
+				this.buffer.position(start);
+				break;
+			}
+			this.validLength = this.buffer.position();
+			switch (kind) {
+				case JournalCodec.STRING_RECORD:
+					this.strings.add(new String(payload, StandardCharsets.UTF_8));
+					break;
+				case JournalCodec.ENTRY_RECORD:
+					try {
+						return JournalCodec.decodeEntry(ByteBuffer.wrap(payload), this.strings);
+					} catch (final BufferUnderflowException exception) {
+						throw new IOException("Truncated entry at offset " + start);
+					}
+				default:
+					throw new IOException("Unknown record kind " + kind + " at offset " + start);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the length of the file up to the end of the last complete record read.
+	 *
+	 * @return The readable length in bytes.
+	 */
+	int getValidLength() {
+		return this.validLength;
+	}
+
+	/**
+	 * Get the strings defined so far.
+	 *
+	 * @return The dictionary, in order.
+	 */
+	List<String> getStrings() {
+		return this.strings;
+	}
+
+}
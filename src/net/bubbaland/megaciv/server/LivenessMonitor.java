@@ -0,0 +1,214 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.websocket.Session;
+
+/**
+ * Checks that connected clients are still there.
+ *
+ * Each session is sent a ping at a regular interval, carrying the time it was sent so the reply gives the round-trip
+ * time. Any message or pong from the client counts as hearing from it; a session not heard from within the timeout is
+ * evicted, rather than being sent every broadcast until the connection finally fails.
+ *
+ * Every session has one pending check on a {@link TimerWheel}, so keeping track of thousands of sessions costs the
+ * same per session as keeping track of a few.
+ */
+class LivenessMonitor {
+
+	// Defaults for how often clients are pinged and how long they may stay silent
+	static final Duration				DEFAULT_PING_INTERVAL	= Duration.ofSeconds(15);
+	static final Duration				DEFAULT_TIMEOUT			= Duration.ofSeconds(60);
+
+	// Checks are run up to a tick late; a rotation covers the default ping interval several times over
+	private static final Duration		TICK					= Duration.ofMillis(100);
+	private static final int			TICKS_PER_WHEEL			= 512;
+
+	// Bytes in a ping's payload: the sender's System.nanoTime()
+	private static final int			PING_LENGTH				= Long.BYTES;
+
+	private final TimerWheel			wheel;
+
+	private volatile Duration			pingInterval;
+	private volatile Duration			timeout;
+
+	// Statistics since the last report
+	private final LongAdder				evictionCount;
+	private final LongAdder				roundTripCount;
+	private final LongAdder				roundTripNanos;
+	private final LongAccumulator		maxRoundTripNanos;
+
+	/**
+	 * Create a monitor and start its timer.
+	 */
+	LivenessMonitor() {
+		this.wheel = new TimerWheel("liveness-timer", TICK, TICKS_PER_WHEEL);
+		this.pingInterval = DEFAULT_PING_INTERVAL;
+		this.timeout = DEFAULT_TIMEOUT;
+		this.evictionCount = new LongAdder();
+		this.roundTripCount = new LongAdder();
+		this.roundTripNanos = new LongAdder();
+		this.maxRoundTripNanos = new LongAccumulator(Long::max, 0);
+	}
+
+	/**
+	 * Change how often clients are pinged and how long they may stay silent. Takes effect at each session's next check.
+	 *
+	 * @param pingInterval
+	 *            Time between pings.
+	 * @param timeout
+	 *            Longest a client may go without being heard from before it is evicted.
+	 */
+	void setTimeouts(final Duration pingInterval, final Duration timeout) {
+		if (pingInterval.isNegative() || pingInterval.isZero() || timeout.compareTo(pingInterval) < 0) {
+			throw new IllegalArgumentException("Invalid liveness settings: ping every " + pingInterval
+					+ ", timeout after " + timeout);
+		}
+		this.pingInterval = pingInterval;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Start checking a session.
+	 *
+	 * @param session
+	 *            The session.
+	 * @param endpoint
+	 *            The session's endpoint, which evicts it if it goes silent.
+	 * @return The session's watch, which must be told when the client is heard from and cancelled when it closes.
+	 */
+	Watch watch(final Session session, final ClientMessageReceiver endpoint) {
+		final Watch watch = new Watch(session, endpoint);
+		watch.schedule();
+		return watch;
+	}
+
+	/**
+	 * Summarize evictions and round-trip times since the last report.
+	 *
+	 * @return The summary, or null if there is nothing to report.
+	 */
+	String reportStats() {
+		final long evictions = this.evictionCount.sumThenReset();
+		final long count = this.roundTripCount.sumThenReset();
+		if (evictions == 0 && count == 0) {
+			return null;
+		}
+		final long meanMillis = count > 0 ? this.roundTripNanos.sumThenReset() / count / 1000000 : 0;
+		final long maxMillis = this.maxRoundTripNanos.getThenReset() / 1000000;
+		return String.format("Pinged clients %d times, %d ms avg / %d ms max round trip, %d evicted", count, meanMillis,
+				maxMillis, evictions);
+	}
+
+	/**
+	 * Stop checking sessions.
+	 */
+	void stop() {
+		this.wheel.stop();
+	}
+
+	/**
+	 * Liveness of one session.
+	 */
+	final class Watch {
+		private final Session				session;
+		private final ClientMessageReceiver	endpoint;
+
+		private volatile long				lastHeard;
+		private volatile long				roundTripNanos;
+		private volatile TimerWheel.Timeout	check;
+		private volatile boolean			cancelled;
+
+		private Watch(final Session session, final ClientMessageReceiver endpoint) {
+			this.session = session;
+			this.endpoint = endpoint;
+			this.lastHeard = System.nanoTime();
+			this.roundTripNanos = -1;
+			this.cancelled = false;
+		}
+
+		/**
+		 * Record that the client was heard from.
+		 */
+		void heard() {
+			this.lastHeard = System.nanoTime();
+		}
+
+		/**
+		 * Record a pong from the client.
+		 *
+		 * @param payload
+		 *            The pong's payload, which echoes the ping's.
+		 */
+		void pong(final ByteBuffer payload) {
+			final long now = System.nanoTime();
+			this.lastHeard = now;
+			// Unsolicited pongs are allowed, and needn't carry a time
+			if (payload.remaining() == PING_LENGTH) {
+				final long nanos = now - payload.getLong(payload.position());
+				if (nanos >= 0 && nanos <= LivenessMonitor.this.timeout.toNanos()) {
+					this.roundTripNanos = nanos;
+					LivenessMonitor.this.roundTripCount.increment();
+					LivenessMonitor.this.roundTripNanos.add(nanos);
+					LivenessMonitor.this.maxRoundTripNanos.accumulate(nanos);
+				}
+			}
+		}
+
+		/**
+		 * Get the most recent round-trip time.
+		 *
+		 * @return The round-trip time in nanoseconds, or -1 if no ping has been answered yet.
+		 */
+		long getRoundTripNanos() {
+			return this.roundTripNanos;
+		}
+
+		/**
+		 * Stop checking the session.
+		 */
+		void cancel() {
+			this.cancelled = true;
+			final TimerWheel.Timeout check = this.check;
+			if (check != null) {
+				check.cancel();
+			}
+		}
+
+		private void schedule() {
+			this.check = LivenessMonitor.this.wheel.schedule(this::check, LivenessMonitor.this.pingInterval);
+			// A cancel that raced with scheduling may have missed the new check
+			if (this.cancelled) {
+				this.check.cancel();
+			}
+		}
+
+		/**
+		 * Evict the session if it has been silent too long, otherwise ping it. Run on the wheel's thread.
+		 */
+		private void check() {
+			if (this.cancelled) {
+				return;
+			}
+			final long silentNanos = System.nanoTime() - this.lastHeard;
+			if (silentNanos > LivenessMonitor.this.timeout.toNanos() || !this.session.isOpen()) {
+				LivenessMonitor.this.evictionCount.increment();
+				this.endpoint.evict(this.session, "No response for " + silentNanos / 1000000000 + " s");
+				return;
+			}
+			final ByteBuffer payload = ByteBuffer.allocate(PING_LENGTH);
+			payload.putLong(0, System.nanoTime());
+			try {
+				this.session.getAsyncRemote().sendPing(payload);
+			} catch (final IOException | IllegalStateException exception) {
+				// Closed underneath us; the next check evicts it if onClose doesn't get there first
+			}
+			this.schedule();
+		}
+	}
+
+}
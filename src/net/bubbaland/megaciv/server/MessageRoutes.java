@@ -0,0 +1,82 @@
+package net.bubbaland.megaciv.server;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Set;
+
+import net.bubbaland.megaciv.messages.AdditionalCreditMessage;
+import net.bubbaland.megaciv.messages.AdvanceAstMessage;
+import net.bubbaland.megaciv.messages.CensusMessage;
+import net.bubbaland.megaciv.messages.CityUpdateMessage;
+import net.bubbaland.megaciv.messages.CivEditMessage;
+import net.bubbaland.megaciv.messages.ClientMessage;
+import net.bubbaland.megaciv.messages.GameLogRequestMessage;
+import net.bubbaland.megaciv.messages.GameResyncMessage;
+import net.bubbaland.megaciv.messages.GameUploadMessage;
+import net.bubbaland.megaciv.messages.KeepAliveMessage;
+import net.bubbaland.megaciv.messages.LoadGameMessage;
+import net.bubbaland.megaciv.messages.NewGameMessage;
+import net.bubbaland.megaciv.messages.RetireMessage;
+import net.bubbaland.megaciv.messages.SetUserMessage;
+import net.bubbaland.megaciv.messages.StopwatchMessage;
+import net.bubbaland.megaciv.messages.TechPurchaseMessage;
+import net.bubbaland.megaciv.messages.UndoPurchaseMessage;
+
+/**
+ * Declares which parts of a room's state each type of client message can change, so only those parts are broadcast
+ * after the message is applied.
+ */
+final class MessageRoutes {
+
+	/**
+	 * Parts of a room's state that are broadcast to clients separately.
+	 */
+	enum Channel {
+		GAME, USERS, STOPWATCH
+	}
+
+	private static final HashMap<Class<? extends ClientMessage>, Set<Channel>> ROUTES;
+
+	static {
+		ROUTES = new HashMap<Class<? extends ClientMessage>, Set<Channel>>();
+		route(NewGameMessage.class, Channel.GAME);
+		route(LoadGameMessage.class, Channel.GAME);
+		route(CensusMessage.class, Channel.GAME);
+		route(CityUpdateMessage.class, Channel.GAME);
+		route(TechPurchaseMessage.class, Channel.GAME);
+		route(UndoPurchaseMessage.class, Channel.GAME);
+		route(AdvanceAstMessage.class, Channel.GAME);
+		route(AdditionalCreditMessage.class, Channel.GAME);
+		route(RetireMessage.class, Channel.GAME);
+		route(CivEditMessage.class, Channel.GAME);
+		route(SetUserMessage.class, Channel.USERS);
+		route(StopwatchMessage.class, Channel.STOPWATCH);
+		// Answered to the sender only
+		route(KeepAliveMessage.class);
+		route(GameResyncMessage.class);
+		route(GameLogRequestMessage.class);
+		// Assembled by the receiving endpoint, then applied as a LoadGameMessage
+		route(GameUploadMessage.class);
+	}
+
+	private MessageRoutes() {}
+
+	private static void route(final Class<? extends ClientMessage> messageType, final Channel... channels) {
+		final EnumSet<Channel> set = EnumSet.noneOf(Channel.class);
+		Collections.addAll(set, channels);
+		ROUTES.put(messageType, Collections.unmodifiableSet(set));
+	}
+
+	/**
+	 * Get the parts of a room's state that a message can change.
+	 *
+	 * @param message
+	 *            The message from a client.
+	 * @return The channels to broadcast after applying the message, or null if the message type is unknown.
+	 */
+	static Set<Channel> getChannels(final ClientMessage message) {
+		return ROUTES.get(message.getClass());
+	}
+
+}
@@ -0,0 +1,145 @@
+package net.bubbaland.megaciv.server;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.bubbaland.megaciv.game.User;
+import net.bubbaland.megaciv.messages.PresenceDeltaMessage;
+import net.bubbaland.megaciv.messages.UserListMessage;
+
+/**
+ * The users connected to a room, keyed by session. Joins, departures and renames each advance the version and produce
+ * a delta; activity is only collected, and reported in a periodic digest.
+ *
+ * Changes are made only by the room's actor; the registry can be read from any thread.
+ */
+class PresenceRegistry {
+
+	private final ConcurrentHashMap<String, User>			users;
+	private volatile long									version;
+
+	// Users that have been active since the last digest
+	private final ConcurrentHashMap<String, LocalDateTime>	activity;
+
+	PresenceRegistry() {
+		this.users = new ConcurrentHashMap<String, User>();
+		this.version = 0;
+		this.activity = new ConcurrentHashMap<String, LocalDateTime>();
+	}
+
+	/**
+	 * Add a user.
+	 *
+	 * @param key
+	 *            The user's session key.
+	 * @param user
+	 *            The user.
+	 * @return The change to broadcast.
+	 */
+	PresenceDeltaMessage join(final String key, final User user) {
+		this.users.put(key, user);
+		final HashMap<String, User> joined = new HashMap<String, User>();
+		joined.put(key, user);
+		return this.delta(joined, new HashMap<String, String>(), new ArrayList<String>());
+	}
+
+	/**
+	 * Remove a user.
+	 *
+	 * @param key
+	 *            The user's session key.
+	 * @return The change to broadcast, or null if the user wasn't present.
+	 */
+	PresenceDeltaMessage leave(final String key) {
+		if (this.users.remove(key) == null) {
+			return null;
+		}
+		this.activity.remove(key);
+		final ArrayList<String> left = new ArrayList<String>();
+		left.add(key);
+		return this.delta(new HashMap<String, User>(), new HashMap<String, String>(), left);
+	}
+
+	/**
+	 * Replace a user, for example after the user changes name.
+	 *
+	 * @param key
+	 *            The user's session key.
+	 * @param user
+	 *            The new user details.
+	 * @return The change to broadcast, or null if nothing visible changed.
+	 */
+	PresenceDeltaMessage rename(final String key, final User user) {
+		final User previous = this.users.put(key, user);
+		this.touch(key, user);
+		if (previous != null && previous.getUserName().equals(user.getUserName())) {
+			return null;
+		}
+		final HashMap<String, String> renamed = new HashMap<String, String>();
+		renamed.put(key, user.getUserName());
+		return this.delta(new HashMap<String, User>(), renamed, new ArrayList<String>());
+	}
+
+	/**
+	 * Note that a user has been active. The time is reported in the next digest.
+	 *
+	 * @param key
+	 *            The user's session key.
+	 * @param user
+	 *            The user.
+	 */
+	void touch(final String key, final User user) {
+		if (this.users.containsKey(key)) {
+			this.activity.put(key, user.getLastActive());
+		}
+	}
+
+	/**
+	 * Collect the activity noted since the last digest.
+	 *
+	 * @return The digest to broadcast, or null if nobody has been active.
+	 */
+	PresenceDeltaMessage digest() {
+		if (this.activity.isEmpty()) {
+			return null;
+		}
+		final HashMap<String, LocalDateTime> active = new HashMap<String, LocalDateTime>();
+		for (final String key : this.activity.keySet()) {
+			final LocalDateTime lastActive = this.activity.remove(key);
+			if (lastActive != null) {
+				active.put(key, lastActive);
+			}
+		}
+		return new PresenceDeltaMessage(this.version, this.version, new HashMap<String, User>(),
+				new HashMap<String, String>(), new ArrayList<String>(), active);
+	}
+
+	/**
+	 * Get the full list of users at the current version.
+	 *
+	 * @return The user list message.
+	 */
+	UserListMessage snapshot() {
+		return new UserListMessage(this.version, new HashMap<String, User>(this.users));
+	}
+
+	/**
+	 * Get the number of users present.
+	 *
+	 * @return The number of users.
+	 */
+	int size() {
+		return this.users.size();
+	}
+
+	private PresenceDeltaMessage delta(final HashMap<String, User> joined, final HashMap<String, String> renamed,
+			final ArrayList<String> left) {
+		final long baseVersion = this.version;
+		this.version = baseVersion + 1;
+		return new PresenceDeltaMessage(baseVersion, this.version, joined, renamed, left,
+				new HashMap<String, LocalDateTime>());
+	}
+
+}
@@ -0,0 +1,254 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Settings for running a game server without a user interface.
+ *
+ * Settings are read from a properties file given with {@code --config=<file>}, then from command line options of the
+ * form {@code --<name>=<value>}, which take precedence. The names are:
+ *
+ * <ul>
+ * <li>host, port: address the server listens on (default localhost:1099)</li>
+ * <li>sntpPort: port of the time service (default 123)</li>
+ * <li>maxSessions: most clients connected at once, across all rooms (default 256)</li>
+ * <li>roomThreads: threads applying changes to games (default one per processor)</li>
+ * <li>journalDirectory: where changes are recorded, or "none" (default journal)</li>
+ * <li>autosaveDirectory: where games are saved, or "none" (default autosave)</li>
+ * <li>autosaveInterval: time between saves, as an ISO-8601 duration (default PT5M)</li>
+ * <li>autosaveCompressed: whether saves are gzipped (default true)</li>
+ * <li>autosaveRetention: saves kept for each room (default 20)</li>
+ * <li>pingInterval: time between pings to each client, as an ISO-8601 duration (default PT15S)</li>
+ * <li>sessionTimeout: longest a client may go without being heard from before it is disconnected (default PT60S)</li>
+ * <li>coalesce: whether changes made close together are broadcast together (default false)</li>
+ * <li>logFile: file the log is written to as well as the console, or "none" (default server.log)</li>
+ * </ul>
+ *
+ * For compatibility, the host, port, and the word "coalesce" may also be given as plain arguments, in that order.
+ */
+public class ServerConfig {
+
+	// Value of a path setting that turns the feature off
+	private static final String			NONE					= "none";
+
+	// Defaults not already defined by the server
+	public static final String			DEFAULT_HOST			= "localhost";
+	public static final int				DEFAULT_PORT			= 1099;
+	public static final int				DEFAULT_SNTP_PORT		= 123;
+	public static final int				DEFAULT_MAX_SESSIONS	= 256;
+
+	// Names of the settings
+	private static final List<String>	NAMES					= Arrays.asList("host", "port", "sntpPort",
+			"maxSessions", "roomThreads", "journalDirectory", "autosaveDirectory", "autosaveInterval",
+			"autosaveCompressed", "autosaveRetention", "pingInterval", "sessionTimeout", "coalesce", "logFile");
+
+	private final Properties			properties;
+
+	/**
+	 * Create a configuration with every setting at its default.
+	 */
+	public ServerConfig() {
+		this.properties = new Properties();
+	}
+
+	/**
+	 * Read a configuration from command line arguments and the properties file they name, if any.
+	 *
+	 * @param args
+	 *            The command line arguments.
+	 * @return The configuration.
+	 * @throws IOException
+	 *             If the properties file can't be read.
+	 * @throws IllegalArgumentException
+	 *             If an argument isn't understood.
+	 */
+	public static ServerConfig parse(final String[] args) throws IOException {
+		final ServerConfig config = new ServerConfig();
+		final Properties options = new Properties();
+		int position = 0;
+		for (final String arg : args) {
+			if (arg.startsWith("--")) {
+				final int equals = arg.indexOf('=');
+				if (equals < 0) {
+					throw new IllegalArgumentException("Expected --<name>=<value>: " + arg);
+				}
+				options.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+			} else {
+				switch (position++) {
+					case 0:
+						options.setProperty("host", arg);
+						break;
+					case 1:
+						options.setProperty("port", arg);
+						break;
+					case 2:
+						if (!arg.equals("coalesce")) {
+							throw new IllegalArgumentException("Unknown argument: " + arg);
+						}
+						options.setProperty("coalesce", "true");
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown argument: " + arg);
+				}
+			}
+		}
+		final String file = options.getProperty("config");
+		if (file != null) {
+			try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+				config.properties.load(reader);
+			}
+			options.remove("config");
+		}
+		config.properties.putAll(options);
+		for (final String name : config.properties.stringPropertyNames()) {
+			if (!NAMES.contains(name)) {
+				throw new IllegalArgumentException("Unknown setting: " + name);
+			}
+		}
+		// Check every setting now rather than when it is first used
+		config.apply(null);
+		return config;
+	}
+
+	/**
+	 * Check whether any settings were given.
+	 *
+	 * @return Whether every setting is at its default.
+	 */
+	public boolean isEmpty() {
+		return this.properties.isEmpty();
+	}
+
+	public String getHost() {
+		return this.properties.getProperty("host", DEFAULT_HOST);
+	}
+
+	public int getPort() {
+		return this.getInt("port", DEFAULT_PORT);
+	}
+
+	public int getSntpPort() {
+		return this.getInt("sntpPort", DEFAULT_SNTP_PORT);
+	}
+
+	public int getRoomThreads() {
+		return this.getInt("roomThreads", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a server with these settings.
+	 *
+	 * @return The server, not yet started.
+	 */
+	public GameServer createServer() {
+		final GameServer server = new GameServer(this.getHost(), this.getPort(), this.getSntpPort(),
+				this.getRoomThreads());
+		this.apply(server);
+		return server;
+	}
+
+	/**
+	 * Apply the settings that can be changed after a server is created.
+	 *
+	 * @param server
+	 *            The server, or null just to check the settings.
+	 */
+	private void apply(final GameServer server) {
+		this.getHost();
+		this.getPort();
+		this.getSntpPort();
+		if (this.getRoomThreads() < 1) {
+			throw new IllegalArgumentException("roomThreads must be at least 1");
+		}
+		final int maxSessions = this.getInt("maxSessions", DEFAULT_MAX_SESSIONS);
+		final Path journalDirectory = this.getPath("journalDirectory", GameServer.DEFAULT_JOURNAL_DIRECTORY);
+		final Path autosaveDirectory = this.getPath("autosaveDirectory", GameServer.DEFAULT_AUTOSAVE_DIRECTORY);
+		final Duration autosaveInterval = this.getDuration("autosaveInterval", GameServer.AUTOSAVE_INTERVAL);
+		final boolean autosaveCompressed = this.getBoolean("autosaveCompressed", true);
+		final int autosaveRetention = this.getInt("autosaveRetention", GameServer.AUTOSAVE_RETENTION);
+		final Duration pingInterval = this.getDuration("pingInterval", LivenessMonitor.DEFAULT_PING_INTERVAL);
+		final Duration sessionTimeout = this.getDuration("sessionTimeout", LivenessMonitor.DEFAULT_TIMEOUT);
+		final boolean coalesce = this.getBoolean("coalesce", false);
+		final Path logFile = this.getPath("logFile", GameServer.DEFAULT_LOG_FILE);
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("maxSessions must be at least 1");
+		}
+		if (autosaveInterval.isNegative() || autosaveInterval.isZero() || autosaveRetention < 1) {
+			throw new IllegalArgumentException(
+					"Invalid autosave settings: every " + autosaveInterval + ", keeping " + autosaveRetention);
+		}
+		if (pingInterval.isNegative() || pingInterval.isZero() || sessionTimeout.compareTo(pingInterval) < 0) {
+			throw new IllegalArgumentException(
+					"Invalid liveness settings: ping every " + pingInterval + ", timeout after " + sessionTimeout);
+		}
+		if (server == null) {
+			return;
+		}
+		server.setMaxSessions(maxSessions);
+		server.setJournalDirectory(journalDirectory);
+		server.setAutosave(autosaveDirectory, autosaveInterval, autosaveCompressed, autosaveRetention);
+		if (coalesce) {
+			server.setCoalescing(true, GameServer.MIN_COALESCE_WINDOW, GameServer.MAX_COALESCE_WINDOW);
+		}
+		server.setLiveness(pingInterval, sessionTimeout);
+		server.setLogFile(logFile);
+	}
+
+	private int getInt(final String name, final int defaultValue) {
+		final String value = this.properties.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (final NumberFormatException exception) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		}
+	}
+
+	private boolean getBoolean(final String name, final boolean defaultValue) {
+		final String value = this.properties.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		switch (value.trim().toLowerCase()) {
+			case "true":
+				return true;
+			case "false":
+				return false;
+			default:
+				throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		}
+	}
+
+	private Duration getDuration(final String name, final Duration defaultValue) {
+		final String value = this.properties.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Duration.parse(value.trim());
+		} catch (final DateTimeParseException exception) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		}
+	}
+
+	private Path getPath(final String name, final Path defaultValue) {
+		final String value = this.properties.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		return value.trim().equalsIgnoreCase(NONE) ? null : Paths.get(value.trim());
+	}
+
+}
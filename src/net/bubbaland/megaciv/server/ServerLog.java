@@ -0,0 +1,248 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.bubbaland.megaciv.game.GameEvent;
+
+/**
+ * Server log that never makes the caller wait for output.
+ *
+ * Messages are put in a fixed-size ring buffer without locking, along with the time they were logged. A background
+ * thread takes them out in batches, adds timestamps, and writes each batch to the console and the log file at once.
+ * If the ring is full, for example because the console is very slow, messages are dropped and the number dropped is
+ * logged once there is room again.
+ */
+class ServerLog {
+
+	// Number of messages the ring holds
+	private static final int			CAPACITY	= 8192;
+
+	// Most messages written in one batch
+	private static final int			BATCH_SIZE	= 512;
+
+	// Longest the writer sleeps when there is nothing to write, in case a wake-up is missed
+	private static final long			IDLE_WAIT	= TimeUnit.MILLISECONDS.toNanos(100);
+
+	// The ring. A slot's sequence tells whose turn it is: the writer of position p may fill it when the sequence is p,
+	// and the reader may empty it when the sequence is p + 1.
+	private final String[]				messages;
+	private final long[]				times;
+	private final AtomicLongArray		sequences;
+	private final AtomicLong			tail;
+	private final AtomicLong			dropped;
+
+	private final Thread				writer;
+	private volatile boolean			waiting;
+	private volatile boolean			closed;
+
+	// File the log is also written to, or null for the console only
+	private volatile Path				file;
+
+	// Only used by the writer
+	private long						head;
+	private Path						openFile;
+	private BufferedWriter				fileWriter;
+
+	// Timestamps only show whole seconds, so the last one formatted is reused until the second changes
+	private long						stampSecond;
+	private String						stamp;
+
+	/**
+	 * Create a log and start its writer.
+	 *
+	 * @param file
+	 *            File to append the log to as well as the console, or null for the console only.
+	 */
+	ServerLog(final Path file) {
+		this.messages = new String[CAPACITY];
+		this.times = new long[CAPACITY];
+		this.sequences = new AtomicLongArray(CAPACITY);
+		for (int i = 0; i < CAPACITY; i++) {
+			this.sequences.set(i, i);
+		}
+		this.tail = new AtomicLong(0);
+		this.dropped = new AtomicLong(0);
+		this.file = file;
+		this.head = 0;
+		this.stampSecond = Long.MIN_VALUE;
+		this.stamp = null;
+		this.waiting = false;
+		this.closed = false;
+		this.writer = new Thread(this::run, "log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Log a message. Safe to call from any thread; never blocks.
+	 *
+	 * @param message
+	 *            The message.
+	 */
+	void log(final String message) {
+		final long time = System.currentTimeMillis();
+		if (this.closed) {
+			System.out.println(format(time, message));
+			return;
+		}
+		long position = this.tail.get();
+		while (true) {
+			final int slot = (int) ( position & ( CAPACITY - 1 ) );
+			final long difference = this.sequences.get(slot) - position;
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					this.messages[slot] = message;
+					this.times[slot] = time;
+					// Publishes the message to the writer
+					this.sequences.set(slot, position + 1);
+					break;
+				}
+				position = this.tail.get();
+			} else if (difference < 0) {
+				this.dropped.incrementAndGet();
+				return;
+			} else {
+				position = this.tail.get();
+			}
+		}
+		if (this.waiting) {
+			LockSupport.unpark(this.writer);
+		}
+	}
+
+	/**
+	 * Change the file the log is written to. Takes effect from the next batch.
+	 *
+	 * @param file
+	 *            The file, or null for the console only.
+	 */
+	void setFile(final Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Write everything already logged, then stop the writer. Messages logged afterwards are printed directly.
+	 */
+	void close() {
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+		try {
+			this.writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		final StringBuilder batch = new StringBuilder();
+		while (true) {
+			batch.setLength(0);
+			final long lost = this.dropped.getAndSet(0);
+			if (lost > 0) {
+				this.appendLine(batch, System.currentTimeMillis(), lost + " log messages dropped");
+			}
+			final int count = this.take(batch);
+			if (batch.length() > 0) {
+				this.write(batch);
+			}
+			if (count == 0) {
+				if (this.closed) {
+					break;
+				}
+				this.waiting = true;
+				if (!this.hasNext() && !this.closed) {
+					LockSupport.parkNanos(this, IDLE_WAIT);
+				}
+				this.waiting = false;
+			}
+		}
+		this.closeFile();
+	}
+
+	private boolean hasNext() {
+		final int slot = (int) ( this.head & ( CAPACITY - 1 ) );
+		return this.sequences.get(slot) == this.head + 1;
+	}
+
+	/**
+	 * Move up to {@link #BATCH_SIZE} messages from the ring to a batch, formatted as lines.
+	 */
+	private int take(final StringBuilder batch) {
+		int count = 0;
+		while (count < BATCH_SIZE && this.hasNext()) {
+			final int slot = (int) ( this.head & ( CAPACITY - 1 ) );
+			this.appendLine(batch, this.times[slot], this.messages[slot]);
+			this.messages[slot] = null;
+			// Hands the slot back to writers for its next turn
+			this.sequences.set(slot, this.head + CAPACITY);
+			this.head++;
+			count++;
+		}
+		return count;
+	}
+
+	private void write(final StringBuilder batch) {
+		// Looked up each time, so output follows System.setOut
+		final PrintStream console = System.out;
+		console.print(batch);
+		console.flush();
+
+		final Path file = this.file;
+		try {
+			if (file == null || !file.equals(this.openFile)) {
+				this.closeFile();
+				if (file != null) {
+					this.fileWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+							StandardOpenOption.APPEND);
+					this.openFile = file;
+				}
+			}
+			if (this.fileWriter != null) {
+				this.fileWriter.append(batch);
+				this.fileWriter.flush();
+			}
+		} catch (final IOException exception) {
+			console.println("Couldn't write log file " + file + ":");
+			exception.printStackTrace();
+			this.closeFile();
+			this.file = null;
+		}
+	}
+
+	private void closeFile() {
+		if (this.fileWriter != null) {
+			try {
+				this.fileWriter.close();
+			} catch (final IOException exception) {
+				exception.printStackTrace();
+			}
+		}
+		this.fileWriter = null;
+		this.openFile = null;
+	}
+
+	private void appendLine(final StringBuilder batch, final long time, final String message) {
+		final long second = Math.floorDiv(time, 1000);
+		if (second != this.stampSecond) {
+			this.stampSecond = second;
+			this.stamp = GameEvent.dateFormat.format(Instant.ofEpochSecond(second));
+		}
+		batch.append(this.stamp).append(": ").append(message).append('\n');
+	}
+
+	private static String format(final long time, final String message) {
+		return GameEvent.dateFormat.format(Instant.ofEpochMilli(time)) + ": " + message;
+	}
+
+}
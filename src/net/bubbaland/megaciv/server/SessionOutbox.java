@@ -0,0 +1,289 @@
+package net.bubbaland.megaciv.server;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * Frames waiting to be sent to a single client. Only one frame is handed to the transport at a time, so a slow client
+ * backs up here rather than inside the WebSocket implementation.
+ *
+ * The queue is bounded. A new game snapshot or user list replaces any older one still waiting, along with the changes
+ * it includes, since the client only needs the latest. Game and user list changes are dropped when the queue is full;
+ * a client that misses one will see the version gap and ask for a resync. Replies and clock updates have no versions,
+ * so they are never dropped: they make room by dropping a change instead, and a client whose queue holds nothing
+ * that can be dropped is disconnected. So is a client that stays backed up for too long.
+ */
+class SessionOutbox {
+
+	/**
+	 * Kinds of frame, used to decide which queued frames a new frame makes obsolete.
+	 */
+	enum FrameType {
+		// Full copy of the game; replaces queued snapshots and deltas
+		SNAPSHOT,
+		// Changes to the game since the previous version
+		DELTA,
+		// Full list of users; replaces queued user lists and changes
+		USERS,
+		// Changes to the user list since the previous version
+		PRESENCE,
+		// Replies to a client's requests and clock updates, which the client can't tell are missing
+		ESSENTIAL
+	}
+
+	// Maximum number of frames waiting to be sent
+	static final int						CAPACITY		= 64;
+
+	// How long a frame can wait before the client is considered too slow
+	static final Duration					SLOW_THRESHOLD	= Duration.ofSeconds(30);
+
+	private final Session					session;
+	private final ArrayDeque<QueuedFrame>	queue;
+
+	// Whether a frame has been handed to the transport and not yet completed, and when
+	private boolean							sending;
+	private long							sendStartTime;
+
+	private boolean							closed;
+
+	private long							sentCount;
+	private long							droppedCount;
+	private long							supersededCount;
+
+	/**
+	 * Create an empty outbox for a client.
+	 *
+	 * @param session
+	 *            The client's session.
+	 */
+	SessionOutbox(final Session session) {
+		this.session = session;
+		this.queue = new ArrayDeque<QueuedFrame>();
+		this.sending = false;
+		this.sendStartTime = 0;
+		this.closed = false;
+		this.sentCount = 0;
+		this.droppedCount = 0;
+		this.supersededCount = 0;
+	}
+
+	/**
+	 * Queue a frame to be sent to the client.
+	 *
+	 * @param type
+	 *            What kind of frame this is.
+	 * @param frame
+	 *            The encoded message.
+	 * @return Whether the frame was queued.
+	 */
+	boolean offer(final FrameType type, final String frame) {
+		final long now = System.nanoTime();
+		final QueuedFrame next;
+		final boolean tooSlow;
+		synchronized (this) {
+			if (this.closed) {
+				return false;
+			}
+			if (this.isSlow(now)) {
+				tooSlow = true;
+			} else {
+				this.removeSuperseded(type);
+				if (this.queue.size() >= CAPACITY && type != FrameType.ESSENTIAL) {
+					this.droppedCount++;
+					return false;
+				}
+				// A client that has left no room even for frames that can't be dropped is as good as too slow
+				tooSlow = this.queue.size() >= CAPACITY && !this.dropRecoverable();
+			}
+			if (tooSlow) {
+				this.closed = true;
+				next = null;
+			} else {
+				this.queue.add(new QueuedFrame(type, frame, now));
+				next = this.takeNext(now);
+			}
+		}
+		if (tooSlow) {
+			this.disconnect();
+			return false;
+		}
+		this.send(next);
+		return true;
+	}
+
+	/**
+	 * Disconnect the client if it has fallen too far behind, even if nothing new is being sent to it.
+	 *
+	 * @return Whether the client was disconnected.
+	 */
+	boolean disconnectIfSlow() {
+		synchronized (this) {
+			if (this.closed || !this.isSlow(System.nanoTime())) {
+				return false;
+			}
+			this.closed = true;
+		}
+		this.disconnect();
+		return true;
+	}
+
+	/**
+	 * Get the number of frames waiting to be sent.
+	 *
+	 * @return The queue depth.
+	 */
+	synchronized int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Get the number of frames sent to the client.
+	 *
+	 * @return The number of frames sent.
+	 */
+	synchronized long getSentCount() {
+		return this.sentCount;
+	}
+
+	/**
+	 * Get the number of frames discarded because the queue was full.
+	 *
+	 * @return The number of frames dropped.
+	 */
+	synchronized long getDroppedCount() {
+		return this.droppedCount;
+	}
+
+	/**
+	 * Get the number of frames discarded because a newer frame of the same kind was queued.
+	 *
+	 * @return The number of frames superseded.
+	 */
+	synchronized long getSupersededCount() {
+		return this.supersededCount;
+	}
+
+	/**
+	 * Determine whether the client has fallen too far behind: a frame has been in flight, or waiting, for longer than
+	 * the threshold.
+	 */
+	private boolean isSlow(final long now) {
+		final long limit = SLOW_THRESHOLD.toNanos();
+		if (this.sending && now - this.sendStartTime > limit) {
+			return true;
+		}
+		final QueuedFrame oldest = this.queue.peek();
+		return oldest != null && now - oldest.queuedTime > limit;
+	}
+
+	private void removeSuperseded(final FrameType type) {
+		final FrameType changes;
+		if (type == FrameType.SNAPSHOT) {
+			changes = FrameType.DELTA;
+		} else if (type == FrameType.USERS) {
+			changes = FrameType.PRESENCE;
+		} else {
+			return;
+		}
+		for (final Iterator<QueuedFrame> iterator = this.queue.iterator(); iterator.hasNext();) {
+			final FrameType queuedType = iterator.next().type;
+			if (queuedType == type || queuedType == changes) {
+				iterator.remove();
+				this.supersededCount++;
+			}
+		}
+	}
+
+	/**
+	 * Drop the oldest queued game or user list change, which the client will notice is missing and ask for again.
+	 *
+	 * @return Whether there was one to drop.
+	 */
+	private boolean dropRecoverable() {
+		for (final Iterator<QueuedFrame> iterator = this.queue.iterator(); iterator.hasNext();) {
+			final FrameType queuedType = iterator.next().type;
+			if (queuedType == FrameType.DELTA || queuedType == FrameType.PRESENCE) {
+				iterator.remove();
+				this.droppedCount++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Take the next frame to hand to the transport, if nothing is currently in flight.
+	 */
+	private QueuedFrame takeNext(final long now) {
+		if (this.sending || this.queue.isEmpty()) {
+			return null;
+		}
+		this.sending = true;
+		this.sendStartTime = now;
+		return this.queue.poll();
+	}
+
+	private void send(final QueuedFrame queued) {
+		if (queued == null) {
+			return;
+		}
+		try {
+			this.session.getAsyncRemote().sendText(queued.frame, this::sendComplete);
+		} catch (final IllegalStateException exception) {
+			// Session closed underneath us
+			this.sendComplete(new SendResult(exception));
+		}
+	}
+
+	private void sendComplete(final SendResult result) {
+		final QueuedFrame next;
+		synchronized (this) {
+			this.sending = false;
+			if (result.isOK()) {
+				this.sentCount++;
+			}
+			next = this.closed ? null : this.takeNext(System.nanoTime());
+		}
+		this.send(next);
+	}
+
+	private void disconnect() {
+		synchronized (this) {
+			this.droppedCount += this.queue.size();
+			this.queue.clear();
+		}
+		try {
+			this.session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Client too slow"));
+		} catch (final IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.queue.size() + " queued, " + this.sentCount + " sent, " + this.droppedCount + " dropped, "
+				+ this.supersededCount + " superseded";
+	}
+
+	/**
+	 * An encoded frame waiting to be sent.
+	 */
+	private static final class QueuedFrame {
+		private final FrameType	type;
+		private final String	frame;
+		private final long		queuedTime;
+
+		private QueuedFrame(final FrameType type, final String frame, final long queuedTime) {
+			this.type = type;
+			this.frame = frame;
+			this.queuedTime = queuedTime;
+		}
+	}
+
+}
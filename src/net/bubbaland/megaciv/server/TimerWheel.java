@@ -0,0 +1,205 @@
+package net.bubbaland.megaciv.server;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, for large numbers of timeouts that are usually cancelled or rescheduled.
+ *
+ * Time is divided into ticks, and the wheel has a bucket for each tick in one rotation. A timeout goes in the bucket
+ * for the tick it expires on, with a count of the whole rotations left before it is due. Scheduling and cancelling are
+ * O(1) however many timeouts are pending; the price is that tasks run up to a tick late.
+ *
+ * Timeouts may be scheduled and cancelled from any thread. They are handed to the wheel's own thread, which is the only
+ * one to touch the buckets, and which runs the tasks. Tasks must therefore be short.
+ */
+class TimerWheel {
+
+	// Most timeouts moved into buckets per tick, so a burst of scheduling can't hold up expiry
+	private static final int							MAX_TRANSFERS	= 100000;
+
+	private final long									tickNanos;
+	private final Timeout[]								buckets;
+	private final int									mask;
+	private final long									startTime;
+
+	// Timeouts scheduled or cancelled but not yet seen by the wheel's thread
+	private final ConcurrentLinkedQueue<Timeout>		scheduled;
+	private final ConcurrentLinkedQueue<Timeout>		cancelled;
+
+	private final Thread								worker;
+	private volatile boolean							stopped;
+
+	// Only used by the wheel's thread
+	private long										tick;
+
+	/**
+	 * Create a wheel and start its thread.
+	 *
+	 * @param name
+	 *            Name of the wheel's thread.
+	 * @param tickDuration
+	 *            Length of a tick, which is how late a task may run.
+	 * @param ticksPerWheel
+	 *            Number of buckets; rounded up to a power of two.
+	 */
+	TimerWheel(final String name, final Duration tickDuration, final int ticksPerWheel) {
+		if (tickDuration.isNegative() || tickDuration.isZero() || ticksPerWheel < 1) {
+			throw new IllegalArgumentException("Invalid timer wheel: " + ticksPerWheel + " ticks of " + tickDuration);
+		}
+		this.tickNanos = tickDuration.toNanos();
+		final int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+		this.buckets = new Timeout[Math.max(size, 1)];
+		this.mask = this.buckets.length - 1;
+		this.scheduled = new ConcurrentLinkedQueue<Timeout>();
+		this.cancelled = new ConcurrentLinkedQueue<Timeout>();
+		this.stopped = false;
+		this.tick = 0;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(this::run, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Run a task after a delay.
+	 *
+	 * @param task
+	 *            The task.
+	 * @param delay
+	 *            How long to wait.
+	 * @return A handle that can cancel the task.
+	 */
+	Timeout schedule(final Runnable task, final Duration delay) {
+		final Timeout timeout = new Timeout(this, task, System.nanoTime() - this.startTime + delay.toNanos());
+		this.scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the wheel's thread. Pending tasks are never run.
+	 */
+	void stop() {
+		this.stopped = true;
+		LockSupport.unpark(this.worker);
+	}
+
+	private void run() {
+		while (!this.stopped) {
+			final long wait = this.startTime + ( this.tick + 1 ) * this.tickNanos - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			this.removeCancelled();
+			this.addScheduled();
+			this.expire(this.tick & this.mask);
+			this.tick++;
+		}
+	}
+
+	private void addScheduled() {
+		for (int i = 0; i < MAX_TRANSFERS; i++) {
+			final Timeout timeout = this.scheduled.poll();
+			if (timeout == null) {
+				return;
+			}
+			if (timeout.cancelled) {
+				continue;
+			}
+			final long due = timeout.deadline / this.tickNanos;
+			timeout.rounds = Math.max(due - this.tick, 0) / this.buckets.length;
+			this.link(timeout, (int) ( Math.max(due, this.tick) & this.mask ));
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while (( timeout = this.cancelled.poll() ) != null) {
+			if (timeout.bucket >= 0) {
+				this.unlink(timeout);
+			}
+		}
+	}
+
+	private void expire(final long bucket) {
+		Timeout timeout = this.buckets[(int) bucket];
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			if (timeout.rounds <= 0) {
+				this.unlink(timeout);
+				if (!timeout.cancelled) {
+					try {
+						timeout.task.run();
+					} catch (final RuntimeException exception) {
+						exception.printStackTrace();
+					}
+				}
+			} else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void link(final Timeout timeout, final int bucket) {
+		timeout.bucket = bucket;
+		timeout.previous = null;
+		timeout.next = this.buckets[bucket];
+		if (timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+		this.buckets[bucket] = timeout;
+	}
+
+	private void unlink(final Timeout timeout) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			this.buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	static final class Timeout {
+		private final TimerWheel	wheel;
+		private final Runnable		task;
+		// Due time, in nanoseconds since the wheel started
+		private final long			deadline;
+		private volatile boolean	cancelled;
+
+		// Only used by the wheel's thread
+		private long				rounds;
+		private int					bucket;
+		private Timeout				previous;
+		private Timeout				next;
+
+		private Timeout(final TimerWheel wheel, final Runnable task, final long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+			this.cancelled = false;
+			this.bucket = -1;
+		}
+
+		/**
+		 * Stop the task from running, if it hasn't already.
+		 */
+		void cancel() {
+			if (!this.cancelled) {
+				this.cancelled = true;
+				this.wheel.cancelled.add(this);
+			}
+		}
+	}
+
+}
@@ -9,14 +9,15 @@ import java.net.DatagramSocket;
 
 public class SntpServer {
 
-	private SntpMessage		response;
-	private SntpMessage		request;
-	private byte[]			buffer;
+	private SntpMessage				response;
+	private SntpMessage				request;
+	private byte[]					buffer;
 
-	private final int		port;
+	private final int				port;
 
-	private DatagramPacket	packet;
-	private DatagramSocket	socket;
+	private DatagramPacket			packet;
+	private volatile DatagramSocket	socket;
+	private volatile boolean		stopped;
 
 	public void run() {
 		try {
@@ -31,7 +32,7 @@ public class SntpServer {
 			this.packet = new DatagramPacket(this.buffer, this.buffer.length);
 			this.socket = new DatagramSocket(this.port);
 
-			while (true) {
+			while (!this.stopped) {
 				this.socket.receive(this.packet);
 
 				// System.out.println("SNTP Request from " + packet.getAddress() + ":" + packet.getPort());
@@ -51,8 +52,20 @@ public class SntpServer {
 		}
 
 		catch (final Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+			if (!this.stopped) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stop answering requests, ending {@link #run()}.
+	 */
+	public void stop() {
+		this.stopped = true;
+		final DatagramSocket socket = this.socket;
+		if (socket != null) {
+			socket.close();
 		}
 	}
 